@@ -41,13 +41,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 
 public class Algorithms {
 
 	final static String K = "4";
 
+	// Incremental scoring computes all the distances again when more than
+	// this part of the heard APs changed
+	private static final double INCREMENTAL_MAX_CHANGED = 0.5;
+	// or after this many updates, so rounding errors do not add up
+	private static final int INCREMENTAL_REFRESH = 64;
+
 	/**
 	 * 
 	 * @param latestScanList
@@ -61,39 +66,62 @@ public class Algorithms {
 	 * @return the location of user
 	 */
 	public static String ProcessingAlgorithms(ArrayList<LogRecord> latestScanList, RadioMap RM, int algorithm_choice) {
+		return ProcessingAlgorithms(latestScanList, new Observation(RM), algorithm_choice);
+	}
 
-		int i, j;
-
-		ArrayList<String> MacAdressList = RM.getMacAdressList();
-		ArrayList<String> Observed_RSS_Values = new ArrayList<String>();
-		LogRecord temp_LR;
-		int notFoundCounter = 0;
-		// Read parameter of algorithm
-		String NaNValue = readParameter(RM, 0);
+	/**
+	 * 
+	 * @param latestScanList
+	 *            the current scan list of APs
+	 * @param observation
+	 *            reusable observation of the constructed Radio Map, filled
+	 *            with the scan aligned to the radio map columns
+	 * 
+	 * @param algorithm_choice
+	 *            choice of several algorithms
+	 * 
+	 * @return the location of user
+	 */
+	public static String ProcessingAlgorithms(ArrayList<LogRecord> latestScanList, Observation observation, int algorithm_choice) {
 
 		// Check which mac addresses of radio map, we are currently listening.
-		for (i = 0; i < MacAdressList.size(); ++i) {
-
-			for (j = 0; j < latestScanList.size(); ++j) {
+		if (observation.align(latestScanList) == 0)
+			return null;
 
-				temp_LR = latestScanList.get(j);
+		return ProcessingAlgorithms(observation, algorithm_choice);
+	}
 
-				// MAC Address Matched
-				if (MacAdressList.get(i).compareTo(temp_LR.getBssid()) == 0) {
-					Observed_RSS_Values.add(String.valueOf(temp_LR.getRss()));
-					break;
-				}
-			}
-			// A MAC Address is missing so we place a small value, NaN value
-			if (j == latestScanList.size()) {
-				Observed_RSS_Values.add(String.valueOf(NaNValue));
-				++notFoundCounter;
-			}
-		}
+	/**
+	 * 
+	 * @param window
+	 *            the last scans, averaged per AP
+	 * @param weighted
+	 *            weight every AP by the stability of its RSS in the window
+	 * @param observation
+	 *            reusable observation of the constructed Radio Map, filled
+	 *            with the window aligned to the radio map columns
+	 * 
+	 * @param algorithm_choice
+	 *            choice of several algorithms
+	 * 
+	 * @return the location of user
+	 */
+	public static String ProcessingAlgorithms(ScanWindow window, boolean weighted, Observation observation, int algorithm_choice) {
 
-		if (notFoundCounter == MacAdressList.size())
+		if (observation.align(window, weighted) == 0)
 			return null;
 
+		return ProcessingAlgorithms(observation, algorithm_choice);
+	}
+
+	private static String ProcessingAlgorithms(Observation observation, int algorithm_choice) {
+
+		RadioMap RM = observation.getRadioMap();
+
+		// Weighted distances are always computed in full
+		if (observation.isIncremental() && !observation.weighted)
+			updateSquaredDistances(RM, observation);
+
 		// Read parameter of algorithm
 		String parameter = readParameter(RM, algorithm_choice);
 
@@ -103,13 +131,13 @@ public class Algorithms {
 		switch (algorithm_choice) {
 
 		case 1:
-			return KNN_WKNN_Algorithm(RM, Observed_RSS_Values, parameter, false);
+			return KNN_WKNN_Algorithm(RM, observation, parameter, false);
 		case 2:
-			return KNN_WKNN_Algorithm(RM, Observed_RSS_Values, parameter, true);
+			return KNN_WKNN_Algorithm(RM, observation, parameter, true);
 		case 3:
-			return MAP_MMSE_Algorithm(RM, Observed_RSS_Values, parameter, false);
+			return MAP_MMSE_Algorithm(RM, observation, parameter, false);
 		case 4:
-			return MAP_MMSE_Algorithm(RM, Observed_RSS_Values, parameter, true);
+			return MAP_MMSE_Algorithm(RM, observation, parameter, true);
 		}
 		return null;
 
@@ -122,7 +150,7 @@ public class Algorithms {
 	 * @param RM
 	 *            The radio map structure
 	 * 
-	 * @param Observed_RSS_Values
+	 * @param observation
 	 *            RSS values currently observed
 	 * @param parameter
 	 * 
@@ -131,11 +159,9 @@ public class Algorithms {
 	 * 
 	 * @return The estimated user location
 	 */
-	private static String KNN_WKNN_Algorithm(RadioMap RM, ArrayList<String> Observed_RSS_Values, String parameter, boolean isWeighted) {
+	private static String KNN_WKNN_Algorithm(RadioMap RM, Observation observation, String parameter, boolean isWeighted) {
 
-		ArrayList<String> RSS_Values;
-		float curResult = 0;
-		ArrayList<LocDistance> LocDistance_Results_List = new ArrayList<LocDistance>();
+		final int locations = observation.getCandidatesCount();
 		String myLocation = null;
 		int K;
 
@@ -145,30 +171,21 @@ public class Algorithms {
 			return null;
 		}
 
-		// Construct a list with locations-distances pairs for currently
-		// observed RSS values
-		for (String location : RM.getLocationRSS_HashMap().keySet()) {
-			RSS_Values = RM.getLocationRSS_HashMap().get(location);
-			curResult = calculateEuclideanDistance(RSS_Values, Observed_RSS_Values);
-
-			if (curResult == Float.NEGATIVE_INFINITY)
-				return null;
+		if (K < 1 || locations == 0)
+			return null;
 
-			LocDistance_Results_List.add(0, new LocDistance(curResult, location));
+		// Keep the K locations with the minimum distances for currently
+		// observed RSS values
+		TopK nearest = new TopK(K);
+		for (int i = 0; i < locations; ++i) {
+			int row = observation.getCandidate(i);
+			nearest.offer(calculateEuclideanDistance(RM, row, observation), row);
 		}
 
-		// Sort locations-distances pairs based on minimum distances
-		Collections.sort(LocDistance_Results_List, new Comparator<LocDistance>() {
-
-			public int compare(LocDistance gd1, LocDistance gd2) {
-				return (gd1.getDistance() > gd2.getDistance() ? 1 : (gd1.getDistance() == gd2.getDistance() ? 0 : -1));
-			}
-		});
-
 		if (!isWeighted) {
-			myLocation = calculateAverageKDistanceLocations(LocDistance_Results_List, K);
+			myLocation = calculateAverageKDistanceLocations(RM, nearest);
 		} else {
-			myLocation = calculateWeightedAverageKDistanceLocations(LocDistance_Results_List, K);
+			myLocation = calculateWeightedAverageKDistanceLocations(RM, nearest);
 		}
 
 		return myLocation;
@@ -180,10 +197,13 @@ public class Algorithms {
 	 * (MAP) Algorithm or Probabilistic Minimum Mean Square Error (MMSE)
 	 * Algorithm
 	 * 
+	 * The Gaussian likelihoods are scored in log space, so products over
+	 * hundreds of APs do not underflow to ties.
+	 * 
 	 * @param RM
 	 *            The radio map structure
 	 * 
-	 * @param Observed_RSS_Values
+	 * @param observation
 	 *            RSS values currently observed
 	 * @param parameter
 	 * 
@@ -192,13 +212,13 @@ public class Algorithms {
 	 * 
 	 * @return The estimated user location
 	 */
-	private static String MAP_MMSE_Algorithm(RadioMap RM, ArrayList<String> Observed_RSS_Values, String parameter, boolean isWeighted) {
+	private static String MAP_MMSE_Algorithm(RadioMap RM, Observation observation, String parameter, boolean isWeighted) {
 
-		ArrayList<String> RSS_Values;
+		final int locations = observation.getCandidatesCount();
 		double curResult = 0.0d;
-		String myLocation = null;
-		double highestProbability = Double.NEGATIVE_INFINITY;
-		ArrayList<LocDistance> LocDistance_Results_List = new ArrayList<LocDistance>();
+		int myLocation = -1;
+		double highestLogLikelihood = Double.NEGATIVE_INFINITY;
+		double[] LogLikelihoods = null;
 		float sGreek;
 
 		try {
@@ -207,148 +227,302 @@ public class Algorithms {
 			return null;
 		}
 
+		if (isWeighted)
+			LogLikelihoods = observation.getScores(locations);
+
 		// Find the location of user with the highest probability
-		for (String location : RM.getLocationRSS_HashMap().keySet()) {
+		for (int i = 0; i < locations; ++i) {
 
-			RSS_Values = RM.getLocationRSS_HashMap().get(location);
-			curResult = calculateProbability(RSS_Values, Observed_RSS_Values, sGreek);
+			int row = observation.getCandidate(i);
+			curResult = calculateLogLikelihood(RM, row, observation, sGreek);
 
-			if (curResult == Double.NEGATIVE_INFINITY)
-				return null;
-			else if (curResult > highestProbability) {
-				highestProbability = curResult;
-				myLocation = location;
+			if (curResult > highestLogLikelihood) {
+				highestLogLikelihood = curResult;
+				myLocation = row;
 			}
 
 			if (isWeighted)
-				LocDistance_Results_List.add(0, new LocDistance(curResult, location));
+				LogLikelihoods[i] = curResult;
 		}
 
+		if (myLocation == -1)
+			return null;
+
 		if (isWeighted)
-			myLocation = calculateWeightedAverageProbabilityLocations(LocDistance_Results_List);
+			return calculateWeightedAverageProbabilityLocations(RM, observation, LogLikelihoods, highestLogLikelihood);
 
-		return myLocation;
+		return RM.getLocationX(myLocation) + " " + RM.getLocationY(myLocation);
 	}
 
 	/**
-	 * Calculates the Euclidean distance between the currently observed RSS
-	 * values and the RSS values for a specific location.
+	 * Calculates the squared Euclidean distance between the currently observed
+	 * RSS values and the RSS values for a specific location.
 	 * 
-	 * @param l1
-	 *            RSS values of a location in radiomap
-	 * @param l2
+	 * In the sparse layout only the columns heard at the location or in the
+	 * scan are visited, in increasing column order. A column missing from
+	 * both adds exactly 0, so the result is the same as the dense one.
+	 * 
+	 * @param RM
+	 *            The radio map structure
+	 * @param row
+	 *            the location row in the radio map
+	 * @param observation
 	 *            RSS values currently observed
 	 * 
-	 * @return The Euclidean distance, or MIN_VALUE for error
+	 * @return The squared Euclidean distance
 	 */
-	private static float calculateEuclideanDistance(ArrayList<String> l1, ArrayList<String> l2) {
-
-		float finalResult = 0;
-		float v1;
-		float v2;
-		float temp;
-		String str;
-
-		for (int i = 0; i < l1.size(); ++i) {
-
-			try {
-				str = l1.get(i);
-				v1 = Float.valueOf(str.trim()).floatValue();
-				str = l2.get(i);
-				v2 = Float.valueOf(str.trim()).floatValue();
-			} catch (Exception e) {
-				return Float.NEGATIVE_INFINITY;
+	private static double calculateSquaredDistance(RadioMap RM, int row, Observation observation) {
+
+		if (observation.distancesFresh)
+			return Math.max(observation.distances[row] + observation.offset, 0);
+
+		final float[] Observed_RSS_Values = observation.values;
+		double finalResult = 0;
+		double temp;
+
+		if (observation.weighted)
+			return calculateWeightedSquaredDistance(RM, row, observation);
+
+		if (!RM.isSparse()) {
+			final float[] RSS_Matrix = RM.getRSS_Matrix();
+			final int offset = row * Observed_RSS_Values.length;
+
+			for (int i = 0; i < Observed_RSS_Values.length; ++i) {
+
+				// do the procedure
+				temp = RSS_Matrix[offset + i] - Observed_RSS_Values[i];
+				temp *= temp;
+
+				// do the procedure
+				finalResult += temp;
+			}
+			return finalResult;
+		}
+
+		final float NaNValue = RM.getNaNValue();
+		final int[] RSS_Columns = RM.getRSS_Columns();
+		final float[] RSS_Values = RM.getRSS_Values();
+		final int[] Observed_Columns = observation.columns;
+		final int observed = observation.count;
+		final int end = RM.getRowStart()[row + 1];
+		int k = RM.getRowStart()[row];
+		int m = 0;
+
+		while (k < end || m < observed) {
+			int mapColumn = k < end ? RSS_Columns[k] : Integer.MAX_VALUE;
+			int scanColumn = m < observed ? Observed_Columns[m] : Integer.MAX_VALUE;
+
+			if (mapColumn < scanColumn) {
+				temp = RSS_Values[k++] - NaNValue;
+			} else if (scanColumn < mapColumn) {
+				temp = NaNValue - Observed_RSS_Values[scanColumn];
+				m++;
+			} else {
+				temp = RSS_Values[k++] - Observed_RSS_Values[scanColumn];
+				m++;
 			}
 
-			// do the procedure
-			temp = v1 - v2;
 			temp *= temp;
-
-			// do the procedure
 			finalResult += temp;
 		}
-		return ((float) Math.sqrt(finalResult));
+		return finalResult;
 	}
 
 	/**
-	 * Calculates the Probability of the user being in the currently observed
-	 * RSS values and the RSS values for a specific location.
-	 * 
-	 * @param l1
-	 *            RSS values of a location in radiomap
-	 * @param l2
-	 *            RSS values currently observed
-	 * 
-	 * @return The Probability for this location, or MIN_VALUE for error
+	 * Calculates the squared Euclidean distance with every AP difference
+	 * scaled by the weight of its column. Only the columns heard by the scan
+	 * have a weight other than 1.
 	 */
-	public static double calculateProbability(ArrayList<String> l1, ArrayList<String> l2, float sGreek) {
+	private static double calculateWeightedSquaredDistance(RadioMap RM, int row, Observation observation) {
 
-		double finalResult = 1;
-		float v1;
-		float v2;
+		final float[] Observed_RSS_Values = observation.values;
+		final float[] weights = observation.weights;
+		double finalResult = 0;
 		double temp;
-		String str;
 
-		for (int i = 0; i < l1.size(); ++i) {
+		if (!RM.isSparse()) {
+			final float[] RSS_Matrix = RM.getRSS_Matrix();
+			final int offset = row * Observed_RSS_Values.length;
 
-			try {
-				str = l1.get(i);
-				v1 = Float.valueOf(str.trim()).floatValue();
-				str = l2.get(i);
-				v2 = Float.valueOf(str.trim()).floatValue();
-			} catch (Exception e) {
-				return Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < Observed_RSS_Values.length; ++i) {
+				temp = RSS_Matrix[offset + i] - Observed_RSS_Values[i];
+				finalResult += temp * temp * weights[i];
 			}
+			return finalResult;
+		}
 
-			temp = v1 - v2;
-
-			temp *= temp;
+		final float NaNValue = RM.getNaNValue();
+		final int[] RSS_Columns = RM.getRSS_Columns();
+		final float[] RSS_Values = RM.getRSS_Values();
+		final int[] Observed_Columns = observation.columns;
+		final int observed = observation.count;
+		final int end = RM.getRowStart()[row + 1];
+		int k = RM.getRowStart()[row];
+		int m = 0;
+
+		while (k < end || m < observed) {
+			int mapColumn = k < end ? RSS_Columns[k] : Integer.MAX_VALUE;
+			int scanColumn = m < observed ? Observed_Columns[m] : Integer.MAX_VALUE;
+
+			if (mapColumn < scanColumn) {
+				temp = RSS_Values[k++] - NaNValue;
+				finalResult += temp * temp;
+			} else if (scanColumn < mapColumn) {
+				temp = NaNValue - Observed_RSS_Values[scanColumn];
+				finalResult += temp * temp * weights[scanColumn];
+				m++;
+			} else {
+				temp = RSS_Values[k++] - Observed_RSS_Values[scanColumn];
+				finalResult += temp * temp * weights[scanColumn];
+				m++;
+			}
+		}
+		return finalResult;
+	}
 
-			temp = -temp;
+	/**
+	 * Brings the squared distance of every location up to the aligned scan.
+	 * 
+	 * A column changed from a to b adds (v - b)^2 - (v - a)^2 to a location
+	 * with value v. The locations that did not hear the column share that
+	 * change through the offset, so only the locations that heard it are
+	 * visited.
+	 * 
+	 * @param RM
+	 *            The radio map structure
+	 * @param observation
+	 *            RSS values currently observed
+	 */
+	private static void updateSquaredDistances(RadioMap RM, Observation observation) {
+
+		final float NaNValue = RM.getNaNValue();
+		final float[] values = observation.values;
+		final int[] columns = observation.columns;
+		final int count = observation.count;
+		boolean full = false;
+
+		if (observation.distances == null) {
+			observation.distances = new double[RM.getLocationsCount()];
+			observation.scored = new float[values.length];
+			observation.scoredColumns = new int[values.length];
+			observation.changed = new int[values.length];
+			Arrays.fill(observation.scored, NaNValue);
+			observation.scoredCount = 0;
+			full = true;
+		}
 
-			temp /= (double) (sGreek * sGreek);
-			temp = (double) Math.exp(temp);
+		final float[] scored = observation.scored;
+		final int[] scoredColumns = observation.scoredColumns;
+		final int[] changed = observation.changed;
+
+		// Columns heard in either scan with a different value
+		int changes = 0;
+		int k = 0;
+		int m = 0;
+		while (k < observation.scoredCount || m < count) {
+			int before = k < observation.scoredCount ? scoredColumns[k] : Integer.MAX_VALUE;
+			int now = m < count ? columns[m] : Integer.MAX_VALUE;
+			int column = Math.min(before, now);
+			if (before == column)
+				k++;
+			if (now == column)
+				m++;
+			if (scored[column] != values[column])
+				changed[changes++] = column;
+		}
 
-			//Do not allow zero instead stop on small possibility
-			if (finalResult * temp != 0)
-				finalResult = finalResult * temp;
+		if (full || observation.updates >= INCREMENTAL_REFRESH || changes > INCREMENTAL_MAX_CHANGED * Math.max(count, 1)) {
+			final double[] distances = observation.distances;
+			for (int row = 0; row < distances.length; ++row)
+				distances[row] = calculateSquaredDistance(RM, row, observation);
+			observation.offset = 0;
+			observation.updates = 0;
+		} else if (changes > 0) {
+			final double[] distances = observation.distances;
+			final int[] ColumnStart = RM.getColumnStart();
+			final int[] ColumnRows = RM.getColumnRows();
+			final float[] ColumnValues = RM.getColumnValues();
+
+			for (int i = 0; i < changes; ++i) {
+				final int column = changed[i];
+				final float a = scored[column];
+				final float b = values[column];
+
+				double after = NaNValue - b;
+				double before = NaNValue - a;
+				final double missing = after * after - before * before;
+				observation.offset += missing;
+
+				for (int j = ColumnStart[column]; j < ColumnStart[column + 1]; ++j) {
+					after = ColumnValues[j] - b;
+					before = ColumnValues[j] - a;
+					distances[ColumnRows[j]] += after * after - before * before - missing;
+				}
+			}
+			observation.updates++;
 		}
-		return finalResult;
+
+		for (int i = 0; i < changes; ++i)
+			scored[changed[i]] = values[changed[i]];
+		System.arraycopy(columns, 0, scoredColumns, 0, count);
+		observation.scoredCount = count;
+		observation.distancesFresh = true;
+	}
+
+	/**
+	 * Calculates the Euclidean distance between the currently observed RSS
+	 * values and the RSS values for a specific location.
+	 * 
+	 * @return The Euclidean distance
+	 */
+	private static double calculateEuclideanDistance(RadioMap RM, int row, Observation observation) {
+		return Math.sqrt(calculateSquaredDistance(RM, row, observation));
+	}
+
+	/**
+	 * Calculates the logarithm of the Probability of the user being in the
+	 * currently observed RSS values and the RSS values for a specific
+	 * location. The product of the per AP Gaussians exp(-d^2 / s^2) is the
+	 * sum of the squared differences scaled once.
+	 * 
+	 * @param RM
+	 *            The radio map structure
+	 * @param row
+	 *            the location row in the radio map
+	 * @param observation
+	 *            RSS values currently observed
+	 * 
+	 * @return The log Probability (up to a constant) for this location
+	 */
+	public static double calculateLogLikelihood(RadioMap RM, int row, Observation observation, float sGreek) {
+		return -calculateSquaredDistance(RM, row, observation) / (double) (sGreek * sGreek);
 	}
 
 	/**
 	 * Calculates the Average of the K locations that have the shortest
 	 * distances D
 	 * 
-	 * @param LocDistance_Results_List
-	 *            Locations-Distances pairs sorted by distance
-	 * @param K
-	 *            The number of locations used
+	 * @param RM
+	 *            The radio map structure
+	 * @param nearest
+	 *            The K locations with the shortest distances
 	 * @return The estimated user location, or null for error
 	 */
-	private static String calculateAverageKDistanceLocations(ArrayList<LocDistance> LocDistance_Results_List, int K) {
+	private static String calculateAverageKDistanceLocations(RadioMap RM, TopK nearest) {
 
-		float sumX = 0.0f;
-		float sumY = 0.0f;
+		double sumX = 0.0d;
+		double sumY = 0.0d;
 
-		String[] LocationArray = new String[2];
-		float x, y;
+		int K_Min = nearest.size();
 
-		int K_Min = K < LocDistance_Results_List.size() ? K : LocDistance_Results_List.size();
+		if (K_Min == 0)
+			return null;
 
 		// Calculate the sum of X and Y
 		for (int i = 0; i < K_Min; ++i) {
-			LocationArray = LocDistance_Results_List.get(i).getLocation().split(" ");
-
-			try {
-				x = Float.valueOf(LocationArray[0].trim()).floatValue();
-				y = Float.valueOf(LocationArray[1].trim()).floatValue();
-			} catch (Exception e) {
-				return null;
-			}
-
-			sumX += x;
-			sumY += y;
+			int location = nearest.getLocation(i);
+			sumX += RM.getLocationX(location);
+			sumY += RM.getLocationY(location);
 		}
 
 		// Calculate the average
@@ -363,43 +537,36 @@ public class Algorithms {
 	 * Calculates the Weighted Average of the K locations that have the shortest
 	 * distances D
 	 * 
-	 * @param LocDistance_Results_List
-	 *            Locations-Distances pairs sorted by distance
-	 * @param K
-	 *            The number of locations used
+	 * @param RM
+	 *            The radio map structure
+	 * @param nearest
+	 *            The K locations with the shortest distances
 	 * @return The estimated user location, or null for error
 	 */
-	public static String calculateWeightedAverageKDistanceLocations(ArrayList<LocDistance> LocDistance_Results_List, int K) {
+	public static String calculateWeightedAverageKDistanceLocations(RadioMap RM, TopK nearest) {
 
 		double LocationWeight = 0.0f;
 		double sumWeights = 0.0f;
 		double WeightedSumX = 0.0f;
 		double WeightedSumY = 0.0f;
 
-		String[] LocationArray = new String[2];
-		float x, y;
+		int K_Min = nearest.size();
 
-		int K_Min = K < LocDistance_Results_List.size() ? K : LocDistance_Results_List.size();
+		if (K_Min == 0)
+			return null;
 
 		// Calculate the weighted sum of X and Y
 		for (int i = 0; i < K_Min; ++i) {
-			if (LocDistance_Results_List.get(i).getDistance() != 0.0) {
-				LocationWeight = 1 / LocDistance_Results_List.get(i).getDistance();
+			if (nearest.getDistance(i) != 0.0) {
+				LocationWeight = 1 / nearest.getDistance(i);
 			} else {
 				LocationWeight = 100;
 			}
-			LocationArray = LocDistance_Results_List.get(i).getLocation().split(" ");
-
-			try {
-				x = Float.valueOf(LocationArray[0].trim()).floatValue();
-				y = Float.valueOf(LocationArray[1].trim()).floatValue();
-			} catch (Exception e) {
-				return null;
-			}
 
+			int location = nearest.getLocation(i);
 			sumWeights += LocationWeight;
-			WeightedSumX += LocationWeight * x;
-			WeightedSumY += LocationWeight * y;
+			WeightedSumX += LocationWeight * RM.getLocationX(location);
+			WeightedSumY += LocationWeight * RM.getLocationY(location);
 
 		}
 
@@ -411,44 +578,48 @@ public class Algorithms {
 
 	/**
 	 * Calculates the Weighted Average over ALL locations where the weights are
-	 * the Normalized Probabilities
+	 * the Normalized Probabilities. The probabilities are normalized with the
+	 * log-sum-exp of the log likelihoods, shifted by the highest one so that
+	 * at least one weight is exactly 1 and none underflows for the best
+	 * locations.
 	 * 
-	 * @param LocDistance_Results_List
-	 *            Locations-Probability pairs
+	 * @param RM
+	 *            The radio map structure
+	 * @param observation
+	 *            The observation whose candidate locations were scored
+	 * @param LogLikelihoods
+	 *            Log Probability of each candidate location
+	 * @param highestLogLikelihood
+	 *            The maximum of LogLikelihoods
 	 * 
 	 * @return The estimated user location, or null for error
 	 */
-	public static String calculateWeightedAverageProbabilityLocations(ArrayList<LocDistance> LocDistance_Results_List) {
+	public static String calculateWeightedAverageProbabilityLocations(RadioMap RM, Observation observation, double[] LogLikelihoods, double highestLogLikelihood) {
 
-		double sumProbabilities = 0.0f;
-		double WeightedSumX = 0.0f;
-		double WeightedSumY = 0.0f;
-		double NP;
-		float x, y;
-		String[] LocationArray = new String[2];
-
-		// Calculate the sum of all probabilities
-		for (int i = 0; i < LocDistance_Results_List.size(); ++i)
-			sumProbabilities += LocDistance_Results_List.get(i).getDistance();
-
-		// Calculate the weighted (Normalized Probabilities) sum of X and Y
-		for (int i = 0; i < LocDistance_Results_List.size(); ++i) {
-			LocationArray = LocDistance_Results_List.get(i).getLocation().split(" ");
-
-			try {
-				x = Float.valueOf(LocationArray[0].trim()).floatValue();
-				y = Float.valueOf(LocationArray[1].trim()).floatValue();
-			} catch (Exception e) {
-				return null;
-			}
+		final int locations = observation.getCandidatesCount();
+		double sumProbabilities = 0.0d;
+		double WeightedSumX = 0.0d;
+		double WeightedSumY = 0.0d;
+		double P;
 
-			NP = LocDistance_Results_List.get(i).getDistance() / sumProbabilities;
+		if (Double.isInfinite(highestLogLikelihood) || Double.isNaN(highestLogLikelihood))
+			return null;
 
-			WeightedSumX += (x * NP);
-			WeightedSumY += (y * NP);
+		// Calculate the weighted (Probabilities scaled by the highest) sum of
+		// X and Y and the sum of the scaled probabilities
+		for (int i = 0; i < locations; ++i) {
+			int row = observation.getCandidate(i);
+			P = Math.exp(LogLikelihoods[i] - highestLogLikelihood);
 
+			sumProbabilities += P;
+			WeightedSumX += (RM.getLocationX(row) * P);
+			WeightedSumY += (RM.getLocationY(row) * P);
 		}
 
+		// Normalize
+		WeightedSumX /= sumProbabilities;
+		WeightedSumY /= sumProbabilities;
+
 		return WeightedSumX + " " + WeightedSumY;
 
 	}
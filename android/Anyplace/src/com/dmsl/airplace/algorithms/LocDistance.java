@@ -1,55 +0,0 @@
-/*
-* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
-*
-* Anyplace is a first-of-a-kind indoor information service offering GPS-less
-* localization, navigation and search inside buildings using ordinary smartphones.
-*
-* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
-* 
-* Supervisor: Demetrios Zeinalipour-Yazti
-*
-* URL: http://anyplace.cs.ucy.ac.cy
-* Contact: anyplace@cs.ucy.ac.cy
-*
-* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
-* All rights reserved.
-*
-* Permission is hereby granted, free of charge, to any person obtaining a copy of
-* this software and associated documentation files (the "Software"), to deal in the
-* Software without restriction, including without limitation the rights to use, copy,
-* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
-* and to permit persons to whom the Software is furnished to do so, subject to the
-* following conditions:
-*
-* The above copyright notice and this permission notice shall be included in all
-* copies or substantial portions of the Software.
-*
-* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
-* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
-* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
-* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
-* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
-* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
-* DEALINGS IN THE SOFTWARE.
-*
-*/
-
-package com.dmsl.airplace.algorithms;
-
-public class LocDistance {
-	private double distance;
-	private String location;
-
-	public LocDistance(double distance, String location) {
-		this.distance = distance;
-		this.location = location;
-	}
-
-	public double getDistance() {
-		return distance;
-	}
-
-	public String getLocation() {
-		return location;
-	}
-}
\ No newline at end of file
@@ -0,0 +1,218 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the locations of a radio map, used to find the locations
+ * near a point without visiting all of them. The rows of each cell are kept in
+ * one array ordered by cell, so searching does not allocate.
+ */
+public class LocationGrid {
+
+	// Meters per degree of latitude
+	private static final double METERS_PER_DEGREE = Math.PI * 6378137 / 180;
+	// Upper bound on the number of cells, larger maps get larger cells
+	private static final int MAX_CELLS = 1 << 16;
+
+	private final RadioMap RM;
+	private final double minX;
+	private final double minY;
+	// Cell size in degrees of latitude (X) and longitude (Y)
+	private final double cellX;
+	private final double cellY;
+	private final int cellsX;
+	private final int cellsY;
+	// Rows of cell c are rows[cellStart[c]] to rows[cellStart[c + 1] - 1]
+	private final int[] cellStart;
+	private final int[] rows;
+	private final double cosLatitude;
+
+	/**
+	 * @param RM
+	 *            the radio map to index
+	 * @param cellMeters
+	 *            the size of a cell, about the search radius works best
+	 * */
+	public LocationGrid(RadioMap RM, double cellMeters) {
+		this.RM = RM;
+		final int locations = RM.getLocationsCount();
+
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int row = 0; row < locations; ++row) {
+			minX = Math.min(minX, RM.getLocationX(row));
+			maxX = Math.max(maxX, RM.getLocationX(row));
+			minY = Math.min(minY, RM.getLocationY(row));
+			maxY = Math.max(maxY, RM.getLocationY(row));
+		}
+		if (locations == 0) {
+			minX = maxX = minY = maxY = 0;
+		}
+
+		this.minX = minX;
+		this.minY = minY;
+		this.cosLatitude = Math.max(Math.cos(Math.toRadians((minX + maxX) / 2)), 1e-6);
+
+		double cellX = cellMeters / METERS_PER_DEGREE;
+		double cellY = cellMeters / (METERS_PER_DEGREE * cosLatitude);
+		int cellsX = (int) ((maxX - minX) / cellX) + 1;
+		int cellsY = (int) ((maxY - minY) / cellY) + 1;
+		while ((long) cellsX * cellsY > MAX_CELLS) {
+			cellX *= 2;
+			cellY *= 2;
+			cellsX = (int) ((maxX - minX) / cellX) + 1;
+			cellsY = (int) ((maxY - minY) / cellY) + 1;
+		}
+		this.cellX = cellX;
+		this.cellY = cellY;
+		this.cellsX = cellsX;
+		this.cellsY = cellsY;
+
+		// Counting sort of the rows by cell
+		cellStart = new int[cellsX * cellsY + 1];
+		rows = new int[locations];
+		for (int row = 0; row < locations; ++row)
+			cellStart[cellOf(row) + 1]++;
+		for (int c = 0; c < cellsX * cellsY; ++c)
+			cellStart[c + 1] += cellStart[c];
+		int[] next = new int[cellsX * cellsY];
+		System.arraycopy(cellStart, 0, next, 0, next.length);
+		for (int row = 0; row < locations; ++row)
+			rows[next[cellOf(row)]++] = row;
+	}
+
+	private int cellOf(int row) {
+		int cx = (int) ((RM.getLocationX(row) - minX) / cellX);
+		int cy = (int) ((RM.getLocationY(row) - minY) / cellY);
+		return Math.min(cx, cellsX - 1) * cellsY + Math.min(cy, cellsY - 1);
+	}
+
+	/**
+	 * Finds the locations within a distance of a point
+	 * 
+	 * @param lat
+	 *            latitude (X) of the point
+	 * @param lon
+	 *            longitude (Y) of the point
+	 * @param radiusMeters
+	 *            the search distance
+	 * @param out
+	 *            receives the rows found, in increasing order, must hold
+	 *            RM.getLocationsCount() values
+	 * @return the number of rows found
+	 * */
+	public int search(double lat, double lon, double radiusMeters, int[] out) {
+		final double rX = radiusMeters / METERS_PER_DEGREE;
+		final double rY = radiusMeters / (METERS_PER_DEGREE * cosLatitude);
+		final double radius2 = radiusMeters * radiusMeters;
+
+		int fromX = Math.max((int) Math.floor((lat - rX - minX) / cellX), 0);
+		int toX = Math.min((int) Math.floor((lat + rX - minX) / cellX), cellsX - 1);
+		int fromY = Math.max((int) Math.floor((lon - rY - minY) / cellY), 0);
+		int toY = Math.min((int) Math.floor((lon + rY - minY) / cellY), cellsY - 1);
+
+		int count = 0;
+		for (int cx = fromX; cx <= toX; ++cx) {
+			for (int cy = fromY; cy <= toY; ++cy) {
+				int c = cx * cellsY + cy;
+				for (int i = cellStart[c]; i < cellStart[c + 1]; ++i) {
+					int row = rows[i];
+					double dx = (RM.getLocationX(row) - lat) * METERS_PER_DEGREE;
+					double dy = (RM.getLocationY(row) - lon) * METERS_PER_DEGREE * cosLatitude;
+					if (dx * dx + dy * dy <= radius2)
+						out[count++] = row;
+				}
+			}
+		}
+
+		Arrays.sort(out, 0, count);
+		return count;
+	}
+
+	/**
+	 * Finds the location nearest to a point
+	 * 
+	 * @param lat
+	 *            latitude (X) of the point
+	 * @param lon
+	 *            longitude (Y) of the point
+	 * @param radiusMeters
+	 *            the search distance
+	 * @return the row of the nearest location within the distance, the lowest
+	 *         row on a tie, or -1 if there is none
+	 * */
+	public int nearest(double lat, double lon, double radiusMeters) {
+		final double rX = radiusMeters / METERS_PER_DEGREE;
+		final double rY = radiusMeters / (METERS_PER_DEGREE * cosLatitude);
+
+		int fromX = Math.max((int) Math.floor((lat - rX - minX) / cellX), 0);
+		int toX = Math.min((int) Math.floor((lat + rX - minX) / cellX), cellsX - 1);
+		int fromY = Math.max((int) Math.floor((lon - rY - minY) / cellY), 0);
+		int toY = Math.min((int) Math.floor((lon + rY - minY) / cellY), cellsY - 1);
+
+		int nearest = -1;
+		double nearest2 = radiusMeters * radiusMeters;
+		for (int cx = fromX; cx <= toX; ++cx) {
+			for (int cy = fromY; cy <= toY; ++cy) {
+				int c = cx * cellsY + cy;
+				for (int i = cellStart[c]; i < cellStart[c + 1]; ++i) {
+					int row = rows[i];
+					double dx = (RM.getLocationX(row) - lat) * METERS_PER_DEGREE;
+					double dy = (RM.getLocationY(row) - lon) * METERS_PER_DEGREE * cosLatitude;
+					double d2 = dx * dx + dy * dy;
+					if (d2 < nearest2 || (d2 == nearest2 && (nearest == -1 || row < nearest))) {
+						nearest2 = d2;
+						nearest = row;
+					}
+				}
+			}
+		}
+
+		return nearest;
+	}
+
+	/**
+	 * Approximate distance in meters between two near points
+	 * */
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dx = (lat1 - lat2) * METERS_PER_DEGREE;
+		double dy = (lon1 - lon2) * METERS_PER_DEGREE * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+}
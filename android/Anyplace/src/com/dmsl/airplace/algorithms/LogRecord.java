@@ -40,6 +40,9 @@ public class LogRecord {
 
 	private String bssid;
 	private int rss;
+	// BSSID packed by MacIndex.parseMac, computed on first use
+	private long mac = 0;
+	private boolean macParsed = false;
 
 	public LogRecord(String bssid, int rss) {
 		super();
@@ -54,6 +57,17 @@ public class LogRecord {
 	public int getRss() {
 		return rss;
 	}
+
+	/**
+	 * @return the BSSID as a 48-bit value, or -1 if it is malformed
+	 * */
+	public long getMac() {
+		if (!macParsed) {
+			mac = MacIndex.parseMac(bssid);
+			macParsed = true;
+		}
+		return mac;
+	}
 	
 	public String toString() {
 		String str = new String();
@@ -0,0 +1,155 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table from a MAC Address, packed in the lower 48 bits
+ * of a long, to a column of the radio map. Lookups do not allocate, so a scan
+ * can be aligned to the radio map in time linear to the scan size.
+ */
+public class MacIndex {
+
+	private static final long EMPTY = -1;
+
+	private final long[] keys;
+	private final int[] values;
+	private final int mask;
+	private int size = 0;
+
+	public MacIndex(int expectedSize) {
+		int capacity = 16;
+		// Keep the load factor at most 0.5
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Packs a MAC Address of the form 00:11:22:aa:bb:cc (or with '-'
+	 * separators) in a long
+	 * 
+	 * @return the MAC Address as a 48-bit value, or -1 if it is malformed
+	 * */
+	public static long parseMac(String mac) {
+		if (mac == null)
+			return EMPTY;
+
+		long value = 0;
+		int digits = 0;
+
+		for (int i = 0; i < mac.length(); ++i) {
+			char c = mac.charAt(i);
+			int d = Character.digit(c, 16);
+
+			if (d != -1) {
+				if (++digits > 12)
+					return EMPTY;
+				value = (value << 4) | d;
+			} else if (c != ':' && c != '-') {
+				return EMPTY;
+			}
+		}
+
+		return digits == 12 ? value : EMPTY;
+	}
+
+	private static int hash(long mac) {
+		// The vendor prefix is shared by many APs, mix all bits
+		mac ^= (mac >>> 33);
+		mac *= 0xff51afd7ed558ccdL;
+		mac ^= (mac >>> 33);
+		return (int) mac;
+	}
+
+	/**
+	 * Maps a MAC Address to a column. The first column of a repeated MAC
+	 * Address is kept.
+	 * 
+	 * @return false if the MAC Address is malformed or already indexed
+	 * */
+	public boolean put(String mac, int column) {
+		long key = parseMac(mac);
+		if (key == EMPTY)
+			return false;
+
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key)
+				return false;
+			slot = (slot + 1) & mask;
+		}
+
+		if (size + 1 > keys.length / 2)
+			throw new IllegalStateException("MacIndex is full");
+
+		keys[slot] = key;
+		values[slot] = column;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return the column of the MAC Address, or -1 if it is not indexed
+	 * */
+	public int get(long mac) {
+		if (mac == EMPTY)
+			return -1;
+
+		int slot = hash(mac) & mask;
+		long key;
+		while ((key = keys[slot]) != EMPTY) {
+			if (key == mac)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public int get(String mac) {
+		return get(parseMac(mac));
+	}
+
+	public int size() {
+		return size;
+	}
+}
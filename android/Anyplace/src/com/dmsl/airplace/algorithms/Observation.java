@@ -0,0 +1,251 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A WiFi scan aligned to the columns of a radio map. It is meant to be kept
+ * and reused for every scan on the same radio map, so aligning a scan does
+ * not allocate.
+ */
+public class Observation {
+
+	// Expected variance in dBm^2 of the RSS of an AP that does not fade, a
+	// column of a scan window is weighted by NOISE / (NOISE + variance)
+	public static final float WINDOW_NOISE_VARIANCE = 4;
+
+	private final RadioMap RM;
+	// RSS value of each radio map column, NaN for the columns not heard
+	final float[] values;
+	// Heard columns in increasing order
+	final int[] columns;
+	int count = 0;
+	// Weight of the squared difference of each column, all 1 for the
+	// columns not heard, null until a weighted window is aligned
+	float[] weights = null;
+	boolean weighted = false;
+	// Scratch score per scored location, allocated on first use
+	private double[] scores = null;
+	// Radio map rows to score, null to score all of them
+	private int[] candidates = null;
+	private int candidatesCount = 0;
+
+	// Incremental scoring, the squared distance of every location to the
+	// scan is distances[row] + offset
+	private boolean incremental = false;
+	double[] distances = null;
+	double offset = 0;
+	// True while distances match the aligned scan
+	boolean distancesFresh = false;
+	// The scan the distances were last computed for
+	float[] scored = null;
+	int[] scoredColumns = null;
+	int scoredCount = 0;
+	// Scratch list of the columns changed since
+	int[] changed = null;
+	// Incremental updates since the last full computation
+	int updates = 0;
+
+	public Observation(RadioMap RM) {
+		this.RM = RM;
+		values = new float[RM.getMacAdressCount()];
+		columns = new int[RM.getMacAdressCount()];
+		Arrays.fill(values, RM.getNaNValue());
+	}
+
+	public RadioMap getRadioMap() {
+		return RM;
+	}
+
+	/**
+	 * Aligns a scan to the radio map. If a MAC Address is repeated in the
+	 * scan its first record is used.
+	 * 
+	 * @return the number of scan records matched to a radio map MAC Address
+	 * */
+	public int align(ArrayList<LogRecord> latestScanList) {
+		final float NaNValue = RM.getNaNValue();
+		int matched = 0;
+
+		clear();
+
+		// Walk the scan backwards so that the first record of a repeated MAC
+		// Address wins.
+		for (int i = latestScanList.size() - 1; i >= 0; --i) {
+			LogRecord temp_LR = latestScanList.get(i);
+			int column = RM.getMacAdressIndex(temp_LR.getMac());
+
+			// MAC Address Matched
+			if (column != -1) {
+				float rss = temp_LR.getRss();
+				// An RSS equal to NaN scores as a missing MAC Address
+				if (values[column] == NaNValue && rss != NaNValue)
+					columns[count++] = column;
+				values[column] = rss;
+				matched++;
+			}
+		}
+
+		Arrays.sort(columns, 0, count);
+
+		return matched;
+	}
+
+	/**
+	 * Aligns the mean RSS of a scan window to the radio map
+	 * 
+	 * @param window
+	 *            a scan window of the same radio map
+	 * @param weighted
+	 *            true to weight every AP heard by the window by the stability
+	 *            of its RSS, which disables incremental scoring
+	 * @return the number of radio map MAC Addresses heard by the window
+	 * */
+	public int align(ScanWindow window, boolean weighted) {
+		if (window.getRadioMap() != RM)
+			throw new IllegalArgumentException("ScanWindow of another radio map");
+
+		clear();
+
+		if (weighted && weights == null) {
+			weights = new float[values.length];
+			Arrays.fill(weights, 1);
+		}
+		this.weighted = weighted;
+
+		for (int i = 0; i < window.getActiveCount(); ++i) {
+			int column = window.getActiveColumn(i);
+			values[column] = window.getMean(column);
+			if (weighted)
+				weights[column] = WINDOW_NOISE_VARIANCE / (WINDOW_NOISE_VARIANCE + window.getVariance(column));
+			columns[count++] = column;
+		}
+
+		Arrays.sort(columns, 0, count);
+
+		return count;
+	}
+
+	private void clear() {
+		final float NaNValue = RM.getNaNValue();
+
+		distancesFresh = false;
+		weighted = false;
+
+		// Only the previously heard columns are not NaN or weighted
+		for (int i = 0; i < count; ++i) {
+			values[columns[i]] = NaNValue;
+			if (weights != null)
+				weights[columns[i]] = 1;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Keeps the distance of every location to the last scan, so the next
+	 * scan only applies the change of the APs whose RSS changed, appeared or
+	 * disappeared
+	 * */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		distances = null;
+		distancesFresh = false;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Restricts the positioning algorithms to some of the radio map
+	 * locations, until clearCandidates is called
+	 * 
+	 * @param rows
+	 *            the radio map rows in increasing order, not copied
+	 * @param count
+	 *            the number of rows used
+	 * */
+	public void setCandidates(int[] rows, int count) {
+		candidates = rows;
+		candidatesCount = count;
+	}
+
+	/**
+	 * Lets the positioning algorithms score all the radio map locations
+	 * */
+	public void clearCandidates() {
+		candidates = null;
+		candidatesCount = 0;
+	}
+
+	/**
+	 * @return the number of locations to score
+	 * */
+	int getCandidatesCount() {
+		return candidates == null ? RM.getLocationsCount() : candidatesCount;
+	}
+
+	/**
+	 * @return the radio map row of the i-th location to score
+	 * */
+	int getCandidate(int i) {
+		return candidates == null ? i : candidates[i];
+	}
+
+	/**
+	 * @return a reusable buffer of at least locations values
+	 * */
+	double[] getScores(int locations) {
+		if (scores == null || scores.length < locations)
+			scores = new double[locations];
+		return scores;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getColumn(int i) {
+		return columns[i];
+	}
+
+	public float getValue(int column) {
+		return values[column];
+	}
+}
@@ -36,28 +36,79 @@
 
 package com.dmsl.airplace.algorithms;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.google.maps.android.heatmaps.WeightedLatLng;
 
+/**
+ * In-memory radio map. The RSS values are parsed once when the file is read
+ * and kept in primitive arrays, so the positioning algorithms never touch
+ * strings per scan. Two layouts are supported:
+ * 
+ * dense: a single row-major float matrix, one row per location and one column
+ * per MAC address.
+ * 
+ * sparse: only the values different from NaN, in compressed rows (row start
+ * offsets, column and value per entry), sorted by column inside each row.
+ * 
+ * The text radio map can be cached next to it in a binary form (see
+ * writeBinary) that is memory mapped and copied in the arrays without
+ * parsing.
+ */
 public class RadioMap {
+	// Binary radio map header: magic "APRM", format version
+	private static final int BINARY_MAGIC = 0x4150524D;
+	private static final int BINARY_VERSION = 1;
+
 	private String NaN = "-110";
+	private float NaNValue = -110;
 	private File RadiomapMean_File = null;
 	private ArrayList<String> MacAdressList = null;
-	private HashMap<String, ArrayList<String>> LocationRSS_HashMap = null;
-	private ArrayList<String> OrderList = null;
+	private MacIndex MacAdressIndex = null;
+	private final boolean sparse;
+	private boolean fromBinary = false;
+
+	// Parallel arrays indexed by location row
+	private int LocationsCount = 0;
+	private double[] LocationX = null;
+	private double[] LocationY = null;
+	// Dense: LocationsCount x MacAdressList.size() RSS values
+	private float[] RSS_Matrix = null;
+	// Sparse: entries of row i are in [RowStart[i], RowStart[i + 1])
+	private int[] RowStart = null;
+	private int[] RSS_Columns = null;
+	private float[] RSS_Values = null;
+	// Column-major copy of the values different from NaN, built on first use
+	private int[] ColumnStart = null;
+	private int[] ColumnRows = null;
+	private float[] ColumnValues = null;
 
+	/**
+	 * Reads a radio map in the sparse layout
+	 * */
 	public RadioMap(File inFile) throws Exception {
+		this(inFile, true);
+	}
+
+	public RadioMap(File inFile, boolean sparse) throws Exception {
+		this.sparse = sparse;
 		MacAdressList = new ArrayList<String>();
-		LocationRSS_HashMap = new HashMap<String, ArrayList<String>>();
-		OrderList = new ArrayList<String>();
 
 		if (!ConstructRadioMap(inFile)) {
 			throw new Exception("Inavlid Radiomap File");
@@ -74,21 +125,162 @@ public class RadioMap {
 	}
 
 	/**
-	 * Getter of HashMap Location-RSS Values list in no particular order
+	 * Column of a MAC Address in the RSS matrix
 	 * 
-	 * @return the HashMap Location-RSS Values
+	 * @return the column, or -1 if the MAC Address is not in the radio map
 	 * */
-	public HashMap<String, ArrayList<String>> getLocationRSS_HashMap() {
-		return LocationRSS_HashMap;
+	public int getMacAdressIndex(String mac) {
+		return MacAdressIndex.get(mac);
 	}
 
 	/**
-	 * Getter of Location list in file order
+	 * Column of a MAC Address, packed with MacIndex.parseMac, in the RSS
+	 * matrix
 	 * 
-	 * @return the Location list
+	 * @return the column, or -1 if the MAC Address is not in the radio map
+	 * */
+	public int getMacAdressIndex(long mac) {
+		return MacAdressIndex.get(mac);
+	}
+
+	/**
+	 * @return the number of locations (rows of the RSS matrix)
+	 * */
+	public int getLocationsCount() {
+		return LocationsCount;
+	}
+
+	/**
+	 * @return the number of MAC Addresses (columns of the RSS matrix)
+	 * */
+	public int getMacAdressCount() {
+		return MacAdressList.size();
+	}
+
+	public double getLocationX(int location) {
+		return LocationX[location];
+	}
+
+	public double getLocationY(int location) {
+		return LocationY[location];
+	}
+
+	/**
+	 * @return true if only the values different from NaN are stored
+	 * */
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Getter of the dense RSS matrix. The values of location i start at index
+	 * i * getMacAdressCount(). The array is shared, do not modify it.
+	 * 
+	 * @return the row-major RSS matrix, or null in the sparse layout
+	 * */
+	public float[] getRSS_Matrix() {
+		return RSS_Matrix;
+	}
+
+	/**
+	 * Getter of the sparse row offsets. The entries of location i are in
+	 * [getRowStart()[i], getRowStart()[i + 1]) of getRSS_Columns() and
+	 * getRSS_Values(). The array is shared, do not modify it.
+	 * 
+	 * @return the row offsets, or null in the dense layout
+	 * */
+	public int[] getRowStart() {
+		return RowStart;
+	}
+
+	public int[] getRSS_Columns() {
+		return RSS_Columns;
+	}
+
+	public float[] getRSS_Values() {
+		return RSS_Values;
+	}
+
+	/**
+	 * Getter of the column offsets. The locations that heard column c, in
+	 * increasing order, and their values are in [getColumnStart()[c],
+	 * getColumnStart()[c + 1]) of getColumnRows() and getColumnValues(). The
+	 * arrays are built on first use, in either layout, and shared.
+	 * 
+	 * @return the column offsets
+	 * */
+	public int[] getColumnStart() {
+		buildColumns();
+		return ColumnStart;
+	}
+
+	public int[] getColumnRows() {
+		buildColumns();
+		return ColumnRows;
+	}
+
+	public float[] getColumnValues() {
+		buildColumns();
+		return ColumnValues;
+	}
+
+	private synchronized void buildColumns() {
+		if (ColumnStart != null)
+			return;
+
+		final int macs = MacAdressList.size();
+		int[] columnStart = new int[macs + 1];
+
+		// Counting sort of the values by column, rows stay in order
+		if (sparse) {
+			for (int i = 0; i < RSS_Columns.length; ++i)
+				columnStart[RSS_Columns[i] + 1]++;
+		} else {
+			for (int i = 0; i < RSS_Matrix.length; ++i) {
+				if (RSS_Matrix[i] != NaNValue)
+					columnStart[i % macs + 1]++;
+			}
+		}
+		for (int column = 0; column < macs; ++column)
+			columnStart[column + 1] += columnStart[column];
+
+		int[] next = new int[macs];
+		System.arraycopy(columnStart, 0, next, 0, macs);
+		int[] columnRows = new int[columnStart[macs]];
+		float[] columnValues = new float[columnStart[macs]];
+		for (int row = 0; row < LocationsCount; ++row) {
+			if (sparse) {
+				for (int i = RowStart[row]; i < RowStart[row + 1]; ++i) {
+					int n = next[RSS_Columns[i]]++;
+					columnRows[n] = row;
+					columnValues[n] = RSS_Values[i];
+				}
+			} else {
+				for (int column = 0; column < macs; ++column) {
+					float value = RSS_Matrix[row * macs + column];
+					if (value == NaNValue)
+						continue;
+					int n = next[column]++;
+					columnRows[n] = row;
+					columnValues[n] = value;
+				}
+			}
+		}
+
+		ColumnRows = columnRows;
+		ColumnValues = columnValues;
+		ColumnStart = columnStart;
+	}
+
+	/**
+	 * @return the RSS value of a location for a MAC Address column
 	 * */
-	public ArrayList<String> getOrderList() {
-		return OrderList;
+	public float getRSS(int location, int column) {
+		if (!sparse)
+			return RSS_Matrix[location * MacAdressList.size() + column];
+
+		int index = Arrays.binarySearch(RSS_Columns, RowStart[location], RowStart[location + 1], column);
+		return index < 0 ? NaNValue : RSS_Values[index];
 	}
 
 	/**
@@ -104,6 +296,73 @@ public class RadioMap {
 		return NaN;
 	}
 
+	public float getNaNValue() {
+		return NaNValue;
+	}
+
+	/**
+	 * @return true if the radio map was read from its binary cache
+	 * */
+	public boolean isFromBinary() {
+		return fromBinary;
+	}
+
+	/**
+	 * The binary cache file of a text radio map
+	 * */
+	public static File getBinaryFile(File inFile) {
+		String name = inFile.getName();
+		name = name.endsWith(".txt") ? name.replace(".txt", ".bin") : name + ".bin";
+		return new File(inFile.getParentFile(), name);
+	}
+
+	/**
+	 * Creates the binary cache of a text radio map, unless an up to date one
+	 * exists
+	 * 
+	 * @return true if the binary cache is up to date
+	 * */
+	public static boolean writeBinaryCache(File inFile) {
+		if (isBinaryCacheCurrent(inFile))
+			return true;
+		try {
+			RadioMap RM = new RadioMap(inFile);
+			if (!RM.isFromBinary())
+				RM.writeBinary(getBinaryFile(inFile), inFile);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks only the header of the binary cache, which records the length
+	 * and last modified time of the text radio map it was written from. Much
+	 * cheaper than reading or hashing the radio map.
+	 * 
+	 * @return true if the binary cache of the text radio map is up to date
+	 * */
+	public static boolean isBinaryCacheCurrent(File inFile) {
+		File binFile = getBinaryFile(inFile);
+		if (!binFile.isFile() || !inFile.isFile())
+			return false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(binFile));
+			return in.readInt() == BINARY_MAGIC && in.readInt() == BINARY_VERSION && in.readLong() == inFile.length() && in.readLong() == inFile.lastModified();
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Construct a radio map
 	 * 
@@ -119,11 +378,34 @@ public class RadioMap {
 		}
 
 		this.RadiomapMean_File = inFile;
-		this.OrderList.clear();
+
+		File binFile = getBinaryFile(inFile);
+		if (binFile.exists() && ConstructRadioMapBinary(binFile, inFile)) {
+			fromBinary = true;
+			return true;
+		}
+
+		return ConstructRadioMapText(inFile);
+	}
+
+	/**
+	 * Construct a radio map from its text file
+	 * 
+	 * @param inFile
+	 *            the radio map file to read
+	 * 
+	 * @return true if radio map constructed successfully, otherwise false
+	 * */
+	private boolean ConstructRadioMapText(File inFile) {
+
 		this.MacAdressList.clear();
-		this.LocationRSS_HashMap.clear();
+		this.LocationsCount = 0;
 
-		ArrayList<String> RSS_Values = null;
+		// Row of each location key, a repeated location replaces the old values
+		HashMap<String, Integer> LocationRows = new HashMap<String, Integer>();
+		// Values different from NaN of each row, packed when the file ends
+		ArrayList<int[]> RowColumns = new ArrayList<int[]>();
+		ArrayList<float[]> RowValues = new ArrayList<float[]>();
 		BufferedReader reader = null;
 		String line = null;
 		String[] temp = null;
@@ -139,6 +421,7 @@ public class RadioMap {
 			if (!temp[1].equals("NaN"))
 				return false;
 			NaN = temp[2];
+			NaNValue = Float.parseFloat(NaN.trim());
 			line = reader.readLine();
 
 			// Must exists
@@ -155,8 +438,18 @@ public class RadioMap {
 				return false;
 
 			// Store all Mac Addresses Heading Added
-			for (int i = startOfRSS; i < temp.length; ++i)
+			this.MacAdressIndex = new MacIndex(temp.length - startOfRSS);
+			for (int i = startOfRSS; i < temp.length; ++i) {
+				this.MacAdressIndex.put(temp[i], this.MacAdressList.size());
 				this.MacAdressList.add(temp[i]);
+			}
+
+			final int macs = this.MacAdressList.size();
+			int capacity = 64;
+			LocationX = new double[capacity];
+			LocationY = new double[capacity];
+			int[] columns = new int[macs];
+			float[] values = new float[macs];
 
 			while ((line = reader.readLine()) != null) {
 
@@ -169,22 +462,62 @@ public class RadioMap {
 				if (temp.length < startOfRSS)
 					return false;
 
+				// Equal number of MAC address and RSS Values
+				if (macs != temp.length - (startOfRSS - 1))
+					return false;
+
 				key = temp[0] + " " + temp[1];
 
-				RSS_Values = new ArrayList<String>();
+				int row;
+				Integer existing = LocationRows.get(key);
+				if (existing != null) {
+					row = existing;
+				} else {
+					row = LocationsCount++;
+					if (row == capacity) {
+						capacity *= 2;
+						LocationX = Arrays.copyOf(LocationX, capacity);
+						LocationY = Arrays.copyOf(LocationY, capacity);
+					}
+					LocationRows.put(key, row);
+					RowColumns.add(null);
+					RowValues.add(null);
+				}
 
-				for (int i = startOfRSS - 1; i < temp.length; ++i)
-					RSS_Values.add(temp[i]);
+				LocationX[row] = Double.parseDouble(temp[0].trim());
+				LocationY[row] = Double.parseDouble(temp[1].trim());
+
+				int entries = 0;
+				for (int i = startOfRSS - 1; i < temp.length; ++i) {
+					float value = Float.parseFloat(temp[i].trim());
+					if (value != NaNValue) {
+						columns[entries] = i - (startOfRSS - 1);
+						values[entries] = value;
+						entries++;
+					}
+				}
+				RowColumns.set(row, Arrays.copyOf(columns, entries));
+				RowValues.set(row, Arrays.copyOf(values, entries));
+			}
 
-				// Equal number of MAC address and RSS Values
-				if (this.MacAdressList.size() != RSS_Values.size())
-					return false;
+			LocationX = Arrays.copyOf(LocationX, LocationsCount);
+			LocationY = Arrays.copyOf(LocationY, LocationsCount);
 
-				this.LocationRSS_HashMap.put(key, RSS_Values);
+			RowStart = new int[LocationsCount + 1];
+			for (int row = 0; row < LocationsCount; ++row)
+				RowStart[row + 1] = RowStart[row] + RowColumns.get(row).length;
 
-				this.OrderList.add(key);
+			RSS_Columns = new int[RowStart[LocationsCount]];
+			RSS_Values = new float[RowStart[LocationsCount]];
+			for (int row = 0; row < LocationsCount; ++row) {
+				int[] rowColumns = RowColumns.get(row);
+				System.arraycopy(rowColumns, 0, RSS_Columns, RowStart[row], rowColumns.length);
+				System.arraycopy(RowValues.get(row), 0, RSS_Values, RowStart[row], rowColumns.length);
 			}
 
+			if (!sparse)
+				toDense();
+
 		} catch (Exception ex) {
 			return false;
 		} finally {
@@ -198,6 +531,224 @@ public class RadioMap {
 		return true;
 	}
 
+	/**
+	 * Expands the sparse rows to the dense matrix and drops them
+	 * */
+	private void toDense() {
+		final int macs = MacAdressList.size();
+		RSS_Matrix = new float[LocationsCount * macs];
+		Arrays.fill(RSS_Matrix, NaNValue);
+		for (int row = 0; row < LocationsCount; ++row) {
+			for (int i = RowStart[row]; i < RowStart[row + 1]; ++i)
+				RSS_Matrix[row * macs + RSS_Columns[i]] = RSS_Values[i];
+		}
+		RowStart = null;
+		RSS_Columns = null;
+		RSS_Values = null;
+	}
+
+	/**
+	 * Writes the radio map in the binary form read by ConstructRadioMapBinary.
+	 * The file is written next to the target and renamed, so a reader never
+	 * sees a partial file.
+	 * 
+	 * Layout (big endian): magic, version, length and last modified time of
+	 * the text file it caches, NaN (UTF) and its value, MAC Addresses count,
+	 * locations count, entries count, MAC Addresses (UTF), X of each location,
+	 * Y of each location, sparse row offsets, entry columns, entry RSS values.
+	 * 
+	 * @param outFile
+	 *            the binary file to write
+	 * @param inFile
+	 *            the text radio map the binary file caches
+	 * */
+	public void writeBinary(File outFile, File inFile) throws IOException {
+		final int macs = MacAdressList.size();
+
+		// Entries different from NaN of each row
+		int[] rowStart = RowStart;
+		if (!sparse) {
+			rowStart = new int[LocationsCount + 1];
+			for (int row = 0; row < LocationsCount; ++row) {
+				int entries = 0;
+				for (int i = row * macs; i < (row + 1) * macs; ++i) {
+					if (RSS_Matrix[i] != NaNValue)
+						entries++;
+				}
+				rowStart[row + 1] = rowStart[row] + entries;
+			}
+		}
+
+		File tmpFile = new File(outFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeLong(inFile.length());
+			out.writeLong(inFile.lastModified());
+			out.writeUTF(NaN);
+			out.writeFloat(NaNValue);
+			out.writeInt(macs);
+			out.writeInt(LocationsCount);
+			out.writeInt(rowStart[LocationsCount]);
+
+			for (int i = 0; i < macs; ++i)
+				out.writeUTF(MacAdressList.get(i));
+			for (int row = 0; row < LocationsCount; ++row)
+				out.writeDouble(LocationX[row]);
+			for (int row = 0; row < LocationsCount; ++row)
+				out.writeDouble(LocationY[row]);
+			for (int row = 0; row <= LocationsCount; ++row)
+				out.writeInt(rowStart[row]);
+
+			if (sparse) {
+				for (int i = 0; i < rowStart[LocationsCount]; ++i)
+					out.writeInt(RSS_Columns[i]);
+				for (int i = 0; i < rowStart[LocationsCount]; ++i)
+					out.writeFloat(RSS_Values[i]);
+			} else {
+				for (int i = 0; i < RSS_Matrix.length; ++i) {
+					if (RSS_Matrix[i] != NaNValue)
+						out.writeInt(i % macs);
+				}
+				for (int i = 0; i < RSS_Matrix.length; ++i) {
+					if (RSS_Matrix[i] != NaNValue)
+						out.writeFloat(RSS_Matrix[i]);
+				}
+			}
+
+			out.close();
+			out = null;
+
+			if (!tmpFile.renameTo(outFile)) {
+				outFile.delete();
+				if (!tmpFile.renameTo(outFile))
+					throw new IOException("Cannot rename " + tmpFile);
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	private static String readUTF(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			// Only ASCII is written for NaN and MAC Addresses
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Construct a radio map from its binary cache
+	 * 
+	 * @param binFile
+	 *            the binary file, written by writeBinary
+	 * @param inFile
+	 *            the text radio map, the binary file is stale if it does not
+	 *            match its length and last modified time
+	 * 
+	 * @return true if radio map constructed successfully, otherwise false
+	 * */
+	private boolean ConstructRadioMapBinary(File binFile, File inFile) {
+
+		FileInputStream in = null;
+
+		try {
+			in = new FileInputStream(binFile);
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != BINARY_MAGIC || buffer.getInt() != BINARY_VERSION)
+				return false;
+
+			if (buffer.getLong() != inFile.length() || buffer.getLong() != inFile.lastModified())
+				return false;
+
+			String NaN = readUTF(buffer);
+			float NaNValue = buffer.getFloat();
+			int macs = buffer.getInt();
+			int locations = buffer.getInt();
+			int entries = buffer.getInt();
+
+			if (macs < 0 || locations < 0 || entries < 0)
+				return false;
+
+			ArrayList<String> MacAdressList = new ArrayList<String>(macs);
+			MacIndex MacAdressIndex = new MacIndex(macs);
+			for (int i = 0; i < macs; ++i) {
+				String mac = readUTF(buffer);
+				MacAdressIndex.put(mac, i);
+				MacAdressList.add(mac);
+			}
+
+			// Fixed size tables
+			long remaining = 8L * locations * 2 + 4L * (locations + 1) + 8L * entries;
+			if (buffer.remaining() != remaining)
+				return false;
+
+			double[] LocationX = new double[locations];
+			double[] LocationY = new double[locations];
+			int[] RowStart = new int[locations + 1];
+			int[] RSS_Columns = new int[entries];
+			float[] RSS_Values = new float[entries];
+
+			buffer.asDoubleBuffer().get(LocationX);
+			buffer.position(buffer.position() + 8 * locations);
+			buffer.asDoubleBuffer().get(LocationY);
+			buffer.position(buffer.position() + 8 * locations);
+			buffer.asIntBuffer().get(RowStart);
+			buffer.position(buffer.position() + 4 * (locations + 1));
+			buffer.asIntBuffer().get(RSS_Columns);
+			buffer.position(buffer.position() + 4 * entries);
+			buffer.asFloatBuffer().get(RSS_Values);
+
+			if (RowStart[0] != 0 || RowStart[locations] != entries)
+				return false;
+			for (int i = 0; i < entries; ++i) {
+				if (RSS_Columns[i] < 0 || RSS_Columns[i] >= macs)
+					return false;
+			}
+
+			this.NaN = NaN;
+			this.NaNValue = NaNValue;
+			this.MacAdressList = MacAdressList;
+			this.MacAdressIndex = MacAdressIndex;
+			this.LocationsCount = locations;
+			this.LocationX = LocationX;
+			this.LocationY = LocationY;
+			this.RowStart = RowStart;
+			this.RSS_Columns = RSS_Columns;
+			this.RSS_Values = RSS_Values;
+
+			if (!sparse)
+				toDense();
+
+		} catch (Exception ex) {
+			return false;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+
+				}
+		}
+		return true;
+	}
+
 	public static Collection<WeightedLatLng> readRadioMapLocations(File inFile) {
 		class Weight {
 			String lat;
@@ -292,20 +843,19 @@ public class RadioMap {
 	}
 
 	public String toString() {
-		String str = "MAC Adresses: ";
-		ArrayList<String> temp;
-		for (int i = 0; i < MacAdressList.size(); ++i)
-			str += MacAdressList.get(i) + " ";
-
-		str += "\nLocations\n";
-		for (String location : LocationRSS_HashMap.keySet()) {
-			str += location + " ";
-			temp = LocationRSS_HashMap.get(location);
-			for (int i = 0; i < temp.size(); ++i)
-				str += temp.get(i) + " ";
-			str += "\n";
+		StringBuilder str = new StringBuilder("MAC Adresses: ");
+		final int macs = MacAdressList.size();
+		for (int i = 0; i < macs; ++i)
+			str.append(MacAdressList.get(i)).append(' ');
+
+		str.append("\nLocations\n");
+		for (int row = 0; row < LocationsCount; ++row) {
+			str.append(LocationX[row]).append(' ').append(LocationY[row]).append(' ');
+			for (int i = 0; i < macs; ++i)
+				str.append(getRSS(row, i)).append(' ');
+			str.append('\n');
 		}
 
-		return str;
+		return str.toString();
 	}
 }
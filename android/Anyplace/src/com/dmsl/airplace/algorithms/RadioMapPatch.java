@@ -0,0 +1,264 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The changes of a radio map from one version to the next, applied to the
+ * text radio map without downloading it again. A patch is a text file:
+ * 
+ * <pre>
+ * # NaN -110
+ * # PATCH 3 4
+ * # X, Y, HEADING, MAC1, MAC2, MAC3
+ * X, Y, HEADING, RSS1, RSS2, RSS3
+ * - X, Y
+ * </pre>
+ * 
+ * The MAC Addresses are those of the new version, the old ones first in the
+ * same order. A location line adds the location or replaces the location
+ * with the same X, Y. A line starting with - removes the location.
+ */
+public class RadioMapPatch {
+
+	private String NaN;
+	private String fromVersion;
+	private String toVersion;
+	private String header;
+	private int macs;
+	// New or changed locations by X, Y, in the order of the patch
+	private final LinkedHashMap<String, String> changed = new LinkedHashMap<String, String>();
+	private final ArrayList<String> removed = new ArrayList<String>();
+
+	private RadioMapPatch() {
+	}
+
+	/**
+	 * @return the location key X Y of a radio map line
+	 * */
+	private static String getKey(String line) {
+		String[] temp = line.replace(", ", " ").split(" ");
+		if (temp.length < 2)
+			return null;
+		return temp[0] + " " + temp[1];
+	}
+
+	private static int countFields(String line) {
+		return line.replace(", ", " ").split(" ").length;
+	}
+
+	/**
+	 * Reads a patch
+	 * 
+	 * @throws Exception
+	 *             if the patch is malformed
+	 * */
+	public static RadioMapPatch read(File inFile) throws Exception {
+		RadioMapPatch patch = new RadioMapPatch();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(inFile));
+
+			// # NaN -110
+			String line = reader.readLine();
+			String[] temp = line == null ? null : line.split(" ");
+			if (temp == null || temp.length < 3 || !temp[1].equals("NaN"))
+				throw new Exception("Radio map patch without NaN");
+			patch.NaN = temp[2];
+
+			// # PATCH 3 4
+			line = reader.readLine();
+			temp = line == null ? null : line.split(" ");
+			if (temp == null || temp.length < 4 || !temp[1].equals("PATCH"))
+				throw new Exception("Radio map patch without versions");
+			patch.fromVersion = temp[2];
+			patch.toVersion = temp[3];
+
+			// # X, Y, HEADING, MACs
+			line = reader.readLine();
+			if (line == null || !line.startsWith("# X"))
+				throw new Exception("Radio map patch without MAC Addresses");
+			patch.header = line;
+			patch.macs = countFields(line) - 4;
+
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().equals(""))
+					continue;
+
+				if (line.startsWith("-")) {
+					String key = getKey(line.substring(1).trim());
+					if (key == null)
+						throw new Exception("Radio map patch with malformed removal");
+					patch.removed.add(key);
+					patch.changed.remove(key);
+				} else {
+					if (countFields(line) != patch.macs + 3)
+						throw new Exception("Radio map patch with malformed location");
+					patch.changed.put(getKey(line), line);
+				}
+			}
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+
+				}
+		}
+		return patch;
+	}
+
+	public String getFromVersion() {
+		return fromVersion;
+	}
+
+	public String getToVersion() {
+		return toVersion;
+	}
+
+	/**
+	 * Applies the patch to a text radio map. The patched radio map is written
+	 * next to it and renamed over it, and its binary cache is dropped before.
+	 * 
+	 * @throws Exception
+	 *             if the radio map does not match the patch, it is then left
+	 *             unchanged
+	 * */
+	public void apply(File inFile) throws Exception {
+		File tmpFile = new File(inFile.getPath() + ".patch.tmp");
+		BufferedReader reader = null;
+		BufferedWriter writer = null;
+		try {
+			reader = new BufferedReader(new FileReader(inFile));
+			writer = new BufferedWriter(new FileWriter(tmpFile), 64 * 1024);
+
+			String line = reader.readLine();
+			String[] temp = line == null ? null : line.split(" ");
+			if (temp == null || temp.length < 3 || !temp[2].equals(NaN))
+				throw new Exception("Radio map patch of another NaN");
+
+			// The old MAC Addresses must start the new ones
+			line = reader.readLine();
+			if (line == null)
+				throw new Exception("Radio map without MAC Addresses");
+			String[] oldFields = line.replace(", ", " ").split(" ");
+			String[] newFields = header.replace(", ", " ").split(" ");
+			final int oldMacs = oldFields.length - 4;
+			if (oldMacs > macs)
+				throw new Exception("Radio map patch of other MAC Addresses");
+			for (int i = 4; i < oldFields.length; ++i) {
+				if (!oldFields[i].equals(newFields[i]))
+					throw new Exception("Radio map patch of other MAC Addresses");
+			}
+
+			StringBuilder padding = new StringBuilder();
+			for (int i = oldMacs; i < macs; ++i)
+				padding.append(", ").append(NaN);
+
+			writer.write("# NaN " + NaN);
+			writer.newLine();
+			writer.write(header);
+			writer.newLine();
+
+			Map<String, String> pending = new LinkedHashMap<String, String>(changed);
+			HashSet<String> drop = new HashSet<String>(removed);
+
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().equals(""))
+					continue;
+
+				String key = getKey(line);
+				if (drop.contains(key))
+					continue;
+
+				String replacement = pending.remove(key);
+				if (replacement != null) {
+					writer.write(replacement);
+				} else if (changed.containsKey(key)) {
+					// A repeated location already replaced
+					continue;
+				} else {
+					writer.write(line);
+					writer.write(padding.toString());
+				}
+				writer.newLine();
+			}
+
+			// New locations
+			for (String added : pending.values()) {
+				writer.write(added);
+				writer.newLine();
+			}
+
+			writer.close();
+			writer = null;
+			reader.close();
+			reader = null;
+
+			RadioMap.getBinaryFile(inFile).delete();
+			if (!tmpFile.renameTo(inFile)) {
+				inFile.delete();
+				if (!tmpFile.renameTo(inFile))
+					throw new IOException("Cannot replace radio map " + inFile.getName());
+			}
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+
+				}
+			if (writer != null)
+				try {
+					writer.close();
+				} catch (IOException e) {
+
+				}
+			tmpFile.delete();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Sliding window over the last scans, bounded by count and optionally by age,
+ * that keeps the running mean and variance of the RSS of every radio map
+ * column. Adding a scan updates only the columns of the scans entering and
+ * leaving the window, so it can run on every scan.
+ * 
+ * An AP is averaged over the scans of the window that heard it.
+ */
+public class ScanWindow {
+
+	public static final int DEFAULT_SCANS = 3;
+
+	private final RadioMap RM;
+	private final int maxScans;
+	private final long maxAge;
+
+	// Ring of the scans in the window, the oldest at head
+	private final long[] timestamps;
+	private final int[][] scanColumns;
+	private final float[][] scanValues;
+	private final int[] scanSizes;
+	private int head = 0;
+	private int scans = 0;
+
+	// Running sums per column. RSS values are whole dBm, so the sums stay
+	// exact when a scan leaves the window.
+	private final int[] heard;
+	private final double[] sum;
+	private final double[] sumSquares;
+	// Columns heard by at least one scan of the window, position[column] is
+	// the index of a column in active or -1
+	private final int[] active;
+	private final int[] position;
+	private int activeCount = 0;
+	// added[column] == stamp when the column is already in the scan added
+	private final int[] added;
+	private int stamp = 0;
+
+	/**
+	 * @param RM
+	 *            the radio map whose columns are averaged
+	 * @param maxScans
+	 *            the number of scans kept
+	 * @param maxAge
+	 *            scans older than this many milliseconds leave the window, 0
+	 *            to keep them
+	 * */
+	public ScanWindow(RadioMap RM, int maxScans, long maxAge) {
+		if (maxScans < 1)
+			throw new IllegalArgumentException("maxScans must be positive");
+
+		this.RM = RM;
+		this.maxScans = maxScans;
+		this.maxAge = maxAge;
+
+		final int columns = RM.getMacAdressCount();
+		timestamps = new long[maxScans];
+		scanColumns = new int[maxScans][];
+		scanValues = new float[maxScans][];
+		scanSizes = new int[maxScans];
+		heard = new int[columns];
+		sum = new double[columns];
+		sumSquares = new double[columns];
+		active = new int[columns];
+		position = new int[columns];
+		added = new int[columns];
+		Arrays.fill(position, -1);
+	}
+
+	public ScanWindow(RadioMap RM, int maxScans) {
+		this(RM, maxScans, 0);
+	}
+
+	public RadioMap getRadioMap() {
+		return RM;
+	}
+
+	/**
+	 * Adds a scan to the window, dropping the oldest scan if the window is
+	 * full and the scans older than the maximum age. If a MAC Address is
+	 * repeated in the scan its first record is used.
+	 * 
+	 * @param latestScanList
+	 *            the scan list of APs
+	 * @param timestamp
+	 *            the time of the scan in milliseconds
+	 * @return the number of APs of the scan heard in the radio map
+	 * */
+	public int add(ArrayList<LogRecord> latestScanList, long timestamp) {
+		final float NaNValue = RM.getNaNValue();
+
+		if (scans == maxScans)
+			removeOldest();
+		expire(timestamp);
+
+		final int slot = (head + scans) % maxScans;
+		if (scanColumns[slot] == null || scanColumns[slot].length < latestScanList.size()) {
+			scanColumns[slot] = new int[latestScanList.size()];
+			scanValues[slot] = new float[latestScanList.size()];
+		}
+		final int[] columns = scanColumns[slot];
+		final float[] values = scanValues[slot];
+		int size = 0;
+
+		if (++stamp == 0) {
+			Arrays.fill(added, 0);
+			stamp = 1;
+		}
+
+		for (int i = 0; i < latestScanList.size(); ++i) {
+			LogRecord temp_LR = latestScanList.get(i);
+			int column = RM.getMacAdressIndex(temp_LR.getMac());
+			float rss = temp_LR.getRss();
+
+			// Keep the first record of a repeated MAC Address
+			if (column == -1 || added[column] == stamp)
+				continue;
+			added[column] = stamp;
+
+			// An RSS equal to NaN scores as a missing MAC Address
+			if (rss == NaNValue)
+				continue;
+
+			columns[size] = column;
+			values[size] = rss;
+			size++;
+
+			if (heard[column]++ == 0) {
+				position[column] = activeCount;
+				active[activeCount++] = column;
+			}
+			sum[column] += rss;
+			sumSquares[column] += (double) rss * rss;
+		}
+
+		timestamps[slot] = timestamp;
+		scanSizes[slot] = size;
+		scans++;
+		return size;
+	}
+
+	/**
+	 * Drops the scans older than the maximum age
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * */
+	public void expire(long now) {
+		if (maxAge <= 0)
+			return;
+		while (scans > 0 && now - timestamps[head] > maxAge)
+			removeOldest();
+	}
+
+	private void removeOldest() {
+		final int[] columns = scanColumns[head];
+		final float[] values = scanValues[head];
+
+		for (int i = 0; i < scanSizes[head]; ++i) {
+			final int column = columns[i];
+			final float rss = values[i];
+
+			if (--heard[column] == 0) {
+				// Reset exactly, and swap the last active column in its place
+				sum[column] = 0;
+				sumSquares[column] = 0;
+				int last = active[--activeCount];
+				active[position[column]] = last;
+				position[last] = position[column];
+				position[column] = -1;
+			} else {
+				sum[column] -= rss;
+				sumSquares[column] -= (double) rss * rss;
+			}
+		}
+
+		head = (head + 1) % maxScans;
+		scans--;
+	}
+
+	public void clear() {
+		while (scans > 0)
+			removeOldest();
+	}
+
+	/**
+	 * @return the number of scans in the window
+	 * */
+	public int size() {
+		return scans;
+	}
+
+	/**
+	 * @return the number of columns heard by the scans of the window
+	 * */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * @return the i-th column heard by the scans of the window, in no order
+	 * */
+	public int getActiveColumn(int i) {
+		return active[i];
+	}
+
+	/**
+	 * @return the number of scans of the window that heard the column
+	 * */
+	public int getHeard(int column) {
+		return heard[column];
+	}
+
+	/**
+	 * @return the mean RSS of the column, or the NaN value if no scan heard
+	 *         it
+	 * */
+	public float getMean(int column) {
+		if (heard[column] == 0)
+			return RM.getNaNValue();
+		return (float) (sum[column] / heard[column]);
+	}
+
+	/**
+	 * @return the variance of the RSS of the column over the scans that heard
+	 *         it
+	 * */
+	public float getVariance(int column) {
+		final int n = heard[column];
+		if (n < 2)
+			return 0;
+		double mean = sum[column] / n;
+		return (float) Math.max(sumSquares[column] / n - mean * mean, 0);
+	}
+}
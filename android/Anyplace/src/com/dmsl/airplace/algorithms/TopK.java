@@ -0,0 +1,180 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.airplace.algorithms;
+
+/**
+ * Keeps the K locations with the smallest distances in a bounded max-heap of
+ * primitive arrays, so selecting the nearest neighbors of a scan costs
+ * O(N log K) and no object per location.
+ * 
+ * Equal distances are ordered by location row, which gives the same K
+ * locations as a stable sort of the rows by distance.
+ */
+public class TopK {
+
+	private final double[] distances;
+	private final int[] locations;
+	// Kept along with each location, e.g. its floor
+	private final int[] tags;
+	private int size = 0;
+	private boolean sorted = false;
+
+	public TopK(int K) {
+		if (K < 1)
+			throw new IllegalArgumentException("K must be positive");
+		distances = new double[K];
+		locations = new int[K];
+		tags = new int[K];
+	}
+
+	public void clear() {
+		size = 0;
+		sorted = false;
+	}
+
+	private boolean greater(int i, int j) {
+		return distances[i] > distances[j] || (distances[i] == distances[j] && locations[i] > locations[j]);
+	}
+
+	private void swap(int i, int j) {
+		double d = distances[i];
+		distances[i] = distances[j];
+		distances[j] = d;
+		int l = locations[i];
+		locations[i] = locations[j];
+		locations[j] = l;
+		int t = tags[i];
+		tags[i] = tags[j];
+		tags[j] = t;
+	}
+
+	private void siftDown(int i, int n) {
+		int child;
+		while ((child = 2 * i + 1) < n) {
+			if (child + 1 < n && greater(child + 1, child))
+				child++;
+			if (!greater(child, i))
+				return;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	/**
+	 * Offers a location. Must not be called after the first get without
+	 * clear.
+	 * 
+	 * @param distance
+	 *            the distance of the location from the scan
+	 * @param location
+	 *            the location row in the radio map
+	 * */
+	public void offer(double distance, int location) {
+		offer(distance, location, 0);
+	}
+
+	/**
+	 * Offers a location with a tag that is kept along with it
+	 * 
+	 * @see #offer(double, int)
+	 * */
+	public void offer(double distance, int location, int tag) {
+		if (sorted)
+			throw new IllegalStateException("TopK already read, clear it first");
+
+		if (size < distances.length) {
+			// Sift up the new leaf
+			int i = size++;
+			distances[i] = distance;
+			locations[i] = location;
+			tags[i] = tag;
+			while (i > 0 && greater(i, (i - 1) / 2)) {
+				swap(i, (i - 1) / 2);
+				i = (i - 1) / 2;
+			}
+		} else if (distance < distances[0] || (distance == distances[0] && location < locations[0])) {
+			// Replace the farthest of the K locations
+			distances[0] = distance;
+			locations[0] = location;
+			tags[0] = tag;
+			siftDown(0, size);
+		}
+	}
+
+	private void sort() {
+		// Heap sort in place, the farthest location goes last
+		for (int n = size - 1; n > 0; --n) {
+			swap(0, n);
+			siftDown(0, n);
+		}
+		sorted = true;
+	}
+
+	/**
+	 * @return the number of locations kept, at most K
+	 * */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the distance of the i-th nearest location
+	 * */
+	public double getDistance(int i) {
+		if (!sorted)
+			sort();
+		return distances[i];
+	}
+
+	/**
+	 * @return the radio map row of the i-th nearest location
+	 * */
+	public int getLocation(int i) {
+		if (!sorted)
+			sort();
+		return locations[i];
+	}
+
+	/**
+	 * @return the tag of the i-th nearest location
+	 * */
+	public int getTag(int i) {
+		if (!sorted)
+			sort();
+		return tags[i];
+	}
+}
@@ -75,6 +75,7 @@ public class AnyplaceAPI {
 	private final static String RADIO_DOWNLOAD_XY = "/anyplace/position/radio_download_floor";
 	private final static String RADIO_DOWNLOAD_BUID = "/anyplace/position/radio_by_building_floor";
 	private final static String RADIO_UPLOAD_URL_API = "/anyplace/position/radio_upload";
+	private final static String RADIO_UPLOAD_CHUNKED_URL_API = "/anyplace/position/radio_upload_chunked";
 
 	private final static String NAV_ROUTE_URL_API = "/anyplace/navigation/route";
 	private final static String NAV_ROUTE_XY_URL_API = "/anyplace/navigation/route_xy";
@@ -102,6 +103,10 @@ public class AnyplaceAPI {
 		return serverTesting + RADIO_UPLOAD_URL_API;
 	}
 
+	public static String getRadioUploadChunkedUrl() {
+		return serverTesting + RADIO_UPLOAD_CHUNKED_URL_API;
+	}
+
 	private static String getNavRouteUrl() {
 		return server + NAV_ROUTE_URL_API;
 	}
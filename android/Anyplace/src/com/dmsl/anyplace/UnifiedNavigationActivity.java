@@ -194,7 +194,7 @@ public class UnifiedNavigationActivity extends SherlockFragmentActivity implemen
     private MovementDetector movementDetector; // walking vs standing
     private SensorsStepCounter sensorsStepCounter; // step counter
 
-    private TrackerLogicPlusIMU lpTracker;
+    private AnyplaceTracker lpTracker;
     private Algo1Radiomap floorSelector;
     private String lastFloor;
 
@@ -224,7 +224,11 @@ public class UnifiedNavigationActivity extends SherlockFragmentActivity implemen
         movementDetector = new MovementDetector();
         sensorsMain.addListener(movementDetector);
         sensorsStepCounter = new SensorsStepCounter(getApplicationContext(), sensorsMain);
-        lpTracker = new TrackerLogicPlusIMU(movementDetector, sensorsMain, sensorsStepCounter);
+        // The tracker keeps its listeners, it is chosen once
+        if (getSharedPreferences(SHARED_PREFS_ANYPLACE, MODE_PRIVATE).getString("TrackingFilter", "IMU").equals("PF"))
+            lpTracker = new TrackerLogicParticleFilter(sensorsMain, sensorsStepCounter);
+        else
+            lpTracker = new TrackerLogicPlusIMU(movementDetector, sensorsMain, sensorsStepCounter);
         // lpTracker = new TrackerLogic(sensorsMain);
         floorSelector = new Algo1Radiomap(getApplicationContext());
 
@@ -437,11 +441,29 @@ public class UnifiedNavigationActivity extends SherlockFragmentActivity implemen
         SharedPreferences preferences = getSharedPreferences(SHARED_PREFS_ANYPLACE, MODE_PRIVATE);
         preferences.registerOnSharedPreferenceChangeListener(this);
         lpTracker.setAlgorithm(preferences.getString("TrackingAlgorithm", "WKNN"));
+        lpTracker.setSearchRadius(Double.parseDouble(preferences.getString("search_radius", "0")));
+        lpTracker.setIncrementalScoring(preferences.getBoolean("incremental_scoring", false));
+        setScanWindow(preferences);
+        setMedianLength(preferences);
+        floorSelector.setParallel(preferences.getBoolean("parallel_floor", false));
+        AnyplaceCache.setFetchParallelism(Integer.parseInt(preferences.getString("prefetch_parallelism", "3")));
 
         // handle the search intent
         handleIntent(getIntent());
     }
 
+    private void setScanWindow(SharedPreferences preferences) {
+        int scans = Integer.parseInt(preferences.getString("scan_window", "1"));
+        long maxAge = Long.parseLong(preferences.getString("scan_window_age", "0"));
+        lpTracker.setScanWindow(scans, maxAge, preferences.getBoolean("scan_window_weighted", false));
+    }
+
+    private void setMedianLength(SharedPreferences preferences) {
+        // Only the Kalman filter tracker smooths with a median
+        if (lpTracker instanceof TrackerLogicPlusIMU)
+            ((TrackerLogicPlusIMU) lpTracker).setMedianLength(Integer.parseInt(preferences.getString("median_length", "10")));
+    }
+
     private void focusUserLocation() {
         if (userMarker != null) {
             if (AnyPlaceSeachingHelper.getSearchType(mMap.getCameraPosition().zoom) == SearchTypes.OUTDOOR_MODE) {
@@ -2303,6 +2325,18 @@ public class UnifiedNavigationActivity extends SherlockFragmentActivity implemen
 
         if (key.equals("TrackingAlgorithm")) {
             lpTracker.setAlgorithm(sharedPreferences.getString("TrackingAlgorithm", "WKNN"));
+        } else if (key.equals("search_radius")) {
+            lpTracker.setSearchRadius(Double.parseDouble(sharedPreferences.getString("search_radius", "0")));
+        } else if (key.equals("incremental_scoring")) {
+            lpTracker.setIncrementalScoring(sharedPreferences.getBoolean("incremental_scoring", false));
+        } else if (key.equals("scan_window") || key.equals("scan_window_age") || key.equals("scan_window_weighted")) {
+            setScanWindow(sharedPreferences);
+        } else if (key.equals("median_length")) {
+            setMedianLength(sharedPreferences);
+        } else if (key.equals("parallel_floor")) {
+            floorSelector.setParallel(sharedPreferences.getBoolean("parallel_floor", false));
+        } else if (key.equals("prefetch_parallelism")) {
+            AnyplaceCache.setFetchParallelism(Integer.parseInt(sharedPreferences.getString("prefetch_parallelism", "3")));
         }
     }
 
@@ -92,6 +92,8 @@ public class AnyplaceCache implements Serializable {
 	}
 
 	private transient BackgroundFetch bf = null;
+	// Floor plans and radio maps downloaded at the same time
+	private static volatile int fetchParallelism = BackgroundFetch.DEFAULT_PARALLELISM;
 
 	private int selectedBuilding = 0;
 	// last fetched Buildings
@@ -222,17 +224,24 @@ public class AnyplaceCache implements Serializable {
 
 	// />POIS
 
+	/**
+	 * Downloads the floor plans and radio maps of a building. Floors restored
+	 * from an earlier run of the app are fetched again with the versions of
+	 * their radio maps and floor plans, so only the cached files of other
+	 * versions are downloaded. One request checks the whole building, and if
+	 * it fails, e.g. offline, the cached floors are used.
+	 */
 	public void fetchAllFloorsRadiomapsRun(BackgroundFetchListener l, final BuildingModel build) {
 
 		if (bf == null) {
 			l.onPrepareLongExecute();
-			bf = new BackgroundFetch(l, build);
+			bf = new BackgroundFetch(l, build, fetchParallelism, build.isFloorsLoaded() && !build.isFloorsFetched());
 			bf.run();
 		} else if (!bf.build.buid.equals(build.buid)) {
 			// Navigated to another building
 			bf.cancel();
 			l.onPrepareLongExecute();
-			bf = new BackgroundFetch(l, build);
+			bf = new BackgroundFetch(l, build, fetchParallelism, build.isFloorsLoaded() && !build.isFloorsFetched());
 			bf.run();
 		} else if (bf.status == Status.SUCCESS) {
 			// Previously finished for the current building
@@ -245,6 +254,14 @@ public class AnyplaceCache implements Serializable {
 		}
 	}
 
+	/**
+	 * Sets how many floor plans and radio maps fetchAllFloorsRadiomapsRun
+	 * downloads at the same time
+	 */
+	public static void setFetchParallelism(int parallelism) {
+		fetchParallelism = Math.max(parallelism, 1);
+	}
+
 	public void fetchAllFloorsRadiomapReset() {
 		if (bf != null)
 			bf = null;
@@ -38,6 +38,7 @@ package com.dmsl.anyplace.cache;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.os.AsyncTask;
@@ -51,23 +52,55 @@ import com.dmsl.anyplace.tasks.DownloadRadioMapTaskBuid;
 import com.dmsl.anyplace.tasks.FetchFloorPlanTask;
 import com.dmsl.anyplace.tasks.FetchFloorsByBuidTask.FetchFloorsByBuidTaskListener;
 
+/**
+ * Downloads the floor plans and radio maps of all the floors of a building, a
+ * few at a time. The selected floor goes first, then the floors nearest to
+ * it. Runs on the UI thread, where the download tasks call back.
+ */
 @SuppressWarnings("serial")
 class BackgroundFetch implements Serializable, Runnable {
 
+	// Downloads running at the same time
+	static final int DEFAULT_PARALLELISM = 3;
+
+	private static class Job {
+		final FloorModel floor;
+		final boolean radiomap;
+		AsyncTask<Void, Void, String> task;
+
+		Job(FloorModel floor, boolean radiomap) {
+			this.floor = floor;
+			this.radiomap = radiomap;
+		}
+	}
+
 	private BackgroundFetchListener l;
 	public BuildingModel build = null;
 
 	public Status status = Status.RUNNING;
 	private ErrorType error = ErrorType.EXCEPTION;
 
+	private final int parallelism;
+	// Fetch the floors restored from an earlier run again for their versions,
+	// the cached files of other versions are downloaded again
+	private final boolean revalidate;
 	private int progress_total = 0;
 	private int progress_current = 0;
 
-	private AsyncTask<Void, Void, String> currentTask;
+	// Downloads by priority, started in order
+	private final List<Job> jobs = new ArrayList<Job>();
+	private int nextJob = 0;
+	private final List<Job> runningJobs = new ArrayList<Job>();
 
 	BackgroundFetch(BackgroundFetchListener l, BuildingModel build) {
+		this(l, build, DEFAULT_PARALLELISM, false);
+	}
+
+	BackgroundFetch(BackgroundFetchListener l, BuildingModel build, int parallelism, boolean revalidate) {
 		this.l = l;
 		this.build = build;
+		this.parallelism = Math.max(parallelism, 1);
+		this.revalidate = revalidate;
 	}
 
 	@Override
@@ -77,120 +110,175 @@ class BackgroundFetch implements Serializable, Runnable {
 	
 	// Fetch Building Floors Details
 	private void fetchFloors() {
-		if (build.isFloorsLoaded() == false) {
+		if (build.isFloorsLoaded() == false || revalidate) {
 			build.loadFloors(new FetchFloorsByBuidTaskListener() {
 
 				@Override
 				public void onSuccess(String result, List<FloorModel> floors) {
-					progress_total = build.getFloors().size() * 2;
-					fetchAllFloorPlans(0);
+					fetchAll();
 				}
 
 				@Override
 				public void onErrorOrCancel(String result) {
+					if (status != Status.RUNNING)
+						return;
+					if (build.isFloorsLoaded()) {
+						// Offline, keep the cached floors and their files
+						fetchAll();
+						return;
+					}
 					status = Status.STOPPED;
 					l.onErrorOrCancel(result, error);
 
 				}
-			}, MyApplication.getAppContext(), false, false);
+			}, MyApplication.getAppContext(), revalidate, false);
 
 		} else {
-			progress_total = build.getFloors().size() * 2;
-			fetchAllFloorPlans(0);
+			fetchAll();
 		}
 	}
 
-	// Fetch Floor Maps
-	private void fetchAllFloorPlans(final int index) {
-
-		if (build.isFloorsLoaded()) {
-			if (index < build.getFloors().size()) {
-				FloorModel f = build.getFloors().get(index);
+	// Fetch Floor Maps and Radio Maps
+	private void fetchAll() {
+		if (status != Status.RUNNING)
+			return;
 
-				currentTask = new FetchFloorPlanTask(MyApplication.getAppContext(), build.buid, f.floor_number);
-				((FetchFloorPlanTask) currentTask).setCallbackInterface(new FetchFloorPlanTask.FetchFloorPlanTaskListener() {
+		if (!build.isFloorsLoaded()) {
+			status = Status.STOPPED;
+			l.onErrorOrCancel("Fetch Floor Plans Error", error);
+			return;
+		}
 
-					@Override
-					public void onSuccess(String result, File floor_plan_file) {
-						l.onProgressUpdate(++progress_current, progress_total);
-						fetchAllFloorPlans(index + 1);
-					}
+		List<FloorModel> floors = build.getFloors();
+		int selected = build.getSelectedFloorIndex();
+		if (selected < 0 || selected >= floors.size())
+			selected = 0;
+
+		// The selected floor, then the floors below and above by distance
+		jobs.clear();
+		for (int d = 0; d < floors.size(); ++d) {
+			if (selected - d >= 0)
+				addJobs(floors.get(selected - d));
+			if (d > 0 && selected + d < floors.size())
+				addJobs(floors.get(selected + d));
+		}
+		nextJob = 0;
+		progress_total = jobs.size();
+		progress_current = 0;
 
-					@Override
-					public void onErrorOrCancel(String result) {
-						status = Status.STOPPED;
-						l.onErrorOrCancel(result, error);
-					}
+		startJobs();
+	}
 
-					@Override
-					public void onPrepareLongExecute() {
-						// TODO Auto-generated method stub
+	private void addJobs(FloorModel f) {
+		jobs.add(new Job(f, false));
+		jobs.add(new Job(f, true));
+	}
 
-					}
-				});
-				currentTask.execute();
+	private void startJobs() {
+		while (status == Status.RUNNING && runningJobs.size() < parallelism && nextJob < jobs.size()) {
+			Job job = jobs.get(nextJob++);
+			job.task = job.radiomap ? fetchRadioMap(job) : fetchFloorPlan(job);
+			runningJobs.add(job);
 
+			int currentapiVersion = android.os.Build.VERSION.SDK_INT;
+			if (currentapiVersion >= android.os.Build.VERSION_CODES.HONEYCOMB) {
+				// Execute task parallel with others
+				job.task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 			} else {
-				fetchAllRadioMaps(0);
+				job.task.execute();
 			}
-		} else {
-			status = Status.STOPPED;
-			l.onErrorOrCancel("Fetch Floor Plans Error", error);
 		}
 
+		if (status == Status.RUNNING && runningJobs.isEmpty() && nextJob == jobs.size()) {
+			status = Status.SUCCESS;
+			l.onSuccess("Finished loading building");
+		}
+	}
+
+	private void onJobSuccess(Job job) {
+		runningJobs.remove(job);
+		if (status != Status.RUNNING)
+			return;
+
+		l.onProgressUpdate(++progress_current, progress_total);
+		startJobs();
 	}
 
-	// fetch All Radio Maps except from current floor(floor_number)
-	private void fetchAllRadioMaps(final int index) {
+	private void onJobError(Job job, String result) {
+		runningJobs.remove(job);
+		if (status != Status.RUNNING)
+			return;
 
-		if (build.getFloors() != null) {
-			if (index < build.getFloors().size()) {
-				FloorModel f = build.getFloors().get(index);
+		// One failed download fails the building
+		status = Status.STOPPED;
+		cancelTasks();
+		l.onErrorOrCancel(result, error);
+	}
 
-				AsyncTask<Void, Void, String> task = new DownloadRadioMapTaskBuid(new DownloadRadioMapTaskBuid.DownloadRadioMapListener() {
+	private AsyncTask<Void, Void, String> fetchFloorPlan(final Job job) {
+		FetchFloorPlanTask task = new FetchFloorPlanTask(MyApplication.getAppContext(), build.buid, job.floor.floor_number);
+		task.setVersion(job.floor.floor_plan_version);
+		task.setCallbackInterface(new FetchFloorPlanTask.FetchFloorPlanTaskListener() {
 
-					@Override
-					public void onSuccess(String result) {
-						l.onProgressUpdate(progress_current++, progress_total);
-						fetchAllRadioMaps(index + 1);
-					}
+			@Override
+			public void onSuccess(String result, File floor_plan_file) {
+				onJobSuccess(job);
+			}
 
-					@Override
-					public void onErrorOrCancel(String result) {
-						status = Status.STOPPED;
-						l.onErrorOrCancel(result, BackgroundFetchListener.ErrorType.EXCEPTION);
-					}
+			@Override
+			public void onErrorOrCancel(String result) {
+				onJobError(job, result);
+			}
 
-					@Override
-					public void onPrepareLongExecute() {
-						// TODO Auto-generated method stub
+			@Override
+			public void onPrepareLongExecute() {
+				// TODO Auto-generated method stub
 
-					}
+			}
+		});
+		return task;
+	}
 
-				}, MyApplication.getAppContext(), build.getLatitudeString(), build.getLongitudeString(), build.buid, f.floor_number, false);
+	private AsyncTask<Void, Void, String> fetchRadioMap(final Job job) {
+		DownloadRadioMapTaskBuid task = new DownloadRadioMapTaskBuid(new DownloadRadioMapTaskBuid.DownloadRadioMapListener() {
 
-				int currentapiVersion = android.os.Build.VERSION.SDK_INT;
-				if (currentapiVersion >= android.os.Build.VERSION_CODES.HONEYCOMB) {
-					// Execute task parallel with others
-					currentTask = task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-				} else {
-					currentTask = task.execute();
-				}
+			@Override
+			public void onSuccess(String result) {
+				onJobSuccess(job);
+			}
 
-			} else {
-				status = Status.SUCCESS;
-				l.onSuccess("Finished loading building");
+			@Override
+			public void onErrorOrCancel(String result) {
+				onJobError(job, result);
 			}
-		} else {
-			l.onErrorOrCancel("Fetch Floor Plans Error", error);
+
+			@Override
+			public void onPrepareLongExecute() {
+				// TODO Auto-generated method stub
+
+			}
+
+		}, MyApplication.getAppContext(), build.getLatitudeString(), build.getLongitudeString(), build.buid, job.floor.floor_number, false);
+		task.setVersion(job.floor.radiomap_version);
+		return task;
+	}
+
+	private void cancelTasks() {
+		List<Job> running = new ArrayList<Job>(runningJobs);
+		runningJobs.clear();
+		for (Job job : running) {
+			job.task.cancel(true);
 		}
 	}
 
 	public void cancel() {
 		error = BackgroundFetchListener.ErrorType.CANCELLED;
-		if (currentTask != null) {
-			currentTask.cancel(true);
-		}
+		if (status != Status.RUNNING)
+			return;
+
+		status = Status.STOPPED;
+		cancelTasks();
+		l.onErrorOrCancel("Loading building cancelled", error);
 	}
 
 	
@@ -0,0 +1,211 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The ok.txt marker of a downloaded radio map or floor plan. It records the
+ * server version of the file, with its size and SHA-1 hash, in the form
+ * ok;version:3;size:1024;sha1:...; so a cached file is used only if it is
+ * current and intact. Markers written before hold only the version.
+ */
+public class CacheMarker {
+
+	public static final String DEFAULT_VERSION = "0";
+
+	private final String version;
+	private final long size;
+	private final String sha1;
+
+	private CacheMarker(String version, long size, String sha1) {
+		this.version = version;
+		this.size = size;
+		this.sha1 = sha1;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the marker, or null if it does not exist or it is not valid
+	 */
+	public static CacheMarker read(File okfile) {
+		if (!okfile.exists())
+			return null;
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(okfile);
+			byte[] buffer = new byte[(int) Math.min(okfile.length(), 4096)];
+			int n = 0, read;
+			while (n < buffer.length && (read = in.read(buffer, n, buffer.length - n)) != -1)
+				n += read;
+
+			String[] fields = new String(buffer, 0, n, "UTF-8").trim().split(";");
+			if (fields.length == 0 || !fields[0].equals("ok"))
+				return null;
+
+			String version = DEFAULT_VERSION;
+			long size = -1;
+			String sha1 = null;
+			for (int i = 1; i < fields.length; ++i) {
+				int colon = fields[i].indexOf(':');
+				if (colon == -1)
+					continue;
+				String key = fields[i].substring(0, colon);
+				String value = fields[i].substring(colon + 1);
+				if (key.equals("version"))
+					version = value;
+				else if (key.equals("size"))
+					size = Long.parseLong(value);
+				else if (key.equals("sha1"))
+					sha1 = value;
+			}
+			return new CacheMarker(version, size, sha1);
+		} catch (IOException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the marker of a downloaded file, after the file is complete
+	 * 
+	 * @param version
+	 *            the server version of the file, null if unknown
+	 */
+	public static CacheMarker write(File okfile, File file, String version) throws IOException {
+		if (version == null || version.length() == 0)
+			version = DEFAULT_VERSION;
+
+		CacheMarker marker = new CacheMarker(version, file.length(), hash(file));
+
+		FileWriter out = new FileWriter(okfile);
+		try {
+			out.write("ok;version:" + marker.version + ";size:" + marker.size + ";sha1:" + marker.sha1 + ";");
+		} finally {
+			out.close();
+		}
+		return marker;
+	}
+
+	/**
+	 * @param serverVersion
+	 *            the version the server has, null or empty if unknown
+	 * @return false if the server has another version of the file
+	 */
+	public boolean isCurrent(String serverVersion) {
+		return serverVersion == null || serverVersion.length() == 0 || serverVersion.equals(version);
+	}
+
+	/**
+	 * Checks only the size of a cached file against the marker, cheap enough
+	 * for every use of the file. The hash is verified after a download.
+	 * 
+	 * @return false if the file is missing, its size changed or the marker
+	 *         has no size
+	 */
+	public boolean matchesSize(File file) {
+		return size >= 0 && file.isFile() && file.length() == size;
+	}
+
+	/**
+	 * Checks the size and hash of a cached file against the marker. A marker
+	 * without a hash is rewritten with the hash of the file.
+	 * 
+	 * @return false if the file is missing or it changed since downloaded
+	 */
+	public boolean verify(File okfile, File file) {
+		if (!file.isFile())
+			return false;
+
+		try {
+			if (sha1 == null) {
+				write(okfile, file, version);
+				return true;
+			}
+			return file.length() == size && sha1.equals(hash(file));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the SHA-1 of a file in hexadecimal
+	 */
+	public static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
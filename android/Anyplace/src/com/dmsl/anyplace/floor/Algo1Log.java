@@ -65,7 +65,12 @@ public class Algo1Log extends FloorSelector {
 		final int l1 = 10;
 
 		HashMap<String, Wifi> input = new HashMap<String, Wifi>();
-		ArrayList<Score> mostSimilar = new ArrayList<Score>(10);
+		FloorVote mostSimilar = new FloorVote(l1);
+
+		// Floor ids of the vote
+		HashMap<String, Integer> floorIds = new HashMap<String, Integer>();
+		ArrayList<String> floorNumbers = new ArrayList<String>();
+		int order = 0;
 
 		private GeoPoint bbox[] = null;
 		private Args args;
@@ -110,54 +115,19 @@ public class Algo1Log extends FloorSelector {
 		}
 
 		private void checkScore(double similarity, String floor) {
-
-			if (mostSimilar.size() == 0) {
-				mostSimilar.add(new Score(similarity, floor));
-				return;
-			}
-
-			for (int i = 0; i < mostSimilar.size(); i++) {
-				if (mostSimilar.get(i).similarity > similarity) {
-					mostSimilar.add(i, new Score(similarity, floor));
-					if (mostSimilar.size() > l1) {
-						mostSimilar.remove(mostSimilar.size() - 1);
-					}
-					return;
-				}
-			}
-
-			if (mostSimilar.size() < l1) {
-				mostSimilar.add(new Score(similarity, floor));
+			Integer id = floorIds.get(floor);
+			if (id == null) {
+				id = floorNumbers.size();
+				floorIds.put(floor, id);
+				floorNumbers.add(floor);
 			}
 
+			mostSimilar.offer(similarity, id, order++);
 		}
 
 		public String getFloor() {
-			// Floor -Score
-			HashMap<String, Integer> sum_floor_score = new HashMap<String, Integer>();
-
-			for (Score s : mostSimilar) {
-				Integer score = 1;
-				if (sum_floor_score.containsKey(s.floor)) {
-					score = sum_floor_score.get(s.floor) + 1;
-				}
-
-				sum_floor_score.put(s.floor, score);
-			}
-
-			String max_floor = "";
-			int max_score = 0;
-
-			for (String floor : sum_floor_score.keySet()) {
-				int score = sum_floor_score.get(floor);
-				if (max_score < score) {
-					max_score = score;
-					max_floor = floor;
-				}
-			}
-
-			return max_floor;
-
+			int floor = mostSimilar.getFloor();
+			return floor < 0 ? "" : floorNumbers.get(floor);
 		}
 
 		protected void process(String maxMac, ArrayList<String> values) {
@@ -178,17 +148,6 @@ public class Algo1Log extends FloorSelector {
 
 		}
 
-		private class Score {
-
-			double similarity;
-			String floor;
-
-			Score(double similarity, String floor) {
-				this.similarity = similarity;
-				this.floor = floor;
-			}
-		}
-
 		private class Wifi {
 			String mac;
 			Integer rss;
@@ -37,10 +37,14 @@
 package com.dmsl.anyplace.floor;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.util.Log;
@@ -54,6 +58,9 @@ public class Algo1Radiomap extends FloorSelector {
 	String[] files;
 	String[] floorNumbers;
 
+	// Parsed radio maps of the current building
+	private volatile FloorIndex index;
+
 	public Algo1Radiomap(final Context myContext) {
 		super(myContext);
 	}
@@ -73,177 +80,280 @@ public class Algo1Radiomap extends FloorSelector {
 				}
 			});
 
-			files = new String[file_names.length];
-			floorNumbers = new String[file_names.length];
+			// Floor ids follow the floor numbers, so a tied vote goes to the
+			// lowest floor whatever order the files are listed in
+			Arrays.sort(file_names, new Comparator<String>() {
+
+				@Override
+				public int compare(String lhs, String rhs) {
+					return compareFloors(lhs.substring(lhs.indexOf("fl_") + 3), rhs.substring(rhs.indexOf("fl_") + 3));
+				}
+			});
+
+			final String[] files = new String[file_names.length];
+			final String[] floorNumbers = new String[file_names.length];
 
 			for (int i = 0; i < file_names.length; i++) {
 				floorNumbers[i] = file_names[i].substring(file_names[i].indexOf("fl_") + 3);
 				files[i] = radiomaps.getAbsolutePath() + File.separator + file_names[i] + File.separator + AnyplaceUtils.getRadioMapFileName(floorNumbers[i]);
 			}
 
+			this.files = files;
+			this.floorNumbers = floorNumbers;
+			index = null;
+
+			// Parse off the UI thread, ahead of the next floor calculation
+			executorService.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					index = FloorIndex.build(files, floorNumbers);
+				}
+			});
+
 		} catch (Exception e) {
 			Log.e("Algo1Radiomap", e.getMessage());
 		}
 	}
 
-	protected String calculateFloor(Args args) throws Exception {
+	/**
+	 * Orders numbered floors by number, before the floors that are not
+	 * numbers
+	 */
+	static int compareFloors(String lhs, String rhs) {
+		Integer l = parseFloor(lhs);
+		Integer r = parseFloor(rhs);
+		if (l != null && r != null)
+			return l.compareTo(r);
+		if (l != null)
+			return -1;
+		if (r != null)
+			return 1;
+		return lhs.compareTo(rhs);
+	}
 
-		if (files==null || files.length == 0)
-			return "";
+	private static Integer parseFloor(String floor) {
+		try {
+			return Integer.valueOf(floor);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
 
-		GroupWifiFromRadiomap algo1 = new Algo1Help(args);
+	protected String calculateFloor(Args args) throws Exception {
 
-		for (int i = 0; i < files.length; i++) {
+		FloorIndex index = this.index;
+		if (index == null || index.size() == 0)
+			return "";
 
-			algo1.run(new FileInputStream(files[i]), floorNumbers[i]);
+		Algo1Help algo1 = new Algo1Help(args, index);
+		if (isParallel()) {
+			algo1.runParallel(getWorkers());
+		} else {
+			algo1.run();
 		}
 
+		if (args.isAboard())
+			return null;
+
 		return algo1.getFloor();
 	}
 
-	private static class Algo1Help extends GroupWifiFromRadiomap {
+	private static class Algo1Help {
 
 		final double a = 10;
 		final double b = 10;
 		final int l1 = 10;
 
-		HashMap<String, Wifi> input = new HashMap<String, Wifi>();
-		ArrayList<Score> mostSimilar = new ArrayList<Score>(10);
+		FloorVote mostSimilar = new FloorVote(l1);
 
 		private GeoPoint bbox[] = null;
 		private Args args;
+		private FloorIndex index;
+
+		// Scan RSS by building MAC address id
+		private int[] input;
+		private boolean[] heard;
 
-		public Algo1Help(Args args) {
+		public Algo1Help(Args args, FloorIndex index) {
 			super();
 
 			this.args = args;
+			this.index = index;
 			if (!(args.dlat == 0 || args.dlong == 0)) {
 				bbox = GeoPoint.getGeoBoundingBox(args.dlat, args.dlong, 100);
 			}
 
+			input = new int[index.getMacCount()];
+			heard = new boolean[input.length];
 			for (LogRecord listenObject : args.latestScanList) {
-				input.put(listenObject.getBssid(), new Wifi(listenObject.getBssid(), listenObject.getRss()));
+				int id = index.getMacId(listenObject.getBssid());
+				if (id >= 0) {
+					input[id] = listenObject.getRss();
+					heard[id] = true;
+				}
 			}
 		}
 
-		private double compare(String[] macs, String line) {
+		/**
+		 * Scores a share of the candidates of the parent scan
+		 */
+		private Algo1Help(Algo1Help parent) {
+			this.args = parent.args;
+			this.index = parent.index;
+			this.bbox = parent.bbox;
+			this.input = parent.input;
+			this.heard = parent.heard;
+		}
 
-			// # Timestamp, X, Y, HEADING, MAC Address of AP, RSS, FLOOR
+		private double compare(int row) {
 
-			String[] segs = line.split(", ");
+			int[] macs = index.getMacs(row);
+			int[] rss = index.getRss(row);
 			long score = 0;
 			int nNCM = 0;
 			int nCM = 0;
 
-			for (int i = 3; i < segs.length; i++) {
-				if (!segs[i].equals(NaN)) {
-					if (input.containsKey(macs[i])) {
-						Integer diff = (Integer.parseInt(segs[i].split("\\.")[0]) - input.get(macs[i]).rss);
-						score += diff * diff;
+			for (int i = 0; i < macs.length; i++) {
+				if (heard[macs[i]]) {
+					int diff = rss[i] - input[macs[i]];
+					score += diff * diff;
 
-						nCM++;
-					} else {
-						nNCM++;
-					}
+					nCM++;
+				} else {
+					nNCM++;
 				}
 			}
 
 			return Math.sqrt(score) - a * nCM + b * nNCM;
 		}
 
-		private void checkScore(double similarity, String floor) {
-
-			if (mostSimilar.size() == 0) {
-				mostSimilar.add(new Score(similarity, floor));
-				return;
-			}
+		private void checkScore(double similarity, int row) {
+			mostSimilar.offer(similarity, index.getFloorId(row), row);
+		}
 
-			for (int i = 0; i < mostSimilar.size(); i++) {
-				if (mostSimilar.get(i).similarity > similarity) {
-					mostSimilar.add(i, new Score(similarity, floor));
-					if (mostSimilar.size() > l1) {
-						mostSimilar.remove(mostSimilar.size() - 1);
-					}
-					return;
-				}
-			}
+		public String getFloor() {
+			int floor = mostSimilar.getFloor();
+			return floor < 0 ? "" : index.getFloorNumber(floor);
+		}
 
-			if (mostSimilar.size() < l1) {
-				mostSimilar.add(new Score(similarity, floor));
+		/**
+		 * Visits the rows whose strongest access point is one of the two
+		 * strongest of the scan, in file order
+		 */
+		public void run() {
+			for (int row : getCandidates()) {
+				process(row);
 			}
-
 		}
 
-		public String getFloor() {
-			// Floor -Score
-			HashMap<String, Integer> sum_floor_score = new HashMap<String, Integer>();
+		/**
+		 * Scores the candidates of each floor on the workers, then merges the
+		 * top-L of every floor. The global top-L and its ties are the same as
+		 * those of run().
+		 */
+		public void runParallel(ExecutorService workers) throws Exception {
+			int[] rows = getCandidates();
+
+			int[] counts = new int[index.getFloorCount()];
+			int floors = 0;
+			for (int row : rows) {
+				if (counts[index.getFloorId(row)]++ == 0)
+					floors++;
+			}
 
-			for (Score s : mostSimilar) {
-				Integer score = 1;
-				if (sum_floor_score.containsKey(s.floor)) {
-					score = sum_floor_score.get(s.floor) + 1;
-				}
+			if (floors < 2) {
+				run();
+				return;
+			}
 
-				sum_floor_score.put(s.floor, score);
+			int[][] floorRows = new int[counts.length][];
+			for (int i = 0; i < counts.length; i++) {
+				floorRows[i] = new int[counts[i]];
+				counts[i] = 0;
+			}
+			for (int row : rows) {
+				int floor = index.getFloorId(row);
+				floorRows[floor][counts[floor]++] = row;
 			}
 
-			String max_floor = "";
-			int max_score = 0;
+			ArrayList<Future<FloorVote>> futures = new ArrayList<Future<FloorVote>>(floors);
+			for (final int[] part : floorRows) {
+				if (part.length == 0)
+					continue;
+
+				final Algo1Help help = new Algo1Help(this);
+				futures.add(workers.submit(new Callable<FloorVote>() {
+
+					@Override
+					public FloorVote call() {
+						for (int row : part) {
+							if (args.isAboard())
+								break;
+							help.process(row);
+						}
+						return help.mostSimilar;
+					}
+				}));
+			}
 
-			for (String floor : sum_floor_score.keySet()) {
-				int score = sum_floor_score.get(floor);
-				if (max_score < score) {
-					max_score = score;
-					max_floor = floor;
+			try {
+				for (Future<FloorVote> future : futures) {
+					mostSimilar.offerAll(future.get());
 				}
+			} catch (ExecutionException e) {
+				for (Future<FloorVote> future : futures) {
+					future.cancel(true);
+				}
+				throw e;
 			}
-
-			return max_floor;
-
 		}
 
-		protected void process(String maxMac, String[] macs, String line) {
-
-			// # X, Y, HEADING, 00:16:b6:ee:00:7f, d4:d7:48:d8:28:30
-			if (maxMac.equals(args.firstMac.getBssid()) || (args.secondMac != null && maxMac.equals(args.secondMac.getBssid()))) {
-
-				if (bbox == null) {
-
-					double similarity = compare(macs, line);
-					checkScore(similarity, floor);
+		/**
+		 * @return the rows whose strongest access point is one of the two
+		 *         strongest of the scan, in file order
+		 */
+		private int[] getCandidates() {
+			int[] first = getRows(args.firstMac);
+			int[] second = getRows(args.secondMac);
+			if (first == second)
+				return first;
+
+			int[] rows = new int[first.length + second.length];
+			int i = 0;
+			int j = 0;
+			int n = 0;
+			while (i < first.length || j < second.length) {
+				if (j == second.length || (i < first.length && first[i] < second[j])) {
+					rows[n++] = first[i++];
 				} else {
-					String[] segs = line.split(",");
-					double x = Double.parseDouble(segs[0]);
-					double y = Double.parseDouble(segs[1]);
-
-					if (x > bbox[0].dlat && x < bbox[1].dlat && y > bbox[0].dlon && y < bbox[1].dlon) {
-						double similarity = compare(macs, line);
-						checkScore(similarity, floor);
-					}
+					rows[n++] = second[j++];
 				}
 			}
+			return rows;
+		}
 
+		private int[] getRows(LogRecord mac) {
+			int id = mac == null ? -1 : index.getMacId(mac.getBssid());
+			return id < 0 ? new int[0] : index.getRows(id);
 		}
 
-		private class Score {
+		protected void process(int row) {
 
-			double similarity;
-			String floor;
+			if (bbox == null) {
 
-			Score(double similarity, String floor) {
-				this.similarity = similarity;
-				this.floor = floor;
-			}
-		}
+				double similarity = compare(row);
+				checkScore(similarity, row);
+			} else {
+				double x = index.getX(row);
+				double y = index.getY(row);
 
-		private class Wifi {
-			String mac;
-			Integer rss;
-
-			Wifi(String mac, Integer rss) {
-				this.mac = mac;
-				this.rss = rss;
+				if (x > bbox[0].dlat && x < bbox[1].dlat && y > bbox[0].dlon && y < bbox[1].dlon) {
+					double similarity = compare(row);
+					checkScore(similarity, row);
+				}
 			}
+
 		}
 	}
 }
@@ -0,0 +1,262 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.floor;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * The reference points of every floor radio map of a building, parsed once
+ * and bucketed by the strongest access point of each point. A scan then
+ * only visits the points whose strongest access point it heard the most.
+ */
+class FloorIndex {
+
+	private final String[] floors;
+
+	// Building wide MAC address ids
+	private final HashMap<String, Integer> macIds = new HashMap<String, Integer>();
+
+	private int count = 0;
+	private int[] rowFloor = new int[64];
+	private double[] rowX = new double[64];
+	private double[] rowY = new double[64];
+	private int[][] rowMacs = new int[64][];
+	private int[][] rowRss = new int[64][];
+
+	// Rows in file order, indexed by the id of their strongest MAC address
+	private int[][] buckets;
+
+	private FloorIndex(String[] floors) {
+		this.floors = floors;
+	}
+
+	/**
+	 * Reads the radio map of every floor. A floor whose radio map can not be
+	 * read is left out of the index.
+	 */
+	static FloorIndex build(String[] files, String[] floors) {
+		FloorIndex index = new FloorIndex(floors);
+		ArrayList<ArrayList<Integer>> strongest = new ArrayList<ArrayList<Integer>>();
+
+		for (int i = 0; i < files.length; i++) {
+			int first = index.count;
+			try {
+				index.read(files[i], i, strongest);
+			} catch (Exception e) {
+				Log.e("FloorIndex", files[i] + ": " + e.getMessage());
+				index.count = first;
+				for (ArrayList<Integer> rows : strongest) {
+					while (rows.size() > 0 && rows.get(rows.size() - 1) >= first)
+						rows.remove(rows.size() - 1);
+				}
+			}
+		}
+
+		index.buckets = new int[index.macIds.size()][];
+		for (int i = 0; i < index.buckets.length; i++) {
+			ArrayList<Integer> rows = i < strongest.size() ? strongest.get(i) : null;
+			int[] bucket = new int[rows == null ? 0 : rows.size()];
+			for (int j = 0; j < bucket.length; j++)
+				bucket[j] = rows.get(j);
+			index.buckets[i] = bucket;
+		}
+
+		return index;
+	}
+
+	private void read(String file, int floor, ArrayList<ArrayList<Integer>> strongest) throws IOException {
+		BufferedReader bf = null;
+		try {
+			bf = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+			String line;
+
+			// # NaN -110
+			line = bf.readLine();
+			if (line == null)
+				return;
+			String NaN = line.split(" ")[2];
+
+			// # X, Y, HEADING, 00:16:b6:ee:00:7f, d4:d7:48:d8:28:30
+			line = bf.readLine();
+			if (line == null)
+				return;
+			String[] macs = line.split(", ");
+			int[] ids = new int[macs.length];
+			for (int i = 3; i < macs.length; i++) {
+				Integer id = macIds.get(macs[i]);
+				if (id == null) {
+					id = macIds.size();
+					macIds.put(macs[i], id);
+					strongest.add(new ArrayList<Integer>());
+				}
+				ids[i] = id;
+			}
+
+			int[] columns = new int[macs.length];
+			int[] values = new int[macs.length];
+
+			while ((line = bf.readLine()) != null) {
+
+				String[] segs = line.split(", ");
+				int n = 0;
+				int maxMac = -1;
+				int maxRss = Integer.MIN_VALUE;
+
+				for (int i = 3; i < segs.length && i < macs.length; i++) {
+					if (!segs[i].equals(NaN)) {
+						String value = segs[i];
+						int dot = value.indexOf('.');
+						int rss = Integer.parseInt(dot < 0 ? value : value.substring(0, dot));
+
+						if (rss > maxRss) {
+							maxRss = rss;
+							maxMac = ids[i];
+						}
+						columns[n] = ids[i];
+						values[n] = rss;
+						n++;
+					}
+				}
+
+				// Never the strongest access point of a scan
+				if (maxMac < 0)
+					continue;
+
+				if (count == rowFloor.length)
+					grow();
+
+				int[] rm = new int[n];
+				int[] rr = new int[n];
+				System.arraycopy(columns, 0, rm, 0, n);
+				System.arraycopy(values, 0, rr, 0, n);
+
+				rowFloor[count] = floor;
+				rowX[count] = Double.parseDouble(segs[0]);
+				rowY[count] = Double.parseDouble(segs[1]);
+				rowMacs[count] = rm;
+				rowRss[count] = rr;
+				strongest.get(maxMac).add(count);
+				count++;
+			}
+		} finally {
+			try {
+				if (bf != null)
+					bf.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void grow() {
+		int length = rowFloor.length * 2;
+		int[] floor = new int[length];
+		double[] x = new double[length];
+		double[] y = new double[length];
+		int[][] macs = new int[length][];
+		int[][] rss = new int[length][];
+		System.arraycopy(rowFloor, 0, floor, 0, count);
+		System.arraycopy(rowX, 0, x, 0, count);
+		System.arraycopy(rowY, 0, y, 0, count);
+		System.arraycopy(rowMacs, 0, macs, 0, count);
+		System.arraycopy(rowRss, 0, rss, 0, count);
+		rowFloor = floor;
+		rowX = x;
+		rowY = y;
+		rowMacs = macs;
+		rowRss = rss;
+	}
+
+	int size() {
+		return count;
+	}
+
+	int getMacCount() {
+		return buckets.length;
+	}
+
+	/**
+	 * @return the building wide id of the MAC address or -1 if no floor heard
+	 *         it
+	 */
+	int getMacId(String mac) {
+		Integer id = macIds.get(mac);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return the rows whose strongest access point is the MAC address id, in
+	 *         file order
+	 */
+	int[] getRows(int macId) {
+		return buckets[macId];
+	}
+
+	int getFloorCount() {
+		return floors.length;
+	}
+
+	int getFloorId(int row) {
+		return rowFloor[row];
+	}
+
+	String getFloorNumber(int floorId) {
+		return floors[floorId];
+	}
+
+	double getX(int row) {
+		return rowX[row];
+	}
+
+	double getY(int row) {
+		return rowY[row];
+	}
+
+	int[] getMacs(int row) {
+		return rowMacs[row];
+	}
+
+	int[] getRss(int row) {
+		return rowRss[row];
+	}
+}
@@ -117,6 +117,10 @@ public abstract class FloorSelector {
 	CalculateFloorTask task;
 	Future future;
 
+	// Parallel floor scoring
+	private volatile boolean parallel = false;
+	private ExecutorService workers;
+
 	// WiFi manager
 	private SimpleWifiManager wifi;
 	// WiFi Receiver
@@ -181,6 +185,7 @@ public abstract class FloorSelector {
 				args.dlat = dlat;
 				args.dlong = dlong;
 				args.latestScanList = latestScanList;
+				args.task = this;
 
 				final String floor = calculateFloor(args);
 
@@ -356,6 +361,25 @@ public abstract class FloorSelector {
 		}
 	}
 
+	/**
+	 * Score the candidates of each floor on a pool bounded by the number of
+	 * cores instead of on the floor calculation thread alone
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		}
+		return workers;
+	}
+
 	public void Start(String dlat, String dlong) {
 		Start(Double.parseDouble(dlat), Double.parseDouble(dlong));
 	}
@@ -366,6 +390,10 @@ public abstract class FloorSelector {
 		timer.purge();
 		wifi.unregisterScan(receiverWifi);
 		executorService.shutdown();
+		synchronized (this) {
+			if (workers != null)
+				workers.shutdownNow();
+		}
 	}
 
 	// Network Error or 0 records return in server
@@ -378,6 +406,14 @@ public abstract class FloorSelector {
 		LogRecord secondMac;
 		double dlat;
 		double dlong;
+		CalculateFloorTask task;
+
+		/**
+		 * @return true if the floor calculation was stopped
+		 */
+		boolean isAboard() {
+			return task != null && task.aboard;
+		}
 	}
 
 }
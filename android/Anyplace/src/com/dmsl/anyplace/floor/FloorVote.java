@@ -0,0 +1,129 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Authors: C. Laoudias, G.Larkou, G. Constantinou, M. Constantinides, S. Nicolaou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.floor;
+
+import com.dmsl.airplace.algorithms.TopK;
+
+/**
+ * The L reference points most similar to a scan, kept in a TopK heap with
+ * their floors as tags, and the vote of their floors. Floors are ids given
+ * by the caller.
+ * 
+ * Equal similarities are ordered by the order of the point, which gives the
+ * same L points as inserting them one by one in that order.
+ */
+class FloorVote {
+
+	private final TopK mostSimilar;
+
+	// Votes per floor id
+	private int[] votes = new int[8];
+
+	FloorVote(int L) {
+		if (L < 1)
+			throw new IllegalArgumentException("L must be positive");
+		mostSimilar = new TopK(L);
+	}
+
+	void clear() {
+		mostSimilar.clear();
+	}
+
+	/**
+	 * Offers a reference point, lower similarity is better. Must not be
+	 * called after the vote is read without clear.
+	 * 
+	 * @param similarity
+	 *            the distance of the point from the scan
+	 * @param floor
+	 *            the floor id of the point
+	 * @param order
+	 *            the position of the point in its radio map or log
+	 */
+	void offer(double similarity, int floor, int order) {
+		mostSimilar.offer(similarity, order, floor);
+	}
+
+	/**
+	 * Offers every point kept by another vote
+	 */
+	void offerAll(FloorVote other) {
+		TopK points = other.mostSimilar;
+		for (int i = 0; i < points.size(); i++) {
+			offer(points.getDistance(i), points.getTag(i), points.getLocation(i));
+		}
+	}
+
+	/**
+	 * @return the number of points kept, at most L
+	 */
+	int size() {
+		return mostSimilar.size();
+	}
+
+	/**
+	 * @return the floor id with the most points, the lowest id on a tie, or
+	 *         -1 if no point was offered
+	 */
+	int getFloor() {
+		final int size = mostSimilar.size();
+		int max = -1;
+		for (int i = 0; i < size; i++) {
+			if (mostSimilar.getTag(i) > max)
+				max = mostSimilar.getTag(i);
+		}
+		if (max < 0)
+			return -1;
+
+		if (votes.length <= max)
+			votes = new int[Math.max(max + 1, votes.length * 2)];
+		for (int i = 0; i <= max; i++)
+			votes[i] = 0;
+		for (int i = 0; i < size; i++)
+			votes[mostSimilar.getTag(i)]++;
+
+		int floor = -1;
+		int maxVotes = 0;
+		for (int i = 0; i <= max; i++) {
+			if (maxVotes < votes[i]) {
+				maxVotes = votes[i];
+				floor = i;
+			}
+		}
+		return floor;
+	}
+}
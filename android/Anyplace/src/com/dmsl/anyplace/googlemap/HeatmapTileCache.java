@@ -0,0 +1,275 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys, Lambros Petrou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.googlemap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.anyplace.utils.NetworkUtils;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import com.google.maps.android.geometry.Point;
+import com.google.maps.android.heatmaps.HeatmapTileProvider;
+import com.google.maps.android.heatmaps.WeightedLatLng;
+
+/**
+ * Heatmap of the locations of a radio map, with its tiles cached in memory
+ * and on disk next to the radio map, in a directory of the radio map
+ * version. The disk tiles of other versions are dropped when the radio map
+ * changes, and a renderer of an old version cannot write into the new one.
+ * Tiles are rendered once, by prerender for the zoom levels of a floor or on
+ * the first request, so panning and zooming do not convolve the heatmap
+ * again.
+ */
+public class HeatmapTileCache implements TileProvider {
+
+	// Zoom levels a floor is viewed at
+	public static final int MIN_ZOOM = 17;
+	public static final int MAX_ZOOM = 21;
+
+	// Size of the tiles of HeatmapTileProvider
+	private static final int TILE_DIM = 512;
+	private static final int MEMORY_CACHE_SIZE = 4 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final File radiomap;
+	// Tiles of the radio map version
+	private final File dir;
+
+	// Tile images by zoom, x and y, an empty image for no tile
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+	private int memorySize = 0;
+
+	// Built on the first tile that is not cached
+	private HeatmapTileProvider provider;
+	private Collection<WeightedLatLng> locations;
+	private boolean loaded = false;
+
+	private volatile boolean cancelled = false;
+
+	public HeatmapTileCache(File radiomap) {
+		this.radiomap = radiomap;
+		File root = new File(radiomap.getParentFile(), radiomap.getName() + ".heatmap");
+		// Changes with every radio map written
+		this.dir = new File(root, radiomap.length() + "-" + radiomap.lastModified());
+
+		if (!dir.exists()) {
+			clearDisk(root);
+			if (!dir.mkdirs())
+				Log.d("HeatmapTileCache", "Cannot create " + dir);
+		}
+	}
+
+	public File getRadioMap() {
+		return radiomap;
+	}
+
+	@Override
+	public Tile getTile(int x, int y, int zoom) {
+		byte[] image = getImage(x, y, zoom);
+		if (image == null || image.length == 0)
+			return NO_TILE;
+		return new Tile(TILE_DIM, TILE_DIM, image);
+	}
+
+	private byte[] getImage(int x, int y, int zoom) {
+		String key = "z" + zoom + "x" + x + "y" + y;
+
+		synchronized (memory) {
+			byte[] image = memory.get(key);
+			if (image != null)
+				return image;
+		}
+
+		File tileFile = new File(dir, key + ".png");
+		byte[] image = readFile(tileFile);
+		if (image == null) {
+			HeatmapTileProvider provider = getProvider();
+			if (provider == null)
+				return null;
+
+			Tile tile = provider.getTile(x, y, zoom);
+			image = (tile == NO_TILE || tile == null) ? EMPTY : tile.data;
+			try {
+				writeFile(tileFile, image);
+			} catch (IOException e) {
+				Log.d("HeatmapTileCache", "Cannot write tile: " + e.getMessage());
+			}
+		}
+
+		synchronized (memory) {
+			if (memory.put(key, image) == null)
+				memorySize += image.length;
+			Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+			while (memorySize > MEMORY_CACHE_SIZE && it.hasNext()) {
+				memorySize -= it.next().getValue().length;
+				it.remove();
+			}
+		}
+		return image;
+	}
+
+	private synchronized HeatmapTileProvider getProvider() {
+		if (!loaded) {
+			loaded = true;
+			locations = RadioMap.readRadioMapLocations(radiomap);
+			if (locations != null && !locations.isEmpty())
+				provider = new HeatmapTileProvider.Builder().weightedData(locations).build();
+		}
+		return provider;
+	}
+
+	/**
+	 * Renders the tiles of the radio map locations at some zoom levels, the
+	 * tiles already on disk are kept. Runs until done or cancelled.
+	 */
+	public void prerender(int minZoom, int maxZoom) {
+		File complete = new File(dir, "complete_" + minZoom + "_" + maxZoom);
+		if (complete.exists())
+			return;
+
+		if (getProvider() == null)
+			return;
+
+		double minX = 1, maxX = 0, minY = 1, maxY = 0;
+		for (WeightedLatLng w : locations) {
+			Point p = w.getPoint();
+			minX = Math.min(minX, p.x);
+			maxX = Math.max(maxX, p.x);
+			minY = Math.min(minY, p.y);
+			maxY = Math.max(maxY, p.y);
+		}
+
+		for (int zoom = minZoom; zoom <= maxZoom; ++zoom) {
+			int tiles = 1 << zoom;
+			// One more tile around, the heatmap spreads past the locations
+			int fromX = Math.max((int) (minX * tiles) - 1, 0);
+			int toX = Math.min((int) (maxX * tiles) + 1, tiles - 1);
+			int fromY = Math.max((int) (minY * tiles) - 1, 0);
+			int toY = Math.min((int) (maxY * tiles) + 1, tiles - 1);
+
+			for (int x = fromX; x <= toX; ++x) {
+				for (int y = fromY; y <= toY; ++y) {
+					if (cancelled)
+						return;
+					getImage(x, y, zoom);
+				}
+			}
+		}
+
+		try {
+			writeFile(complete, EMPTY);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Stops prerender, the cached tiles are still served
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Deletes the tiles of the other versions
+	 */
+	private static void clearDisk(File root) {
+		File[] files = root.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory())
+				clearDisk(f);
+			f.delete();
+		}
+	}
+
+	private static byte[] readFile(File file) {
+		if (!file.exists())
+			return null;
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				int n = in.read(data, read, Math.min(BUFFER_SIZE, data.length - read));
+				if (n == -1)
+					return null;
+				read += n;
+			}
+			return data;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a file next to the target and renames it, so a reader never
+	 * sees a partial tile
+	 */
+	private static void writeFile(File file, byte[] data) throws IOException {
+		File tmpFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		NetworkUtils.moveFile(tmpFile, file);
+	}
+}
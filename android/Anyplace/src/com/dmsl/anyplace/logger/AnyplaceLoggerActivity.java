@@ -63,16 +63,15 @@ import com.google.android.gms.maps.model.TileOverlay;
 import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.google.maps.android.clustering.ClusterManager;
 import com.google.maps.android.clustering.ClusterManager.OnClusterItemClickListener;
-import com.google.maps.android.heatmaps.HeatmapTileProvider;
-import com.google.maps.android.heatmaps.WeightedLatLng;
-import com.dmsl.airplace.algorithms.RadioMap;
 import com.dmsl.anyplace.AnyplaceAPI;
 import com.dmsl.anyplace.R;
 import com.dmsl.anyplace.AnyplaceAboutActivity;
 import com.dmsl.anyplace.SelectBuildingActivity;
+import com.dmsl.anyplace.UnifiedNavigationActivity;
 import com.dmsl.anyplace.cache.AnyplaceCache;
 import com.dmsl.anyplace.cache.BackgroundFetchListener;
 import com.dmsl.anyplace.googlemap.AnyPlaceMapTileProvider;
+import com.dmsl.anyplace.googlemap.HeatmapTileCache;
 import com.dmsl.anyplace.googlemap.MyBuildingsRenderer;
 import com.dmsl.anyplace.logger.LoggerPrefs.Action;
 import com.dmsl.anyplace.logger.LoggerWiFi.Function;
@@ -83,6 +82,7 @@ import com.dmsl.anyplace.nav.FloorModel;
 import com.dmsl.anyplace.nav.AnyPlaceSeachingHelper.SearchTypes;
 import com.dmsl.anyplace.sensors.MovementDetector;
 import com.dmsl.anyplace.sensors.SensorsMain;
+import com.dmsl.anyplace.tasks.BuildRadioMapTask;
 import com.dmsl.anyplace.tasks.DeleteFolderBackgroundTask;
 import com.dmsl.anyplace.tasks.DownloadRadioMapTaskBuid;
 import com.dmsl.anyplace.tasks.DownloadRadioMapTaskBuid.DownloadRadioMapListener;
@@ -104,7 +104,6 @@ import android.app.ProgressDialog;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 import android.content.Context;
@@ -216,7 +215,8 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 	private boolean userIsNearby = false;
 	private BuildingModel mCurrentBuilding = null;
 	private FloorModel mCurrentFloor = null;
-	private HeatmapTileProvider mProvider;
+	private HeatmapTileCache mHeatmap;
+	private TileOverlay mHeatmapOverlay;
 	// Logger Service
 	private int mCurrentSamplesTaken = 0;
 	private boolean mIsSamplingActive = false;
@@ -344,6 +344,9 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 		preferences = getSharedPreferences(SHARED_PREFS_LOGGER, MODE_PRIVATE);
 		preferences.registerOnSharedPreferenceChangeListener(this);
 		onSharedPreferenceChanged(preferences, "walk_bar");
+		// Set in the navigator preferences, the logger prefetches buildings too
+		SharedPreferences navigatorPreferences = getSharedPreferences(UnifiedNavigationActivity.SHARED_PREFS_ANYPLACE, MODE_PRIVATE);
+		AnyplaceCache.setFetchParallelism(Integer.parseInt(navigatorPreferences.getString("prefetch_parallelism", "3")));
 
 		String folder_browser = preferences.getString("folder_browser", null);
 		if (folder_browser == null) {
@@ -375,6 +378,9 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 
 		AnyPlaceLoggerReceiver mSamplingAnyplaceLoggerReceiver = new AnyPlaceLoggerReceiver();
 		logger = new LoggerWiFi(mSamplingAnyplaceLoggerReceiver);
+		onSharedPreferenceChanged(preferences, "binary_log");
+		onSharedPreferenceChanged(preferences, "compressed_log");
+		resumeQueuedUploads();
 
 		setUpMapIfNeeded();
 	}
@@ -758,6 +764,8 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 		super.onDestroy();
 
 		wifi.unregisterScan(receiverWifi);
+		if (mHeatmap != null)
+			mHeatmap.cancel();
 	}
 
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -978,7 +986,7 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 					root = AnyplaceUtils.getRadioMapFoler(AnyplaceLoggerActivity.this, mCurrentBuilding.buid, mCurrentFloor.floor_number);
 					File f = new File(root, AnyplaceUtils.getRadioMapFileName(mCurrentFloor.floor_number));
 
-					new HeatmapTask().execute(f);
+					showHeatmap(f);
 				} catch (Exception e) {
 				}
 
@@ -1085,6 +1093,14 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 			uploadRSSLog();
 			return true;
 		}
+		case R.id.main_menu_build_radiomap: {
+			if (mIsSamplingActive) {
+				Toast.makeText(this, "Invalid during logging.", Toast.LENGTH_LONG).show();
+				return true;
+			}
+			buildRadioMap();
+			return true;
+		}
 		case R.id.main_menu_loadmap: {
 			// start the activity where the user can select the building
 			if (mIsSamplingActive) {
@@ -1261,7 +1277,7 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 
 				final boolean exceptionOccured = logger.exceptionOccured;
 				final String msg = logger.msg;
-				final ArrayList<ArrayList<LogRecordMap>> mSamples = logger.mSamples;
+				final LoggerWiFi.SavedLine line = logger.mSavedLine;
 
 				runOnUiThread(new Runnable() {
 					@Override
@@ -1271,34 +1287,33 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 							Toast.makeText(AnyplaceLoggerActivity.this, msg, Toast.LENGTH_LONG).show();
 							return;
 						} else {
-							if (!(mSamples == null || mSamples.size() == 0)) {
-								ArrayList<LogRecordMap> prevSample = mSamples.get(0);
+							if (line.count != 0) {
+								int prevSample = 0;
 								int sum = 0;
 
-								for (int i = 1; i < mSamples.size(); i++) {
-									ArrayList<LogRecordMap> records = mSamples.get(i);
-									// double d = dist(prevSample.get(0).lat,
-									// prevSample.get(0).lng,
-									// records.get(0).lat, records.get(0).lng);
+								for (int i = 1; i < line.count; i++) {
+									// double d = dist(line.lat[prevSample],
+									// line.lng[prevSample],
+									// line.lat[i], line.lng[i]);
 
-									if (records.get(0).walking) {
-										LatLng latlng = new LatLng(prevSample.get(0).lat, prevSample.get(0).lng);
+									if (line.walking[i]) {
+										LatLng latlng = new LatLng(line.lat[prevSample], line.lng[prevSample]);
 										draw(latlng, sum);
-										prevSample = records;
+										prevSample = i;
 									} else {
 										if (sum < 10)
 											sum += 1;
 									}
 								}
 
-								LatLng latlng = new LatLng(prevSample.get(0).lat, prevSample.get(0).lng);
+								LatLng latlng = new LatLng(line.lat[prevSample], line.lng[prevSample]);
 								draw(latlng, sum);
 							}
 
-							Toast.makeText(AnyplaceLoggerActivity.this, mSamples.size() + " Samples Recorded Successfully!", Toast.LENGTH_LONG).show();
+							Toast.makeText(AnyplaceLoggerActivity.this, line.count + " Samples Recorded Successfully!", Toast.LENGTH_LONG).show();
 						}
 
-						mCurrentSamplesTaken -= mSamples.size();
+						mCurrentSamplesTaken -= line.count;
 						if (mSamplingProgressDialog != null) {
 							mSamplingProgressDialog.dismiss();
 							mSamplingProgressDialog = null;
@@ -1481,7 +1496,7 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 				}
 
 				String file_path = preferences.getString("folder_browser", "") + File.separator + preferences.getString("filename_log", "");
-				startUploadTask(file_path);
+				startUploadTask(file_path, false);
 
 			} else {
 				Toast.makeText(getApplicationContext(), "Already uploading rss log...", Toast.LENGTH_SHORT).show();
@@ -1490,15 +1505,30 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 
 	}
 
-	private void startUploadTask(final String file_path) {
+	/**
+	 * Uploads in the background the logs left in the upload queue by an
+	 * earlier run
+	 */
+	private void resumeQueuedUploads() {
+		synchronized (upInProgressLock) {
+			if (upInProgress || !UploadRSSLogTask.hasQueuedLogs(this) || !NetworkUtils.isOnline(this))
+				return;
+			startUploadTask(null, true);
+		}
+	}
+
+	private void startUploadTask(final String file_path, final boolean background) {
 		upInProgress = true;
 
-		new UploadRSSLogTask(new UploadRSSLogTask.UploadRSSLogTaskListener() {
+		UploadRSSLogTask task = new UploadRSSLogTask(new UploadRSSLogTask.UploadRSSLogTaskListener() {
 			@Override
 			public void onSuccess(String result) {
 				upInProgress = false;
-				File file = new File(file_path);
-				file.delete();
+
+				if (background) {
+					Toast.makeText(getApplicationContext(), result, Toast.LENGTH_SHORT).show();
+					return;
+				}
 
 				AlertDialog.Builder builder = new AlertDialog.Builder(AnyplaceLoggerActivity.this);
 				if (mCurrentBuilding == null)
@@ -1521,7 +1551,42 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 				upInProgress = false;
 				Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
 			}
-		}, this, file_path, preferences.getString("username", ""), preferences.getString("password", "")).execute();
+		}, this, file_path, preferences.getString("username", ""), preferences.getString("password", ""));
+		task.setChunked(preferences.getBoolean("chunked_upload", false));
+		task.setBinaryAccepted(preferences.getBoolean("binary_upload", false));
+		task.setBackground(background);
+		task.execute();
+	}
+
+	// ***************************************************************************************
+	// BUILD RADIOMAP TASK
+	// ***************************************************************************************
+
+	private void buildRadioMap() {
+		if (mCurrentBuilding == null || mCurrentFloor == null) {
+			Toast.makeText(getBaseContext(), "Load a map before performing this action!", Toast.LENGTH_SHORT).show();
+			return;
+		}
+
+		File rsslog = new File(preferences.getString("folder_browser", "") + File.separator + preferences.getString("filename_log", ""));
+		final String buid = mCurrentBuilding.buid;
+		final String floor_number = mCurrentFloor.floor_number;
+
+		new BuildRadioMapTask(new BuildRadioMapTask.BuildRadioMapTaskListener() {
+
+			@Override
+			public void onSuccess(String result, File radiomap) {
+				Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
+				// Show the coverage of the floor if it is still shown
+				if (mCurrentBuilding != null && mCurrentBuilding.buid.equals(buid) && mCurrentFloor != null && mCurrentFloor.floor_number.equals(floor_number))
+					showHeatmap(radiomap);
+			}
+
+			@Override
+			public void onErrorOrCancel(String result) {
+				Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
+			}
+		}, this, buid, floor_number, rsslog, true).execute();
 	}
 
 	private void showProgressBar() {
@@ -1556,6 +1621,10 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 			MovementDetector.setSensitivity(max - sensitivity);
 		} else if (key.equals("samples_interval")) {
 			wifi.startScan(sharedPreferences.getString("samples_interval", "1000"));
+		} else if (key.equals("binary_log")) {
+			logger.setBinary(sharedPreferences.getBoolean("binary_log", false));
+		} else if (key.equals("compressed_log")) {
+			logger.setCompressed(sharedPreferences.getBoolean("compressed_log", false));
 		}
 
 	}
@@ -1582,28 +1651,48 @@ public class AnyplaceLoggerActivity extends SherlockFragmentActivity implements
 			adb.show();
 	}
 
-	private class HeatmapTask extends AsyncTask<File, Integer, Collection<WeightedLatLng>> {
+	private void showHeatmap(File radiomap) {
+		// Stop rendering the old radio map before its files are replaced
+		if (mHeatmap != null)
+			mHeatmap.cancel();
+
+		HeatmapTask task = new HeatmapTask();
+		int currentapiVersion = android.os.Build.VERSION.SDK_INT;
+		if (currentapiVersion >= android.os.Build.VERSION_CODES.HONEYCOMB) {
+			// Prerendering must not hold back the other tasks
+			task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, radiomap);
+		} else {
+			task.execute(radiomap);
+		}
+	}
+
+	/**
+	 * Shows the heatmap of a radio map as soon as its tile cache is open,
+	 * then renders its tiles for the zoom levels of a floor
+	 */
+	private class HeatmapTask extends AsyncTask<File, HeatmapTileCache, Void> {
 
 		public HeatmapTask() {
 
 		}
 
 		@Override
-		protected Collection<WeightedLatLng> doInBackground(File... params) {
-			return RadioMap.readRadioMapLocations(params[0]);
+		protected Void doInBackground(File... params) {
+			HeatmapTileCache heatmap = new HeatmapTileCache(params[0]);
+			publishProgress(heatmap);
+			heatmap.prerender(HeatmapTileCache.MIN_ZOOM, HeatmapTileCache.MAX_ZOOM);
+			return null;
 		}
 
 		@Override
-		protected void onPostExecute(Collection<WeightedLatLng> result) {
-			// Check if need to instantiate (avoid setData etc
-			// twice)
-			if (mProvider == null) {
-				mProvider = new HeatmapTileProvider.Builder().weightedData(result).build();
-			} else {
-				mProvider.setWeightedData(result);
-			}
-
-			TileOverlay mHeapOverlay = mMap.addTileOverlay(new TileOverlayOptions().tileProvider(mProvider).zIndex(1));
+		protected void onProgressUpdate(HeatmapTileCache... values) {
+			if (mHeatmap != null)
+				mHeatmap.cancel();
+			if (mHeatmapOverlay != null)
+				mHeatmapOverlay.remove();
+
+			mHeatmap = values[0];
+			mHeatmapOverlay = mMap.addTileOverlay(new TileOverlayOptions().tileProvider(mHeatmap).zIndex(1));
 		}
 
 	}
@@ -1,69 +0,0 @@
-/*
-* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
-*
-* Anyplace is a first-of-a-kind indoor information service offering GPS-less
-* localization, navigation and search inside buildings using ordinary smartphones.
-*
-* Author(s): Timotheos Constambeys, Lambros Petrou
-* 
-* Supervisor: Demetrios Zeinalipour-Yazti
-*
-* URL: http://anyplace.cs.ucy.ac.cy
-* Contact: anyplace@cs.ucy.ac.cy
-*
-* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
-* All rights reserved.
-*
-* Permission is hereby granted, free of charge, to any person obtaining a copy of
-* this software and associated documentation files (the "Software"), to deal in the
-* Software without restriction, including without limitation the rights to use, copy,
-* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
-* and to permit persons to whom the Software is furnished to do so, subject to the
-* following conditions:
-*
-* The above copyright notice and this permission notice shall be included in all
-* copies or substantial portions of the Software.
-*
-* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
-* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
-* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
-* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
-* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
-* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
-* DEALINGS IN THE SOFTWARE.
-*
-*/
-
-package com.dmsl.anyplace.logger;
-
-import java.io.Serializable;
-
-public class LogRecordMap implements Serializable {
-
-	public long ts;
-	public double lng;
-	public double lat;
-	public float heading;
-	public boolean walking;
-	public String bssid;
-	public int rss;
-
-	public LogRecordMap(long ts, double lat, double lng, float heading, boolean walking, String bssid, int rss) {
-		super();
-		this.ts = ts;
-		this.lng = lng;
-		this.lat = lat;
-		this.heading = heading;
-		this.walking = walking;
-		this.bssid = bssid;
-		this.rss = rss;
-	}
-
-	public String toString() {
-
-		String str;
-		str = String.valueOf(ts) + " " + String.valueOf(lat) + " " + String.valueOf(lng) + " " + String.valueOf(heading) + " " + String.valueOf(bssid) + " " + String.valueOf(rss);
-		return str;
-	}
-
-}
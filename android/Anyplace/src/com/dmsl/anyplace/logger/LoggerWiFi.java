@@ -36,17 +36,35 @@
 
 package com.dmsl.anyplace.logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 import android.net.wifi.ScanResult;
 
+/**
+ * Records the WiFi scans of a line walked by the user. Every scan is written
+ * to a spool file as it arrives, only the timestamps and walking flags of
+ * the line stay in memory, so memory does not grow with the length of the
+ * walk. When the line ends the scans are placed on it and appended to the
+ * RSS log.
+ */
 public class LoggerWiFi {
 
 	public enum Function {
@@ -57,18 +75,98 @@ public class LoggerWiFi {
 		public void onFinish(LoggerWiFi logger, Function function);
 	}
 
-	public ArrayList<ArrayList<LogRecordMap>> mSamples = new ArrayList<ArrayList<LogRecordMap>>();
+	/**
+	 * Positions of the scans of a saved line
+	 */
+	public static class SavedLine {
+		public final int count;
+		public final double[] lat;
+		public final double[] lng;
+		public final boolean[] walking;
+
+		SavedLine(int count, double[] lat, double[] lng, boolean[] walking) {
+			this.count = count;
+			this.lat = lat;
+			this.lng = lng;
+			this.walking = walking;
+		}
+	}
+
+	static final String HEADER = "# Timestamp, X, Y, HEADING, MAC Address of AP, RSS, Floor, BUID\n";
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	public SavedLine mSavedLine = new SavedLine(0, new double[0], new double[0], new boolean[0]);
 	public boolean exceptionOccured = false;
 	public String msg;
 
 	private Callback callback;
 	ExecutorService executorService;
+	// Append the RSS log as gzip members instead of text
+	private volatile boolean compressed = false;
+	// Append the RSS log in the binary format instead of text
+	private volatile boolean binary = false;
+	// Binary RSS log of the last saved line, keeps its BSSID dictionary
+	private RSSLogBinary binaryLog;
+
+	// Scans of the current line, only touched by the executor thread
+	private File spoolFile;
+	private DataOutputStream spool;
+	private String spoolError;
+	private int mSamplesCount = 0;
+	private long[] mTimestamps = new long[64];
+	private boolean[] mWalking = new boolean[64];
+	private double startLat;
+	private double startLng;
 
 	public LoggerWiFi(Callback callback) {
 		this.callback = callback;
 		executorService = Executors.newSingleThreadExecutor();
 	}
 
+	/**
+	 * Compresses the RSS log with gzip. Every saved line is appended as a
+	 * gzip member, which readers of gzip files concatenate.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Writes the RSS log in the binary format of {@link RSSLogBinary}, which
+	 * is not compressed further. A log keeps the format it was created with.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return true if the file starts with the gzip magic bytes
+	 */
+	public static boolean isGzip(File file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	public void add(final List<ScanResult> wifiList, final String curLocation, final Float raw_heading, final Boolean isWalking) {
 
 		executorService.execute(new Runnable() {
@@ -85,14 +183,15 @@ public class LoggerWiFi {
 				double lat = Double.valueOf(latlng[0]);
 				double lng = Double.valueOf(latlng[1]);
 
-				ArrayList<LogRecordMap> records = new ArrayList<LogRecordMap>();
 				long timestamp = System.currentTimeMillis();
 
-				for (int i = 0; i < wifiList.size(); i++) {
-					LogRecordMap lr = new LogRecordMap(timestamp, lat, lng, raw_heading, isWalking, wifiList.get(i).BSSID, wifiList.get(i).level);
-					records.add(lr);
+				if (spoolError == null) {
+					try {
+						writeSpool(timestamp, lat, lng, raw_heading, isWalking, wifiList);
+					} catch (IOException e) {
+						spoolError = String.valueOf(e.getMessage());
+					}
 				}
-				mSamples.add(records);
 
 				callback.onFinish(LoggerWiFi.this, Function.ADD);
 			}
@@ -100,6 +199,35 @@ public class LoggerWiFi {
 
 	}
 
+	private void writeSpool(long timestamp, double lat, double lng, float heading, boolean walking, List<ScanResult> wifiList) throws IOException {
+		if (spool == null) {
+			spoolFile = File.createTempFile("rsslog", ".spool");
+			spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE));
+			startLat = lat;
+			startLng = lng;
+		}
+
+		spool.writeLong(timestamp);
+		spool.writeDouble(lat);
+		spool.writeDouble(lng);
+		spool.writeFloat(heading);
+		spool.writeInt(wifiList.size());
+		for (int i = 0; i < wifiList.size(); i++) {
+			spool.writeUTF(String.valueOf(wifiList.get(i).BSSID));
+			spool.writeInt(wifiList.get(i).level);
+		}
+		// The scan is on disk, the next one may never come
+		spool.flush();
+
+		if (mSamplesCount == mTimestamps.length) {
+			mTimestamps = Arrays.copyOf(mTimestamps, mSamplesCount * 2);
+			mWalking = Arrays.copyOf(mWalking, mSamplesCount * 2);
+		}
+		mTimestamps[mSamplesCount] = timestamp;
+		mWalking[mSamplesCount] = walking;
+		mSamplesCount++;
+	}
+
 	public void save(final String endLocation, final String folder_path, final String filename_rss, final String currentFloor, final String currentBuilding) {
 
 		executorService.execute(new Runnable() {
@@ -108,105 +236,187 @@ public class LoggerWiFi {
 				double lat = Double.valueOf(latlng[0]);
 				double lng = Double.valueOf(latlng[1]);
 
-				distributeLineSamples(lat, lng);
-				write_to_log(folder_path, filename_rss, currentFloor, currentBuilding);
+				double[] lats = new double[mSamplesCount];
+				double[] lngs = new double[mSamplesCount];
+				boolean distributed = distributeLineSamples(lat, lng, lats, lngs);
+				write_to_log(folder_path, filename_rss, currentFloor, currentBuilding, distributed, lats, lngs);
 
+				mSavedLine = new SavedLine(mSamplesCount, lats, lngs, Arrays.copyOf(mWalking, mSamplesCount));
 				callback.onFinish(LoggerWiFi.this, Function.SAVE);
 
-				mSamples = new ArrayList<ArrayList<LogRecordMap>>();
+				clearLine();
 			}
 		});
 	}
 
+	private void clearLine() {
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+			}
+			spool = null;
+		}
+		if (spoolFile != null) {
+			spoolFile.delete();
+			spoolFile = null;
+		}
+		spoolError = null;
+		mSamplesCount = 0;
+	}
+
 	/**
-	 * it distributes the samples on the line's points.
+	 * it distributes the samples on the line's points. The walking samples
+	 * are placed by their time at a constant speed, a sample taken while
+	 * standing still stays at the previous one.
 	 * 
-	 * @param end
-	 *            Ending point of the line
+	 * @param lat
+	 *            latitude of the ending point of the line
+	 * @param lng
+	 *            longitude of the ending point of the line
+	 * @param lats
+	 *            receives the latitude of every sample
+	 * @param lngs
+	 *            receives the longitude of every sample
+	 * @return false if the samples keep the location they were recorded at
 	 */
 
-	private void distributeLineSamples(double lat, double lng) {
+	private boolean distributeLineSamples(double lat, double lng, double[] lats, double[] lngs) {
 
 		/* No samples recorded, nothing to write */
-		if (mSamples.isEmpty())
-			return;
+		if (mSamplesCount == 0)
+			return false;
 
-		LogRecordMap start = mSamples.get(0).get(0);
+		long startTs = mTimestamps[0];
 
 		/* Calculate walked line's length */
-		double latdiff = lat - start.lat;
-		double lngdiff = lng - start.lng;
+		double latdiff = lat - startLat;
+		double lngdiff = lng - startLng;
 
-		LogRecordMap end = mSamples.get(mSamples.size() - 1).get(0);
+		long endTs = mTimestamps[mSamplesCount - 1];
 		// Get timestamp of the last walking sample
 		// Invalid Location record
-		for (int i = mSamples.size() - 1; i >= 0; i--) {
-			if (mSamples.get(i).get(0).walking == true) {
-				end = mSamples.get(i).get(0);
+		for (int i = mSamplesCount - 1; i >= 0; i--) {
+			if (mWalking[i] == true) {
+				endTs = mTimestamps[i];
 				break;
 			}
 		}
 
-		long timediff = end.ts - start.ts;
+		long timediff = endTs - startTs;
 
 		double velocityLat = latdiff / timediff;
 		double velocityLng = lngdiff / timediff;
 
-		if (velocityLat == 0 && velocityLng == 0)
-			return;
+		if (velocityLat == 0 && velocityLng == 0) {
+			Arrays.fill(lats, startLat);
+			Arrays.fill(lngs, startLng);
+			return false;
+		}
 
-		for (int i = 1; i < mSamples.size(); i++) {
+		lats[0] = startLat;
+		lngs[0] = startLng;
+		for (int i = 1; i < mSamplesCount; i++) {
 
 			/* Sample was taken while standing still */
-			if (mSamples.get(i).get(0).walking == false) {
-
-				double newlat = mSamples.get(i - 1).get(0).lat;
-				double newlng = mSamples.get(i - 1).get(0).lng;
-
-				/* We need to adjust lat and lon of records */
-				for (LogRecordMap lr : mSamples.get(i)) {
-					lr.lat = newlat;
-					lr.lng = newlng;
-				}
-
+			if (mWalking[i] == false) {
+				lats[i] = lats[i - 1];
+				lngs[i] = lngs[i - 1];
 			} else {
-
-				/* We need to adjust lat and lon of records */
-				for (LogRecordMap lr : mSamples.get(i)) {
-					lr.lat = start.lat + velocityLat * (lr.ts - start.ts);
-					lr.lng = start.lng + velocityLng * (lr.ts - start.ts);
-				}
-
+				lats[i] = startLat + velocityLat * (mTimestamps[i] - startTs);
+				lngs[i] = startLng + velocityLng * (mTimestamps[i] - startTs);
 			}
 		}
 
+		return true;
 	}
 
 	/**
-	 * Writes AP scan records to log file specified by the user
+	 * Appends the spooled AP scan records to log file specified by the user
+	 * 
+	 * @param distributed
+	 *            false to write every record at the location it was recorded,
+	 *            which is then stored in lats and lngs
 	 * */
-	private void write_to_log(String folder_path, String filename_rss, String currentFloor, String currentBuilding) {
+	private void write_to_log(String folder_path, String filename_rss, String currentFloor, String currentBuilding, boolean distributed, double[] lats, double[] lngs) {
 
-		String header = "# Timestamp, X, Y, HEADING, MAC Address of AP, RSS, Floor, BUID\n";
-		LogRecordMap writeLR;
+		DataInputStream in = null;
+		BufferedWriter out = null;
+		RSSLogBinary log = null;
 
 		try {
 
+			if (spoolError != null)
+				throw new IOException(spoolError);
+
 			File root = new File(folder_path);
 
-			if (root.canWrite()) {
+			if (root.canWrite() && mSamplesCount > 0) {
+
+				spool.close();
+				spool = null;
+
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile), BUFFER_SIZE));
+
+				File file = new File(root, filename_rss);
+				if (binary) {
+					if (binaryLog == null || !binaryLog.getFile().equals(file) || !binaryLog.isCurrent())
+						binaryLog = RSSLogBinary.open(file);
+					log = binaryLog;
+					log.beginLine(currentFloor, currentBuilding, mSamplesCount);
+				} else {
+					if (RSSLogBinary.isBinary(file))
+						throw new IOException(filename_rss + " is a binary RSS log");
+					// gzip members appended to text, or text to gzip, cannot be
+					// read back as one log
+					if (file.length() > 0 && isGzip(file) != compressed)
+						throw new IOException(filename_rss + (compressed ? " is a text RSS log" : " is a compressed RSS log"));
+
+					OutputStream os = new FileOutputStream(file, true);
+					if (compressed)
+						os = new GZIPOutputStream(os, BUFFER_SIZE);
+					out = new BufferedWriter(new OutputStreamWriter(os), BUFFER_SIZE);
+					out.write(HEADER);
+				}
+
+				String suffix = " " + String.valueOf(currentFloor) + " " + String.valueOf(currentBuilding) + "\n";
 
-				FileOutputStream fos = new FileOutputStream(new File(root, filename_rss), true);
+				for (int i = 0; i < mSamplesCount; ++i) {
+					long ts = in.readLong();
+					double lat = in.readDouble();
+					double lng = in.readDouble();
+					float heading = in.readFloat();
+					int records = in.readInt();
+
+					if (!distributed) {
+						lats[i] = lat;
+						lngs[i] = lng;
+					}
 
-				for (ArrayList<LogRecordMap> writeRecords : mSamples) {
-					fos.write(header.getBytes());
-					for (int j = 0; j < writeRecords.size(); ++j) {
-						writeLR = writeRecords.get(j);
-						fos.write((writeLR.toString() + " " + String.valueOf(currentFloor) + " " + String.valueOf(currentBuilding) + "\n").getBytes());
+					if (log != null) {
+						log.writeScan(ts, lats[i], lngs[i], heading, records);
+						for (int j = 0; j < records; ++j) {
+							String bssid = in.readUTF();
+							int rss = in.readInt();
+							log.writeRecord(bssid, rss);
+						}
+					} else {
+						String prefix = String.valueOf(ts) + " " + String.valueOf(lats[i]) + " " + String.valueOf(lngs[i]) + " " + String.valueOf(heading) + " ";
+						for (int j = 0; j < records; ++j) {
+							String bssid = in.readUTF();
+							int rss = in.readInt();
+							out.write(prefix + bssid + " " + String.valueOf(rss) + suffix);
+						}
 					}
 				}
 
-				fos.close();
+				if (log != null) {
+					log.endLine();
+					log = null;
+				} else {
+					out.close();
+					out = null;
+				}
 			}
 			exceptionOccured = false;
 		} catch (ClassCastException cce) {
@@ -218,9 +428,28 @@ public class LoggerWiFi {
 		} catch (FileNotFoundException fnfe) {
 			exceptionOccured = true;
 			msg = "Error: " + fnfe.getMessage();
+		} catch (EOFException eofe) {
+			exceptionOccured = true;
+			msg = "Error: RSS log spool is truncated";
 		} catch (IOException ioe) {
 			exceptionOccured = true;
 			msg = "Error: " + ioe.getMessage();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if (log != null) {
+				log.abortLine();
+			}
 		}
 
 	}
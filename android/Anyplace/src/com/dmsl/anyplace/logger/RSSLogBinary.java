@@ -0,0 +1,444 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary RSS log. It keeps everything the text log keeps, but the
+ * BSSIDs are written once per file, the timestamps as varint deltas, the
+ * position and heading once per scan and the RSS in a byte.
+ * 
+ * <pre>
+ * file   := MAGIC VERSION line*
+ * line   := 'L' length:int floor:UTF buid:UTF scans:varint scan*
+ * scan   := delta:zigzag-varint lat:double lng:double heading:float records:varint record*
+ * record := index:varint [bssid:UTF if index is new] rss:byte
+ * </pre>
+ * 
+ * The length of a line is written when the line is complete, a line of length
+ * 0 was interrupted and is dropped. The BSSID dictionary grows through the
+ * file, a record with the next free index adds its BSSID to it.
+ */
+public class RSSLogBinary {
+
+	// "APRL"
+	public static final int MAGIC = 0x4150524C;
+	public static final int VERSION = 1;
+	// Sent with the uploads of binary RSS logs
+	public static final String FORMAT = "binary";
+
+	private static final int LINE = 'L';
+	private static final int HEADER_SIZE = 5;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final File file;
+	// BSSID dictionary of the file
+	private final Map<String, Integer> indices = new HashMap<String, Integer>();
+	private final List<String> bssids = new ArrayList<String>();
+	// Length of the file after the last complete line
+	private long length = 0;
+
+	// Line being written
+	private DataOutputStream out = null;
+	private long lineStart;
+	private int lineDictionarySize;
+	private long previousTimestamp;
+
+	/**
+	 * Receives the records of a binary RSS log in file order
+	 */
+	public interface RecordListener {
+		public void onLine(String floor, String buid) throws IOException;
+
+		public void onRecord(long timestamp, double lat, double lng, float heading, String bssid, int rss) throws IOException;
+	}
+
+	private RSSLogBinary(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens a binary RSS log to append lines to it, creating it if it does
+	 * not exist. An interrupted last line is removed.
+	 * 
+	 * @throws IOException
+	 *             if the file is not a binary RSS log
+	 */
+	public static RSSLogBinary open(File file) throws IOException {
+		RSSLogBinary log = new RSSLogBinary(file);
+		log.read(null);
+		return log;
+	}
+
+	/**
+	 * Converts a binary RSS log to the text RSS log, the same the logger
+	 * writes with the binary log disabled. An interrupted last line is
+	 * skipped.
+	 */
+	public static void toText(File file, final Writer out) throws IOException {
+		read(file, new RecordListener() {
+			private String suffix;
+
+			@Override
+			public void onLine(String floor, String buid) throws IOException {
+				suffix = " " + floor + " " + buid + "\n";
+				out.write(LoggerWiFi.HEADER);
+			}
+
+			@Override
+			public void onRecord(long timestamp, double lat, double lng, float heading, String bssid, int rss) throws IOException {
+				out.write(String.valueOf(timestamp) + " " + String.valueOf(lat) + " " + String.valueOf(lng) + " " + String.valueOf(heading) + " " + bssid + " " + String.valueOf(rss) + suffix);
+			}
+		});
+	}
+
+	/**
+	 * Streams the records of a binary RSS log. An interrupted last line is
+	 * skipped.
+	 */
+	public static void read(File file, RecordListener listener) throws IOException {
+		new RSSLogBinary(file).read(listener);
+	}
+
+	/**
+	 * @return true if the file starts as a binary RSS log
+	 */
+	public static boolean isBinary(File file) {
+		if (file.length() < HEADER_SIZE)
+			return false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return false if the file was changed since it was opened
+	 */
+	public boolean isCurrent() {
+		return out == null && file.length() == length;
+	}
+
+	private void read(RecordListener listener) throws IOException {
+		if (!file.exists() || file.length() == 0)
+			return;
+
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		DataInputStream in = new DataInputStream(counter);
+		long complete = 0;
+		int lineLength = 0;
+
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file.getName() + " is not a binary RSS log");
+			int version = in.readUnsignedByte();
+			if (version != VERSION)
+				throw new IOException("Unsupported binary RSS log version " + version);
+			complete = HEADER_SIZE;
+
+			int tag;
+			while ((tag = in.read()) != -1) {
+				if (tag != LINE)
+					throw new IOException("Corrupted binary RSS log at " + complete);
+
+				lineLength = in.readInt();
+				if (lineLength == 0)
+					break;
+
+				readLine(in, listener);
+				if (counter.count != complete + 1 + 4 + lineLength)
+					throw new IOException("Corrupted binary RSS log at " + complete);
+				complete = counter.count;
+				lineLength = 0;
+			}
+		} catch (EOFException e) {
+			// Only an interrupted line may end early, a completed one was cut
+			if (complete < HEADER_SIZE || (listener != null && lineLength != 0))
+				throw new IOException(file.getName() + " is truncated");
+		} finally {
+			in.close();
+		}
+
+		if (listener == null && complete < file.length())
+			truncate(complete);
+		length = complete;
+	}
+
+	private void readLine(DataInputStream in, RecordListener listener) throws IOException {
+		String floor = in.readUTF();
+		String buid = in.readUTF();
+		int scans = readVarint(in);
+		long timestamp = 0;
+
+		if (listener != null)
+			listener.onLine(floor, buid);
+
+		for (int i = 0; i < scans; ++i) {
+			timestamp += readZigzag(in);
+			double lat = in.readDouble();
+			double lng = in.readDouble();
+			float heading = in.readFloat();
+			int records = readVarint(in);
+
+			for (int j = 0; j < records; ++j) {
+				int index = readVarint(in);
+				String bssid;
+				if (index == bssids.size()) {
+					bssid = in.readUTF();
+					addBssid(bssid);
+				} else if (index < bssids.size()) {
+					bssid = bssids.get(index);
+				} else {
+					throw new IOException("Corrupted binary RSS log, unknown BSSID " + index);
+				}
+				int rss = in.readByte();
+
+				if (listener != null)
+					listener.onRecord(timestamp, lat, lng, heading, bssid, rss);
+			}
+		}
+	}
+
+	/**
+	 * Starts appending a line to the log
+	 * 
+	 * @param scans
+	 *            the number of scans of the line
+	 */
+	public void beginLine(String floor, String buid, int scans) throws IOException {
+		if (out != null)
+			throw new IllegalStateException("Line already started");
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+		lineStart = length;
+		lineDictionarySize = bssids.size();
+		previousTimestamp = 0;
+
+		if (length == 0) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			lineStart = HEADER_SIZE;
+		}
+
+		out.writeByte(LINE);
+		out.writeInt(0);
+		out.writeUTF(String.valueOf(floor));
+		out.writeUTF(String.valueOf(buid));
+		writeVarint(out, scans);
+	}
+
+	/**
+	 * Starts a scan of the line, followed by its records
+	 */
+	public void writeScan(long timestamp, double lat, double lng, float heading, int records) throws IOException {
+		writeZigzag(out, timestamp - previousTimestamp);
+		previousTimestamp = timestamp;
+		out.writeDouble(lat);
+		out.writeDouble(lng);
+		out.writeFloat(heading);
+		writeVarint(out, records);
+	}
+
+	/**
+	 * Writes a record of the current scan. The RSS is clamped to a byte,
+	 * which holds every RSS a WiFi scan reports.
+	 */
+	public void writeRecord(String bssid, int rss) throws IOException {
+		Integer index = indices.get(bssid);
+		if (index == null) {
+			writeVarint(out, bssids.size());
+			out.writeUTF(bssid);
+			addBssid(bssid);
+		} else {
+			writeVarint(out, index);
+		}
+		out.writeByte(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rss)));
+	}
+
+	/**
+	 * Completes the line, it is not read back before this
+	 */
+	public void endLine() throws IOException {
+		out.close();
+		out = null;
+
+		long end = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(lineStart + 1);
+			raf.writeInt((int) (end - lineStart - 1 - 4));
+		} finally {
+			raf.close();
+		}
+		length = end;
+	}
+
+	/**
+	 * Removes the line being written from the log
+	 */
+	public void abortLine() {
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		out = null;
+
+		while (bssids.size() > lineDictionarySize)
+			indices.remove(bssids.remove(bssids.size() - 1));
+
+		try {
+			truncate(length);
+		} catch (IOException e) {
+			// The line keeps length 0 and is dropped when read
+		}
+	}
+
+	private void addBssid(String bssid) {
+		indices.put(bssid, bssids.size());
+		bssids.add(bssid);
+	}
+
+	private void truncate(long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static void writeZigzag(DataOutputStream out, long value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static long readUnsignedVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Corrupted binary RSS log, varint too long");
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		long value = readUnsignedVarint(in);
+		if (value > Integer.MAX_VALUE)
+			throw new IOException("Corrupted binary RSS log, count too large");
+		return (int) value;
+	}
+
+	private static long readZigzag(DataInputStream in) throws IOException {
+		long value = readUnsignedVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,571 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.anyplace.utils.NetworkUtils;
+
+/**
+ * Builds the mean radio map of a floor from RSS logs on the device, the same
+ * radio map the server builds. The logs are streamed, text, gzip or binary,
+ * and only a running RSS sum and count per location and AP is kept, so the
+ * logs may be far larger than memory.
+ * 
+ * The builder can be saved and read back, and remembers how many records of
+ * every log it added, so a log that grew adds only its new records.
+ */
+public class RadioMapBuilder {
+
+	public static final String NaN = "-110";
+
+	// Builder state header: magic "APRB", format version
+	private static final int STATE_MAGIC = 0x41505242;
+	private static final int STATE_VERSION = 1;
+	private static final long EMPTY = -1;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// Bytes at the start of a log that identify it
+	private static final int PREFIX_SIZE = 4 * 1024;
+
+	private final String buid;
+	private final String floor;
+
+	// MAC Addresses in the order they were first heard, a column each
+	private final ArrayList<String> macs = new ArrayList<String>();
+	private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+
+	// Locations in the order they were first logged, found through an open
+	// addressing table of location + 1
+	private int locations = 0;
+	private double[] locationX = new double[64];
+	private double[] locationY = new double[64];
+	private int[] locationTable = new int[128];
+
+	// Running RSS sum and count of every location and column heard there, in
+	// an open addressing table keyed by location << 32 | column
+	private int cells = 0;
+	private long[] cellKeys = newKeys(256);
+	private double[] cellSums = new double[256];
+	private int[] cellCounts = new int[256];
+
+	// Logs added and the records read of each
+	private final List<Source> sources = new ArrayList<Source>();
+
+	private static class Source {
+		String path;
+		long records;
+		int prefixSize;
+		String prefixHash;
+	}
+
+	/**
+	 * @param buid
+	 *            the building of the radio map
+	 * @param floor
+	 *            the floor number of the radio map
+	 */
+	public RadioMapBuilder(String buid, String floor) {
+		this.buid = String.valueOf(buid);
+		this.floor = String.valueOf(floor);
+	}
+
+	/**
+	 * The file the state of the builder of a radio map is saved in
+	 */
+	public static File getStateFile(File radiomap) {
+		String name = radiomap.getName();
+		name = name.endsWith(".txt") ? name.replace(".txt", ".state") : name + ".state";
+		return new File(radiomap.getParentFile(), name);
+	}
+
+	public int getLocationsCount() {
+		return locations;
+	}
+
+	public int getMacAdressCount() {
+		return macs.size();
+	}
+
+	/**
+	 * Adds a record of the floor
+	 */
+	public void add(double x, double y, String mac, int rss) {
+		Integer column = columns.get(mac);
+		if (column == null) {
+			column = macs.size();
+			macs.add(mac);
+			columns.put(mac, column);
+		}
+
+		long key = ((long) location(x, y) << 32) | column;
+		int slot = cellSlot(key);
+		if (cellKeys[slot] == EMPTY) {
+			cellKeys[slot] = key;
+			if (++cells * 2 > cellKeys.length)
+				growCells();
+			slot = cellSlot(key);
+		}
+		cellSums[slot] += rss;
+		cellCounts[slot]++;
+	}
+
+	/**
+	 * Adds the records of the floor from an RSS log, text, gzip or binary. A
+	 * log added before adds only the records appended since.
+	 * 
+	 * @return the number of records of the floor added
+	 */
+	public int addLog(File log) throws IOException {
+		Source source = null;
+		for (Source s : sources) {
+			if (s.path.equals(log.getAbsolutePath())) {
+				source = s;
+				break;
+			}
+		}
+
+		if (source == null || log.length() < source.prefixSize || !source.prefixHash.equals(hashPrefix(log, source.prefixSize))) {
+			// A new log, or another log with the same name
+			if (source == null) {
+				source = new Source();
+				source.path = log.getAbsolutePath();
+				sources.add(source);
+			}
+			source.records = 0;
+		}
+
+		final long skip = source.records;
+		final long[] records = { 0 };
+		final int[] added = { 0 };
+
+		RSSLogBinary.RecordListener listener = new RSSLogBinary.RecordListener() {
+			private boolean sameFloor = false;
+
+			@Override
+			public void onLine(String floor, String buid) {
+				sameFloor = RadioMapBuilder.this.floor.equals(floor) && RadioMapBuilder.this.buid.equals(buid);
+			}
+
+			@Override
+			public void onRecord(long timestamp, double lat, double lng, float heading, String bssid, int rss) {
+				if (records[0]++ < skip || !sameFloor)
+					return;
+				add(lat, lng, bssid, rss);
+				added[0]++;
+			}
+		};
+
+		if (RSSLogBinary.isBinary(log))
+			RSSLogBinary.read(log, listener);
+		else
+			readTextLog(log, listener);
+
+		source.records = records[0];
+		source.prefixSize = (int) Math.min(log.length(), PREFIX_SIZE);
+		source.prefixHash = hashPrefix(log, source.prefixSize);
+		return added[0];
+	}
+
+	/**
+	 * Streams a text RSS log, gzip compressed or not
+	 */
+	private static void readTextLog(File log, RSSLogBinary.RecordListener listener) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(log), BUFFER_SIZE);
+		BufferedReader reader = null;
+		try {
+			is.mark(2);
+			boolean gzip = is.read() == 0x1f && is.read() == 0x8b;
+			is.reset();
+			if (gzip)
+				is = new GZIPInputStream(is, BUFFER_SIZE);
+			reader = new BufferedReader(new InputStreamReader(is), BUFFER_SIZE);
+
+			String line;
+			String floor = null;
+			String buid = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#"))
+					continue;
+
+				// Timestamp, X, Y, HEADING, MAC Address of AP, RSS, Floor, BUID
+				String[] temp = line.split(" ");
+				if (temp.length != 8)
+					continue;
+
+				long timestamp;
+				double lat, lng;
+				float heading;
+				int rss;
+				try {
+					timestamp = Long.parseLong(temp[0]);
+					lat = Double.parseDouble(temp[1]);
+					lng = Double.parseDouble(temp[2]);
+					heading = Float.parseFloat(temp[3]);
+					rss = Integer.parseInt(temp[5]);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+
+				if (!temp[6].equals(floor) || !temp[7].equals(buid)) {
+					floor = temp[6];
+					buid = temp[7];
+					listener.onLine(floor, buid);
+				}
+				listener.onRecord(timestamp, lat, lng, heading, temp[4], rss);
+			}
+		} finally {
+			if (reader != null)
+				reader.close();
+			else
+				is.close();
+		}
+	}
+
+	/**
+	 * Writes the mean radio map in the text format the server sends. The
+	 * file is written next to the target and renamed, so a reader never sees
+	 * a partial file.
+	 * 
+	 * @param binary
+	 *            also writes the binary cache of the radio map
+	 */
+	public void write(File radiomap, boolean binary) throws IOException {
+		if (locations == 0 || macs.isEmpty())
+			throw new IOException("No records of floor " + floor);
+
+		// Cells of every location, in column order
+		int[] rowStart = new int[locations + 1];
+		for (int slot = 0; slot < cellKeys.length; ++slot) {
+			if (cellKeys[slot] != EMPTY)
+				rowStart[(int) (cellKeys[slot] >>> 32) + 1]++;
+		}
+		for (int row = 0; row < locations; ++row)
+			rowStart[row + 1] += rowStart[row];
+		int[] next = Arrays.copyOf(rowStart, locations);
+		int[] rowCells = new int[cells];
+		for (int slot = 0; slot < cellKeys.length; ++slot) {
+			if (cellKeys[slot] != EMPTY)
+				rowCells[next[(int) (cellKeys[slot] >>> 32)]++] = slot;
+		}
+
+		final float NaNValue = Float.parseFloat(NaN);
+		float[] values = new float[macs.size()];
+
+		File tmpFile = new File(radiomap.getPath() + ".tmp");
+		BufferedWriter out = null;
+		try {
+			out = new BufferedWriter(new FileWriter(tmpFile), BUFFER_SIZE);
+
+			out.write("# NaN " + NaN + "\n");
+			out.write("# X, Y, HEADING");
+			for (String mac : macs)
+				out.write(", " + mac);
+			out.write("\n");
+
+			for (int row = 0; row < locations; ++row) {
+				Arrays.fill(values, NaNValue);
+				for (int i = rowStart[row]; i < rowStart[row + 1]; ++i) {
+					int slot = rowCells[i];
+					values[(int) cellKeys[slot]] = (float) (Math.round(cellSums[slot] / cellCounts[slot] * 1000) / 1000.0);
+				}
+
+				out.write(String.valueOf(locationX[row]) + ", " + String.valueOf(locationY[row]) + ", 0");
+				for (int column = 0; column < values.length; ++column) {
+					out.write(", ");
+					out.write(values[column] == NaNValue ? NaN : String.valueOf(values[column]));
+				}
+				out.write("\n");
+			}
+
+			out.close();
+			out = null;
+			NetworkUtils.moveFile(tmpFile, radiomap);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+
+		if (binary && !RadioMap.writeBinaryCache(radiomap))
+			throw new IOException("Cannot write the binary radio map");
+	}
+
+	/**
+	 * Saves the builder, to add more logs to it later
+	 */
+	public void writeState(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+
+			out.writeInt(STATE_MAGIC);
+			out.writeInt(STATE_VERSION);
+			out.writeUTF(buid);
+			out.writeUTF(floor);
+
+			out.writeInt(macs.size());
+			for (String mac : macs)
+				out.writeUTF(mac);
+
+			out.writeInt(locations);
+			for (int row = 0; row < locations; ++row) {
+				out.writeDouble(locationX[row]);
+				out.writeDouble(locationY[row]);
+			}
+
+			out.writeInt(cells);
+			for (int slot = 0; slot < cellKeys.length; ++slot) {
+				if (cellKeys[slot] != EMPTY) {
+					out.writeLong(cellKeys[slot]);
+					out.writeDouble(cellSums[slot]);
+					out.writeInt(cellCounts[slot]);
+				}
+			}
+
+			out.writeInt(sources.size());
+			for (Source source : sources) {
+				out.writeUTF(source.path);
+				out.writeLong(source.records);
+				out.writeInt(source.prefixSize);
+				out.writeUTF(source.prefixHash);
+			}
+
+			out.close();
+			out = null;
+			NetworkUtils.moveFile(tmpFile, file);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads a builder saved by writeState
+	 * 
+	 * @return the builder, or null if the file is not a builder of the floor
+	 */
+	public static RadioMapBuilder readState(File file, String buid, String floor) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+			if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION)
+				return null;
+
+			RadioMapBuilder builder = new RadioMapBuilder(buid, floor);
+			if (!builder.buid.equals(in.readUTF()) || !builder.floor.equals(in.readUTF()))
+				return null;
+
+			int macs = in.readInt();
+			for (int i = 0; i < macs; ++i) {
+				String mac = in.readUTF();
+				builder.columns.put(mac, builder.macs.size());
+				builder.macs.add(mac);
+			}
+
+			int locations = in.readInt();
+			for (int row = 0; row < locations; ++row)
+				builder.location(in.readDouble(), in.readDouble());
+			if (builder.locations != locations)
+				return null;
+
+			int cells = in.readInt();
+			for (int i = 0; i < cells; ++i) {
+				long key = in.readLong();
+				if ((key >>> 32) >= locations || (int) key < 0 || (int) key >= macs)
+					return null;
+
+				int slot = builder.cellSlot(key);
+				builder.cellKeys[slot] = key;
+				builder.cellSums[slot] = in.readDouble();
+				builder.cellCounts[slot] = in.readInt();
+				if (++builder.cells * 2 > builder.cellKeys.length)
+					builder.growCells();
+			}
+
+			int sources = in.readInt();
+			for (int i = 0; i < sources; ++i) {
+				Source source = new Source();
+				source.path = in.readUTF();
+				source.records = in.readLong();
+				source.prefixSize = in.readInt();
+				source.prefixHash = in.readUTF();
+				builder.sources.add(source);
+			}
+
+			return builder;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the row of a location, added if it is new
+	 */
+	private int location(double x, double y) {
+		int mask = locationTable.length - 1;
+		int slot = hash(Double.doubleToLongBits(x) * 31 + Double.doubleToLongBits(y)) & mask;
+		while (locationTable[slot] != 0) {
+			int row = locationTable[slot] - 1;
+			if (locationX[row] == x && locationY[row] == y)
+				return row;
+			slot = (slot + 1) & mask;
+		}
+
+		int row = locations++;
+		if (row == locationX.length) {
+			locationX = Arrays.copyOf(locationX, row * 2);
+			locationY = Arrays.copyOf(locationY, row * 2);
+		}
+		locationX[row] = x;
+		locationY[row] = y;
+		locationTable[slot] = row + 1;
+
+		// Keep the load factor at most 0.5
+		if (locations * 2 > locationTable.length) {
+			locationTable = new int[locationTable.length * 2];
+			mask = locationTable.length - 1;
+			for (int r = 0; r < locations; ++r) {
+				slot = hash(Double.doubleToLongBits(locationX[r]) * 31 + Double.doubleToLongBits(locationY[r])) & mask;
+				while (locationTable[slot] != 0)
+					slot = (slot + 1) & mask;
+				locationTable[slot] = r + 1;
+			}
+		}
+		return row;
+	}
+
+	private int cellSlot(long key) {
+		int mask = cellKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (cellKeys[slot] != EMPTY && cellKeys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void growCells() {
+		long[] keys = cellKeys;
+		double[] sums = cellSums;
+		int[] counts = cellCounts;
+
+		cellKeys = newKeys(keys.length * 2);
+		cellSums = new double[keys.length * 2];
+		cellCounts = new int[keys.length * 2];
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != EMPTY) {
+				int slot = cellSlot(keys[i]);
+				cellKeys[slot] = keys[i];
+				cellSums[slot] = sums[i];
+				cellCounts[slot] = counts[i];
+			}
+		}
+	}
+
+	private static long[] newKeys(int capacity) {
+		long[] keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		return keys;
+	}
+
+	private static int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+
+	private static String hashPrefix(File log, int size) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+
+		byte[] prefix = new byte[size];
+		DataInputStream in = new DataInputStream(new FileInputStream(log));
+		try {
+			in.readFully(prefix);
+		} finally {
+			in.close();
+		}
+
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : digest.digest(prefix)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
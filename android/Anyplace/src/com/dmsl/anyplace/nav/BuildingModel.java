@@ -68,6 +68,8 @@ public class BuildingModel implements Comparable<BuildingModel>, ClusterItem, Se
 
 	// last fetched floors
 	private List<FloorModel> mLoadedFloors = new ArrayList<FloorModel>(0);
+	// The floors were fetched in this run, not restored from the saved cache
+	private transient boolean floorsFetched = false;
 	// List index Used in SelectBuilding Activity
 	private int selectedFloorIndex = 0;
 
@@ -84,6 +86,7 @@ public class BuildingModel implements Comparable<BuildingModel>, ClusterItem, Se
 				@Override
 				public void onSuccess(String result, List<FloorModel> floors) {
 					mLoadedFloors = floors;
+					floorsFetched = true;
 					AnyplaceCache.saveInstance(MyApplication.getAppContext());
 					l.onSuccess(result, floors);
 				}
@@ -104,6 +107,14 @@ public class BuildingModel implements Comparable<BuildingModel>, ClusterItem, Se
 			return true;
 	}
 
+	/**
+	 * @return true if the floors were fetched from the server since the app
+	 *         started, false if they come from the cache of an earlier run
+	 */
+	public boolean isFloorsFetched() {
+		return floorsFetched;
+	}
+
 	public FloorModel getSelectedFloor() {
 		FloorModel f = null;
 		try {
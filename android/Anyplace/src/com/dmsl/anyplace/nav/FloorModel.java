@@ -51,6 +51,11 @@ public class FloorModel implements Comparable<FloorModel>, Serializable {
 	public String top_right_lat;
 	public String top_right_lng;
 
+	// Versions of the radio map and floor plan on the server, empty if the
+	// server does not send them
+	public String radiomap_version;
+	public String floor_plan_version;
+
 	public String toString() {
 		return floor_number + " - [" + floor_name + "]";
 	}
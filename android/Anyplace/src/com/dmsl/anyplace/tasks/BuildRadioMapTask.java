@@ -0,0 +1,134 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys, Lambros Petrou
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.tasks;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import com.dmsl.anyplace.logger.RadioMapBuilder;
+import com.dmsl.anyplace.utils.AnyplaceUtils;
+
+/**
+ * Builds the radio map of a floor on the device from an RSS log, adding to
+ * the radio map built before only the records logged since
+ */
+public class BuildRadioMapTask extends AsyncTask<Void, Void, String> {
+
+	public interface BuildRadioMapTaskListener {
+		void onErrorOrCancel(String result);
+
+		void onSuccess(String result, File radiomap);
+	}
+
+	private BuildRadioMapTaskListener mListener;
+	private Context ctx;
+	private String buid;
+	private String floor_number;
+	private File rsslog;
+	private boolean binary;
+
+	private File radiomap;
+	private boolean success = false;
+
+	/**
+	 * @param binary
+	 *            also writes the binary cache of the radio map
+	 */
+	public BuildRadioMapTask(BuildRadioMapTaskListener l, Context ctx, String buid, String floor_number, File rsslog, boolean binary) {
+		this.mListener = l;
+		this.ctx = ctx;
+		this.buid = buid;
+		this.floor_number = floor_number;
+		this.rsslog = rsslog;
+		this.binary = binary;
+	}
+
+	@Override
+	protected String doInBackground(Void... params) {
+		try {
+			File root = AnyplaceUtils.getRadioMapFoler(ctx, buid, floor_number);
+			radiomap = new File(root, AnyplaceUtils.getLocalRadioMapFileName(floor_number));
+			File state = RadioMapBuilder.getStateFile(radiomap);
+
+			RadioMapBuilder builder = null;
+			if (state.exists())
+				builder = RadioMapBuilder.readState(state, buid, floor_number);
+			if (builder == null)
+				builder = new RadioMapBuilder(buid, floor_number);
+
+			int added = 0;
+			if (rsslog != null && rsslog.exists())
+				added = builder.addLog(rsslog);
+
+			if (builder.getLocationsCount() == 0)
+				return "No RSS log records of this floor";
+
+			builder.write(radiomap, binary);
+			builder.writeState(state);
+
+			success = true;
+			return "Radio map of " + builder.getLocationsCount() + " locations and " + builder.getMacAdressCount() + " APs built, " + added + " new records";
+		} catch (IOException e) {
+			return "Cannot build radio map: " + e.getMessage();
+		} catch (Exception e) {
+			return e.getMessage();
+		}
+	}
+
+	@Override
+	protected void onPostExecute(String result) {
+		if (success) {
+			mListener.onSuccess(result, radiomap);
+		} else {
+			mListener.onErrorOrCancel(result);
+		}
+	}
+
+	@Override
+	protected void onCancelled(String result) {
+		mListener.onErrorOrCancel(result);
+	}
+
+	@Override
+	protected void onCancelled() { // just for < API 11
+		onCancelled("Building radio map cancelled!");
+	}
+
+}
@@ -37,8 +37,10 @@
 package com.dmsl.anyplace.tasks;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.http.conn.ConnectTimeoutException;
 import org.json.JSONException;
@@ -48,7 +50,10 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Handler;
 
+import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.airplace.algorithms.RadioMapPatch;
 import com.dmsl.anyplace.AnyplaceAPI;
+import com.dmsl.anyplace.cache.CacheMarker;
 import com.dmsl.anyplace.utils.AnyplaceUtils;
 import com.dmsl.anyplace.utils.NetworkUtils;
 
@@ -68,8 +73,8 @@ public class DownloadRadioMapTaskBuid extends AsyncTask<Void, Void, String> {
 		void onSuccess(String result);
 	}
 
-	// Allow only one download task (real time creation of radiomap)
-	private static volatile Boolean downInProgress = false;
+	// Allow only one download task per floor (real time creation of radiomap)
+	private static final Set<String> downInProgress = new HashSet<String>();
 
 	private DownloadRadioMapListener mListener;
 	private Context ctx;
@@ -77,6 +82,7 @@ public class DownloadRadioMapTaskBuid extends AsyncTask<Void, Void, String> {
 	private String mBuildID;
 	private String mFloor_number;
 	private Boolean mForceDonwload;
+	private String mVersion;
 
 	private boolean success = false;
 
@@ -115,6 +121,16 @@ public class DownloadRadioMapTaskBuid extends AsyncTask<Void, Void, String> {
 
 	}
 
+	/**
+	 * Downloads the radio map again if the cached one is not this version
+	 * 
+	 * @param version
+	 *            the version on the server, null if unknown
+	 */
+	public void setVersion(String version) {
+		this.mVersion = version;
+	}
+
 	public DownloadRadioMapListener getCallbackInterface() {
 		return this.mListener;
 	}
@@ -122,7 +138,7 @@ public class DownloadRadioMapTaskBuid extends AsyncTask<Void, Void, String> {
 	@Override
 	protected String doInBackground(Void... params) {
 
-		boolean releaseLock = false;
+		String lockKey = null;
 		try {
 
 			if (json_req == null)
@@ -136,79 +152,159 @@ public class DownloadRadioMapTaskBuid extends AsyncTask<Void, Void, String> {
 			}
 
 			File okfile = new File(root, "ok.txt");
-			if (!mForceDonwload && okfile.exists()) {
-				success = true;
-				return "Successfully read radio map from cache!";
+			File cached = new File(root, AnyplaceUtils.getRadioMapFileName(mFloor_number));
+			CacheMarker marker = CacheMarker.read(okfile);
+			if (!mForceDonwload && marker != null && marker.isCurrent(mVersion)) {
+				// The binary cache is written after the radio map is verified
+				// and records its length and time, so the radio map is hashed
+				// again only if it has no up to date binary cache, e.g. if it
+				// was cached before the binary form existed
+				if (RadioMap.isBinaryCacheCurrent(cached) || (marker.verify(okfile, cached) && RadioMap.writeBinaryCache(cached))) {
+					success = true;
+					return "Successfully read radio map from cache!";
+				}
 			}
 
-			// Allow only one download of the radiomap
+			// Allow only one download of the radiomap of a floor, other
+			// floors download in parallel
 			synchronized (downInProgress) {
-				if (downInProgress == false) {
-					downInProgress = true;
-					releaseLock = true;
+				String key = mBuildID + File.separatorChar + mFloor_number;
+				if (downInProgress.add(key)) {
+					lockKey = key;
 				} else {
 					return "Already downloading radio map. Please wait...";
 				}
 			}
 
 			runPreExecuteOnUI();
+
+			// A cached radio map of a known version can be patched instead
+			String cachedVersion = null;
+			if (!mForceDonwload && marker != null && !marker.getVersion().equals(CacheMarker.DEFAULT_VERSION) && marker.verify(okfile, cached))
+				cachedVersion = marker.getVersion();
 			okfile.delete();
 
-			// receive only the radio map for the current floor 0 timeout overrides default timeout
-			String response = NetworkUtils.downloadHttpClientJsonPost(AnyplaceAPI.getRadioDownloadBuid(), json_req, 0);
-			JSONObject json = new JSONObject(response);
+			boolean patched = fetchRadioMap(AnyplaceAPI.getRadioDownloadBuid(), json_req, root, mFloor_number, cachedVersion, mVersion);
 
-			if (json.getString("status").equalsIgnoreCase("error")) {
-				return "Error Message: " + json.getString("message");
+			waitPreExecute();
+			success = true;
+			return patched ? "Successfully updated radio maps!" : "Successfully saved radio maps!";
+
+		} catch (ConnectTimeoutException e) {
+			return "Connecting to Anyplace service is taking too long!";
+		} catch (SocketTimeoutException e) {
+			return "Communication with the server is taking too long!";
+		} catch (Exception e) {
+			return "Error downloading radio maps [ " + e.getMessage() + " ]";
+		} finally {
+			if (lockKey != null) {
+				synchronized (downInProgress) {
+					downInProgress.remove(lockKey);
+				}
 			}
+		}
+
+	}
 
-			String means = json.getString("map_url_mean");
+	/**
+	 * Brings the radio map of a floor to the version of the server. The
+	 * server sends the changes from the cached version if it can, otherwise
+	 * the radio map is downloaded whole. Its binary cache and ok.txt marker
+	 * are written after.
+	 * 
+	 * @param url
+	 *            the radio_by_building_floor service
+	 * @param cachedVersion
+	 *            the version of the intact cached radio map, null to download
+	 *            it whole
+	 * @param version
+	 *            the version of the server, null if unknown
+	 * @return true if the cached radio map was patched
+	 * @throws IOException
+	 *             with the message of the server if it replied with an error
+	 */
+	static boolean fetchRadioMap(String url, String json_req, File root, String floor_number, String cachedVersion, String version) throws Exception {
+		File okfile = new File(root, "ok.txt");
+		// rename the radiomap according to the floor
+		// parameters and weights not used any more (RPF Algorithm Removed)
+		File mean_file = new File(root, AnyplaceUtils.getRadioMapFileName(floor_number));
+
+		String request = json_req;
+		if (cachedVersion != null) {
+			JSONObject j = new JSONObject(json_req);
+			j.put("version", cachedVersion);
+			request = j.toString();
+		}
+
+		// receive only the radio map for the current floor 0 timeout overrides default timeout
+		String response = NetworkUtils.downloadHttpClientJsonPost(url, request, 0);
+		JSONObject json = new JSONObject(response);
+
+		if (json.getString("status").equalsIgnoreCase("error"))
+			throw new IOException("Error Message: " + json.getString("message"));
 
-			// create the credentials JSON in order to send and download the radio map
-			JSONObject json_credentials = new JSONObject();
-			json_credentials.put("username", "username");
-			json_credentials.put("password", "pass");
-			String cred_str = json_credentials.toString();
+		String means = json.getString("map_url_mean");
 
-			String ms = NetworkUtils.downloadHttpClientJsonPost(means, cred_str);
+		// create the credentials JSON in order to send and download the radio map
+		JSONObject json_credentials = new JSONObject();
+		json_credentials.put("username", "username");
+		json_credentials.put("password", "pass");
+		String cred_str = json_credentials.toString();
 
-			// check if the files downloaded correctly
-			if (ms.contains("error")) {
-				json = new JSONObject(response);
-				return "Error Message: " + json.getString("message");
+		// The server sends the changes from the cached version if it can
+		if (cachedVersion != null && json.has("map_url_patch")) {
+			String patched = patchRadioMap(json.getString("map_url_patch"), cred_str, mean_file, cachedVersion);
+			if (patched != null) {
+				RadioMap.writeBinaryCache(mean_file);
+				CacheMarker.write(okfile, mean_file, patched);
+				return true;
 			}
+		}
 
-			// rename the radiomap according to the floor
-			// parameters and weights not used any more (RPF Algorithm Removed)
-			String filename_radiomap_download = AnyplaceUtils.getRadioMapFileName(mFloor_number);
-			String mean_fname = filename_radiomap_download;
-			// String rbf_weights_fname = mean_fname.replace(".txt", "-rbf-weights.txt");
-			// String parameters_fname = mean_fname.replace(".txt", "-parameters.txt");
-			FileWriter out;
+		// Streamed to disk, an interrupted download resumes next time
+		File ms = NetworkUtils.downloadHttpClientJsonPostFile(means, cred_str, mean_file, 20000);
 
-			out = new FileWriter(new File(root, mean_fname));
-			out.write(ms);
-			out.close();
+		// check if the files downloaded correctly
+		String error = NetworkUtils.readErrorResponse(ms);
+		if (error != null) {
+			ms.delete();
+			throw new IOException("Error Message: " + error);
+		}
 
-			out = new FileWriter(okfile);
-			out.write("ok;version:0;");
-			out.close();
+		NetworkUtils.moveFile(ms, mean_file);
 
-			waitPreExecute();
-			success = true;
-			return "Successfully saved radio maps!";
+		// Parse once now, the tracker then maps the binary form
+		RadioMap.writeBinaryCache(mean_file);
 
-		} catch (ConnectTimeoutException e) {
-			return "Connecting to Anyplace service is taking too long!";
-		} catch (SocketTimeoutException e) {
-			return "Communication with the server is taking too long!";
+		CacheMarker.write(okfile, mean_file, version);
+		return false;
+	}
+
+	/**
+	 * Downloads and applies the changes of the cached radio map
+	 * 
+	 * @return the version of the patched radio map, or null if it was not
+	 *         patched and must be downloaded whole
+	 */
+	private static String patchRadioMap(String url, String cred_str, File cached, String cachedVersion) {
+		File part = null;
+		try {
+			part = NetworkUtils.downloadHttpClientJsonPostFile(url, cred_str, new File(cached.getPath() + ".patch"), 20000);
+			if (NetworkUtils.readErrorResponse(part) != null)
+				return null;
+
+			RadioMapPatch patch = RadioMapPatch.read(part);
+			if (!patch.getFromVersion().equals(cachedVersion))
+				return null;
+
+			patch.apply(cached);
+			return patch.getToVersion();
 		} catch (Exception e) {
-			return "Error downloading radio maps [ " + e.getMessage() + " ]";
+			return null;
 		} finally {
-			if (releaseLock)
-				downInProgress = false;
+			if (part != null)
+				part.delete();
 		}
-
 	}
 
 	@Override
@@ -37,7 +37,6 @@
 package com.dmsl.anyplace.tasks;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.net.SocketTimeoutException;
 
 import org.apache.http.conn.ConnectTimeoutException;
@@ -47,7 +46,9 @@ import org.json.JSONObject;
 import android.content.Context;
 import android.os.AsyncTask;
 
+import com.dmsl.airplace.algorithms.RadioMap;
 import com.dmsl.anyplace.AnyplaceAPI;
+import com.dmsl.anyplace.cache.CacheMarker;
 import com.dmsl.anyplace.utils.AnyplaceUtils;
 import com.dmsl.anyplace.utils.NetworkUtils;
 
@@ -70,6 +71,7 @@ public class DownloadRadioMapTaskXY extends AsyncTask<Void, Void, String> {
 	private String mBuildID;
 	private String mFloor_number;
 	private Boolean mForceDonwload;
+	private String mVersion;
 
 	private boolean success = false;
 
@@ -102,6 +104,16 @@ public class DownloadRadioMapTaskXY extends AsyncTask<Void, Void, String> {
 
 	}
 
+	/**
+	 * Downloads the radio map again if the cached one is not this version
+	 * 
+	 * @param version
+	 *            the version on the server, null if unknown
+	 */
+	public void setVersion(String version) {
+		this.mVersion = version;
+	}
+
 	@Override
 	protected void onPreExecute() {
 	}
@@ -127,9 +139,15 @@ public class DownloadRadioMapTaskXY extends AsyncTask<Void, Void, String> {
 			String parameters_fname = mean_fname.replace(".txt", "-parameters.txt");
 
 			File okfile = new File(root, "ok.txt");
-			if (!mForceDonwload && okfile.exists()) {
-				success = true;
-				return "Successfully read radio map from cache!";
+			File cached = new File(root, mean_fname);
+			CacheMarker marker = CacheMarker.read(okfile);
+			if (!mForceDonwload && marker != null && marker.isCurrent(mVersion)) {
+				// Hashed again only without an up to date binary cache, as in
+				// DownloadRadioMapTaskBuid
+				if (RadioMap.isBinaryCacheCurrent(cached) || (marker.verify(okfile, cached) && RadioMap.writeBinaryCache(cached))) {
+					success = true;
+					return "Successfully read radio map from cache!";
+				}
 			}
 
 			okfile.delete();
@@ -154,33 +172,30 @@ public class DownloadRadioMapTaskXY extends AsyncTask<Void, Void, String> {
 			json_credentials.put("password", "pass");
 			String cred_str = json_credentials.toString();
 
-			String ms = NetworkUtils.downloadHttpClientJsonPost(means, cred_str);
-			String ps = NetworkUtils.downloadHttpClientJsonPost(parameters, cred_str);
-			String ws = NetworkUtils.downloadHttpClientJsonPost(weights, cred_str);
+			// Streamed to disk, an interrupted download resumes next time
+			File ms = NetworkUtils.downloadHttpClientJsonPostFile(means, cred_str, new File(root, mean_fname), 20000);
+			File ps = NetworkUtils.downloadHttpClientJsonPostFile(parameters, cred_str, new File(root, parameters_fname), 20000);
+			File ws = NetworkUtils.downloadHttpClientJsonPostFile(weights, cred_str, new File(root, rbf_weights_fname), 20000);
 
 			// check if the files downloaded correctly
-			if (ms.contains("error") || ps.contains("error") || ws.contains("error")) {
-				json = new JSONObject(response);
-				return "Error Message: " + json.getString("message");
+			File[] parts = { ms, ps, ws };
+			for (File part : parts) {
+				String error = NetworkUtils.readErrorResponse(part);
+				if (error != null) {
+					for (File p : parts)
+						p.delete();
+					return "Error Message: " + error;
+				}
 			}
 
-			FileWriter out;
-
-			out = new FileWriter(new File(root, rbf_weights_fname));
-			out.write(ws);
-			out.close();
-
-			out = new FileWriter(new File(root, parameters_fname));
-			out.write(ps);
-			out.close();
+			NetworkUtils.moveFile(ws, new File(root, rbf_weights_fname));
+			NetworkUtils.moveFile(ps, new File(root, parameters_fname));
+			NetworkUtils.moveFile(ms, new File(root, mean_fname));
 
-			out = new FileWriter(new File(root, mean_fname));
-			out.write(ms);
-			out.close();
+			// Parse once now, the tracker then maps the binary form
+			RadioMap.writeBinaryCache(new File(root, mean_fname));
 
-			out = new FileWriter(okfile);
-			out.write("ok;version:0;");
-			out.close();
+			CacheMarker.write(okfile, new File(root, mean_fname), mVersion);
 
 			success = true;
 			return "Successfully saved radio maps!";
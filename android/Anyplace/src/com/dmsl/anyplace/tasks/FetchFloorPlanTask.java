@@ -39,7 +39,6 @@ package com.dmsl.anyplace.tasks;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +53,7 @@ import android.os.AsyncTask;
 import android.os.Handler;
 
 import com.dmsl.anyplace.AnyplaceAPI;
+import com.dmsl.anyplace.cache.CacheMarker;
 import com.dmsl.anyplace.utils.AndroidUtils;
 import com.dmsl.anyplace.utils.NetworkUtils;
 
@@ -73,6 +73,8 @@ public class FetchFloorPlanTask extends AsyncTask<Void, Void, String> {
 	private Context ctx;
 	private String buid;
 	private String floor_number;
+	// Version of the floor plan on the server, null if unknown
+	private String version;
 
 	private File floor_plan_file;
 
@@ -88,6 +90,13 @@ public class FetchFloorPlanTask extends AsyncTask<Void, Void, String> {
 		this.floor_number = floor_number;
 	}
 
+	/**
+	 * Downloads the floor plan again if the cached one is not this version
+	 */
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
 	public void setCallbackInterface(FetchFloorPlanTaskListener fetchFloorPlanTaskListener) {
 		this.mListener = fetchFloorPlanTaskListener;
 	}
@@ -136,7 +145,9 @@ public class FetchFloorPlanTask extends AsyncTask<Void, Void, String> {
 			File okfile = new File(root, "ok.txt");
 
 			// check if the file already exists and if yes return immediately
-			if (dest_path.exists() && dest_path.canRead() && dest_path.isFile() && okfile.exists()) {
+			CacheMarker marker = CacheMarker.read(okfile);
+			// Markers written before they had a size are verified once
+			if (dest_path.canRead() && marker != null && marker.isCurrent(version) && (marker.matchesSize(dest_path) || marker.verify(okfile, dest_path))) {
 				floor_plan_file = dest_path;
 				success = true;
 				return "Successfully read floor plan from cache!";
@@ -153,9 +164,8 @@ public class FetchFloorPlanTask extends AsyncTask<Void, Void, String> {
 
 			is = NetworkUtils.downloadHttpClientJsonPostStream(AnyplaceAPI.getServeFloorTilesZipUrl(buid, floor_number), j.toString());
 
-			tempFile = new File(ctx.getCacheDir(), "FloorPlan" + Integer.toString((int) (Math.random() * 100)));
-			if (tempFile.exists())
-				throw new Exception("Temp File already in use");
+			// A unique name, the floors of a building are fetched in parallel
+			tempFile = File.createTempFile("FloorPlan", null, ctx.getCacheDir());
 
 			output = new FileOutputStream(tempFile);
 
@@ -173,9 +183,7 @@ public class FetchFloorPlanTask extends AsyncTask<Void, Void, String> {
 				// unzip the tiles_archive
 				AndroidUtils.unzip(dest_path.getAbsolutePath());
 
-				FileWriter out = new FileWriter(okfile);
-				out.write("ok;version:0;");
-				out.close();
+				CacheMarker.write(okfile, dest_path, version);
 			}
 
 			floor_plan_file = dest_path;
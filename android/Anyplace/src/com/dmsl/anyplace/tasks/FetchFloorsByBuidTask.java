@@ -158,6 +158,11 @@ public class FetchFloorsByBuidTask extends AsyncTask<Void, Void, String> {
                 b.top_right_lat = cp.optString("top_right_lat");
                 b.top_right_lng = cp.optString("top_right_lng");
 
+                // a cached radio map or floor plan of another version is
+                // downloaded again
+                b.radiomap_version = cp.optString("radiomap_version");
+                b.floor_plan_version = cp.optString("floor_plan_version");
+
                 floors.add(b);
             }
 
@@ -36,8 +36,18 @@
 
 package com.dmsl.anyplace.tasks;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -53,6 +63,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.dmsl.anyplace.AnyplaceAPI;
+import com.dmsl.anyplace.logger.LoggerWiFi;
+import com.dmsl.anyplace.logger.RSSLogBinary;
+import com.dmsl.anyplace.utils.AnyplaceUtils;
+import com.dmsl.anyplace.utils.ChunkedUpload;
+import com.dmsl.anyplace.utils.NetworkUtils;
 import com.dmsl.anyplace.utils.ProgressHttpEntityWrapper;
 import com.dmsl.anyplace.utils.ProgressHttpEntityWrapper.ProgressCallback;
 
@@ -62,6 +77,15 @@ import android.content.DialogInterface;
 import android.os.AsyncTask;
 import android.util.Log;
 
+/**
+ * Moves an RSS log to the upload queue and uploads every queued log. A log
+ * whose upload is interrupted or cancelled stays in the queue and is
+ * uploaded again with the next upload, or in the background when the logger
+ * starts again. Logs are sent in one multipart POST, or in chunks that resume
+ * from the acknowledged ones if the server has the chunked upload service.
+ * Compressed and binary logs are sent as text, binary logs as they are only
+ * to servers that read them.
+ */
 public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 
 	public interface UploadRSSLogTaskListener {
@@ -70,6 +94,8 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 		void onSuccess(String result);
 	}
 
+	private static final int BUFFER_SIZE = 8 * 1024;
+
 	private UploadRSSLogTaskListener mListener;
 
 	private String username, password;
@@ -78,10 +104,19 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 	private Context context;
 	private ProgressDialog dialog;
 	private int currentProgress = 0;
-	private HttpPost httppost;
+	private boolean chunked = false;
+	private boolean binaryAccepted = false;
+	private boolean background = false;
+	private volatile ChunkedUpload upload;
+	private volatile HttpPost httppost;
+	private volatile boolean stopped = false;
 
 	private boolean exceptionOccured = false;
 
+	/**
+	 * @param file
+	 *            the RSS log to queue, null to upload only the queued logs
+	 */
 	public UploadRSSLogTask(UploadRSSLogTaskListener l, Context ctx, String file, String username, String password){
 
 		this.context = ctx;
@@ -91,8 +126,62 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 		this.password = password;
 	}
 
+	/**
+	 * Uploads the logs in chunks with radio_upload_chunked, which resumes an
+	 * interrupted upload, instead of in one radio_upload POST. Only for
+	 * servers with the chunked upload service.
+	 */
+	public void setChunked(boolean chunked) {
+		this.chunked = chunked;
+	}
+
+	/**
+	 * Uploads binary RSS logs as they are, with the binary format field,
+	 * instead of as text. Only for servers that read the binary format.
+	 */
+	public void setBinaryAccepted(boolean binaryAccepted) {
+		this.binaryAccepted = binaryAccepted;
+	}
+
+	/**
+	 * Uploads without the progress dialog, e.g. the logs left in the queue
+	 * when the app was closed
+	 */
+	public void setBackground(boolean background) {
+		this.background = background;
+	}
+
+	/**
+	 * @return true if RSS logs wait in the upload queue
+	 */
+	public static boolean hasQueuedLogs(Context ctx) {
+		try {
+			return getQueuedLogs(AnyplaceUtils.getRSSLogUploadsRootFolder(ctx)).length > 0;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static File[] getQueuedLogs(File queue) {
+		File[] logs = queue.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String filename) {
+				return !ChunkedUpload.isStateFile(new File(dir, filename)) && !filename.endsWith(".tmp");
+			}
+		});
+		if (logs == null)
+			return new File[0];
+		// Named by the time they were queued
+		Arrays.sort(logs);
+		return logs;
+	}
+
 	@Override
 	protected void onPreExecute() {
+		if (background)
+			return;
+
 		dialog = new ProgressDialog(context);
 		dialog.setMax(100);
 		dialog.setMessage("Uploading file ...");
@@ -102,7 +191,13 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 		dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
 			@Override
 			public void onCancel(DialogInterface dialog) {
-				httppost.abort();
+				stopped = true;
+				ChunkedUpload current = upload;
+				if (current != null)
+					current.cancel();
+				HttpPost post = httppost;
+				if (post != null)
+					post.abort();
 			}
 		});
 		dialog.show();
@@ -115,47 +210,61 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 			j= new JSONObject();
 			j.put("username", username);
 			j.put("password", password);
-			String json = j.toString();
-			
-			File rsslog = new File(this.file);
-			if (rsslog.exists() == false) {
+
+			File queue = AnyplaceUtils.getRSSLogUploadsRootFolder(context);
+
+			if (this.file != null) {
+				File rsslog = new File(this.file);
+				if (rsslog.exists()) {
+					// The logger starts a new log, the queued one does not change
+					enqueue(rsslog, new File(queue, System.currentTimeMillis() + "-" + rsslog.getName()));
+				}
+			}
+
+			final File[] logs = getQueuedLogs(queue);
+			if (logs.length == 0) {
 				exceptionOccured = true;
 				return "File not found";
 			}
-			Log.d("radio upload", rsslog.toString());
-			String response;
-
-			HttpClient httpclient = new DefaultHttpClient();
-			httppost = new HttpPost(AnyplaceAPI.getRadioUploadUrl());
 
-			MultipartEntity entity = new MultipartEntity();
-			entity.addPart("radiomap", new FileBody(rsslog));
-			entity.addPart("json", new StringBody(json));
+			for (int i = 0; i < logs.length; i++) {
+				if (stopped)
+					throw new IOException("Uploading cancelled!");
 
-			ProgressCallback progressCallback = new ProgressCallback() {
+				// The server parses text logs, binary ones only if it says so
+				decode(logs[i], binaryAccepted);
 
-				@Override
-				public void progress(float progress) {
-					if (currentProgress != (int) (progress)) {
-						currentProgress = (int) progress;
-						publishProgress(currentProgress);
-					}
-				}
+				JSONObject fields = new JSONObject(j.toString());
+				if (RSSLogBinary.isBinary(logs[i]))
+					fields.put("format", RSSLogBinary.FORMAT);
 
-			};
+				final int done = i;
+				ProgressCallback progressCallback = new ProgressCallback() {
 
-			httppost.setEntity(new ProgressHttpEntityWrapper(entity, progressCallback));
-			HttpResponse httpresponse = httpclient.execute(httppost);
-			HttpEntity resEntity = httpresponse.getEntity();
-
-			response = EntityUtils.toString(resEntity);
+					@Override
+					public void progress(float progress) {
+						int overall = (int) ((done * 100 + progress) / logs.length);
+						if (currentProgress != overall) {
+							currentProgress = overall;
+							publishProgress(currentProgress);
+						}
+					}
 
-			Log.d("radio upload", "response: " + response);
+				};
+
+				Log.d("radio upload", logs[i].toString());
+				String response;
+				if (chunked) {
+					upload = new ChunkedUpload(AnyplaceAPI.getRadioUploadChunkedUrl(), logs[i]);
+					if (stopped)
+						upload.cancel();
+					response = upload.upload(fields, progressCallback);
+				} else {
+					response = uploadMultipart(logs[i], fields.toString(), progressCallback);
+				}
+				Log.d("radio upload", "response: " + response);
 
-			j = new JSONObject(response);
-			if (j.getString("status").equalsIgnoreCase("error")) {
-				exceptionOccured = true;
-				return "Error: " + j.getString("message");
+				logs[i].delete();
 			}
 
 		} catch (JSONException e) {
@@ -168,26 +277,142 @@ public class UploadRSSLogTask extends AsyncTask<Void, Integer, String> {
 			return "Cannot upload RSS log. ParseException occurred[ " + e.getMessage() + " ]";
 		} catch (IOException e) {
 			exceptionOccured = true;
-			Log.d("upload rss log", e.getMessage());
+			Log.d("upload rss log", String.valueOf(e.getMessage()));
 
-			if (httppost != null && httppost.isAborted()) {
-				return "Uploading cancelled!";
+			if (stopped) {
+				return "Uploading paused! It resumes with the next upload.";
 			} else {
-				return "Cannot upload RSS log. IOException occurred[ " + e.getMessage() + " ]";
+				return "Cannot upload RSS log. IOException occurred[ " + e.getMessage() + " ] It resumes with the next upload.";
 			}
 
+		} catch (Exception e) {
+			exceptionOccured = true;
+			return e.getMessage();
 		}
 		return "Successfully uploaded RSS log!";
 	}
 
+	/**
+	 * Uploads a log in one multipart POST
+	 * 
+	 * @return the reply of the server
+	 * @throws IOException
+	 *             if the upload failed, was cancelled or the reply is an
+	 *             error
+	 */
+	private String uploadMultipart(File rsslog, String json, ProgressCallback progressCallback) throws IOException, JSONException {
+		HttpClient httpclient = new DefaultHttpClient();
+		HttpPost post = new HttpPost(AnyplaceAPI.getRadioUploadUrl());
+
+		MultipartEntity entity = new MultipartEntity();
+		entity.addPart("radiomap", new FileBody(rsslog));
+		entity.addPart("json", new StringBody(json));
+		post.setEntity(new ProgressHttpEntityWrapper(entity, progressCallback));
+
+		httppost = post;
+		if (stopped)
+			post.abort();
+		try {
+			HttpResponse httpresponse = httpclient.execute(post);
+			HttpEntity resEntity = httpresponse.getEntity();
+			String response = EntityUtils.toString(resEntity);
+
+			JSONObject j = new JSONObject(response);
+			if (j.getString("status").equalsIgnoreCase("error"))
+				throw new IOException("Error: " + j.getString("message"));
+			return response;
+		} finally {
+			httppost = null;
+		}
+	}
+
+	/**
+	 * Rewrites a gzip log, or a binary log unless the server accepts it, as
+	 * the text log it holds, in place, so an interrupted upload resumes with
+	 * the text
+	 */
+	private static void decode(File rsslog, boolean binaryAccepted) throws IOException {
+		boolean binary = RSSLogBinary.isBinary(rsslog);
+		if (binary ? binaryAccepted : !LoggerWiFi.isGzip(rsslog))
+			return;
+
+		File tmp = new File(rsslog.getPath() + ".tmp");
+		if (binary) {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp)), BUFFER_SIZE);
+			try {
+				RSSLogBinary.toText(rsslog, out);
+			} finally {
+				out.close();
+			}
+		} else {
+			// Every saved line of the log is a gzip member, read one after
+			// the other as with RadioMapBuilder
+			InputStream is = new GZIPInputStream(new FileInputStream(rsslog), BUFFER_SIZE);
+			OutputStream os = null;
+			try {
+				os = new FileOutputStream(tmp);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = is.read(buffer)) != -1)
+					os.write(buffer, 0, n);
+			} finally {
+				try {
+					is.close();
+					if (os != null)
+						os.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		// A chunked upload of the encoded log starts over
+		ChunkedUpload.getStateFile(rsslog).delete();
+		NetworkUtils.moveFile(tmp, rsslog);
+	}
+
+	/**
+	 * Moves a log to the queue, copying it if the queue is on another
+	 * file system
+	 */
+	private static void enqueue(File rsslog, File queued) throws IOException {
+		if (rsslog.renameTo(queued))
+			return;
+
+		File tmp = new File(queued.getPath() + ".tmp");
+		InputStream is = new FileInputStream(rsslog);
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmp);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = is.read(buffer)) != -1)
+				os.write(buffer, 0, n);
+		} finally {
+			try {
+				is.close();
+				if (os != null)
+					os.close();
+			} catch (IOException e) {
+			}
+		}
+
+		if (!tmp.renameTo(queued)) {
+			tmp.delete();
+			throw new IOException("Cannot queue " + rsslog.getName());
+		}
+		rsslog.delete();
+	}
+
 	@Override
 	protected void onProgressUpdate(Integer... values) {
-		dialog.setProgress(values[0]);
+		if (dialog != null)
+			dialog.setProgress(values[0]);
 	}
 
 	@Override
 	protected void onPostExecute(String result) {
-		dialog.dismiss();
+		if (dialog != null)
+			dialog.dismiss();
 
 		if (exceptionOccured) {
 			// call the error listener
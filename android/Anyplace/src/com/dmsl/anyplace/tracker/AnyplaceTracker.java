@@ -43,6 +43,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.content.Intent;
@@ -56,8 +59,11 @@ import com.dmsl.anyplace.nav.AnyUserData.FakeResults;
 import com.dmsl.anyplace.sensors.SensorsMain;
 import com.dmsl.anyplace.wifi.SimpleWifiManager;
 import com.dmsl.anyplace.wifi.WifiReceiver;
+import com.dmsl.airplace.algorithms.LocationGrid;
 import com.dmsl.airplace.algorithms.LogRecord;
+import com.dmsl.airplace.algorithms.Observation;
 import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.airplace.algorithms.ScanWindow;
 
 /**
  * The main tracker component of Anyplace Navigator. Detects changes in WiFi
@@ -139,10 +145,20 @@ public class AnyplaceTracker {
 	private Future future;
 	private boolean trackMe;
 	private boolean trackResume;
-	// The latest scan list of APs and heading
-	private ArrayList<LogRecord> latestScanList = new ArrayList<LogRecord>();
+	// The latest scan not yet positioned, a newer scan replaces it
+	private final AtomicReference<Scan> pendingScan = new AtomicReference<Scan>();
+	// True while a worker is submitted to drain pendingScan
+	private final AtomicBoolean draining = new AtomicBoolean(false);
 	private float RAWheading;
 
+	// Throughput, scans received, replaced before positioned and positioned
+	private final AtomicLong scansReceived = new AtomicLong();
+	private final AtomicLong scansCoalesced = new AtomicLong();
+	private final AtomicLong scansProcessed = new AtomicLong();
+	// Time from receiving a scan to its fix, in milliseconds
+	private volatile long lastFixLatency = 0;
+	private final AtomicLong totalFixLatency = new AtomicLong();
+
 	// WiFi manager
 	private SimpleWifiManager wifi;
 	// WiFi Receiver
@@ -153,6 +169,30 @@ public class AnyplaceTracker {
 	private String radiomap_file;
 	private byte algoChoice;
 	private RadioMap rm;
+	// Latest scan aligned to the radio map columns, reused on every fix
+	private Observation observation;
+	// Score a scan by the change from the previous one
+	private boolean incremental = false;
+	// Average the last scans per AP, a window of 1 scan positions every scan
+	// alone
+	private int windowScans = 1;
+	private long windowAge = 0;
+	private volatile boolean windowWeighted = false;
+	private ScanWindow window;
+
+	// Candidate pruning, score only the locations near the last filtered fix
+	// A pruned fix is rejected when it lands this close to the search edge
+	private static final double SEARCH_EDGE_RATIO = 0.75;
+	// A filtered fix older than this is no longer used as search center
+	private static final long SEARCH_CENTER_TIMEOUT = 10000;
+	// Minimum number of locations in the search area to prune
+	private static final int SEARCH_MIN_CANDIDATES = 8;
+	// Search radius in meters, 0 scores all the locations
+	private volatile double searchRadius = 0;
+	private volatile LatLng searchCenter;
+	private volatile long searchCenterTimestamp;
+	private LocationGrid grid;
+	private int[] candidates;
 	// private com.cy.wifi.algorithms.Algorithms algo; //RBF
 
 	// flags
@@ -227,6 +267,11 @@ public class AnyplaceTracker {
 
 		try {
 			rm = new RadioMap(new File(radiomap_file));
+			observation = new Observation(rm);
+			observation.setIncremental(incremental);
+			window = windowScans > 1 ? new ScanWindow(rm, windowScans, windowAge) : null;
+			grid = null;
+			candidates = null;
 		} catch (Exception e) {
 			triggerErrorListeners("Error while reading radio map.\nDownload new Radio Map and try again");
 			return false;
@@ -244,10 +289,16 @@ public class AnyplaceTracker {
 		waitFindMe();
 
 		trackMe = false;
+		pendingScan.set(null);
 
 		pauseTracking();
 
 		rm = null;
+		observation = null;
+		window = null;
+		grid = null;
+		candidates = null;
+		clearSearchCenter();
 	}
 
 	// used in Activity Pause
@@ -320,14 +371,188 @@ public class AnyplaceTracker {
 
 	}
 
+	/**
+	 * Enables scoring a scan by applying only the change of the APs from the
+	 * previous scan. Takes effect on the next trackOn.
+	 * */
+	public void setIncrementalScoring(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Positions the mean RSS of every AP over the last scans instead of the
+	 * latest scan alone. Takes effect on the next trackOn.
+	 * 
+	 * @param scans
+	 *            the number of scans averaged, 1 to position every scan alone
+	 * @param maxAge
+	 *            scans older than this many milliseconds are not averaged, 0
+	 *            to average all the scans
+	 * @param weighted
+	 *            weight every AP by the stability of its RSS over the scans
+	 * */
+	public void setScanWindow(int scans, long maxAge, boolean weighted) {
+		if (scans < 1)
+			throw new IllegalArgumentException("scans must be positive");
+		this.windowScans = scans;
+		this.windowAge = maxAge;
+		this.windowWeighted = weighted;
+	}
+
+	/**
+	 * Enables scoring only the radio map locations around the last filtered
+	 * position, given with setSearchCenter
+	 * 
+	 * @param meters
+	 *            the search radius, 0 scores all the locations
+	 * */
+	public void setSearchRadius(double meters) {
+		searchRadius = meters;
+	}
+
+	/**
+	 * Sets the filtered position the next fixes are searched around
+	 * */
+	public void setSearchCenter(LatLng pos) {
+		searchCenterTimestamp = System.currentTimeMillis();
+		searchCenter = pos;
+	}
+
+	/**
+	 * Forces the next fixes to score all the locations, until a new search
+	 * center is set
+	 * */
+	public void clearSearchCenter() {
+		searchCenter = null;
+	}
+
+	/**
+	 * Tracks again from the next fix, e.g. when the user is somewhere else
+	 * */
+	public void reset() {
+		clearSearchCenter();
+	}
+
+	/**
+	 * Restricts the observation to the locations around the search center
+	 * 
+	 * @return true if the locations were pruned
+	 * */
+	private boolean pruneCandidates() {
+		final double radius = searchRadius;
+		final LatLng center = searchCenter;
+
+		if (radius <= 0 || center == null || System.currentTimeMillis() - searchCenterTimestamp > SEARCH_CENTER_TIMEOUT)
+			return false;
+
+		if (grid == null) {
+			grid = new LocationGrid(rm, radius);
+			candidates = new int[rm.getLocationsCount()];
+		}
+
+		int count = grid.search(center.latitude, center.longitude, radius, candidates);
+		if (count < SEARCH_MIN_CANDIDATES)
+			return false;
+
+		observation.setCandidates(candidates, count);
+		return true;
+	}
+
+	/**
+	 * A WiFi scan as received, never modified once published
+	 * */
+	private static class Scan {
+		final ArrayList<LogRecord> records;
+		final float heading;
+		final long timestamp;
+
+		Scan(ArrayList<LogRecord> records, float heading) {
+			this.records = records;
+			this.heading = heading;
+			this.timestamp = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Hands a scan to the positioning worker. A scan still waiting is
+	 * replaced, only the latest one is positioned. Runs on the UI thread.
+	 * */
+	private void postScan(Scan scan) {
+		scansReceived.incrementAndGet();
+		if (pendingScan.getAndSet(scan) != null)
+			scansCoalesced.incrementAndGet();
+
+		if (draining.compareAndSet(false, true)) {
+			future = executorService.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					drainScans();
+				}
+			});
+		}
+	}
+
+	private void drainScans() {
+		while (true) {
+			Scan scan = pendingScan.getAndSet(null);
+			if (scan == null) {
+				draining.set(false);
+				// A scan posted after the check and before the flag was cleared
+				if (pendingScan.get() == null || !draining.compareAndSet(false, true))
+					return;
+				continue;
+			}
+
+			if (trackMe && trackResume) {
+				findMe(scan);
+				scansProcessed.incrementAndGet();
+				lastFixLatency = System.currentTimeMillis() - scan.timestamp;
+				totalFixLatency.addAndGet(lastFixLatency);
+			}
+		}
+	}
+
+	public long getScansReceived() {
+		return scansReceived.get();
+	}
+
+	/**
+	 * @return the number of scans replaced by a newer one before they were
+	 *         positioned
+	 * */
+	public long getScansCoalesced() {
+		return scansCoalesced.get();
+	}
+
+	public long getScansProcessed() {
+		return scansProcessed.get();
+	}
+
+	/**
+	 * @return the time from receiving the last positioned scan to its fix, in
+	 *         milliseconds
+	 * */
+	public long getLastFixLatency() {
+		return lastFixLatency;
+	}
+
+	public long getAverageFixLatency() {
+		long processed = scansProcessed.get();
+		return processed == 0 ? 0 : totalFixLatency.get() / processed;
+	}
+
 	/**
 	 * Starts the appropriate positioning algorithm
 	 * */
-	private boolean findMe() {
+	private boolean findMe(Scan scan) {
 		if (!setProgress()) {
 			return false;
 		}
 		try {
+			final ArrayList<LogRecord> latestScanList = scan.records;
+			RAWheading = scan.heading;
+
 			// long startTime = System.currentTimeMillis();
 			if (latestScanList.isEmpty()) {
 				triggerErrorListeners("No Access Point Received.\nWait for a scan first and try again.");
@@ -340,14 +565,29 @@ public class AnyplaceTracker {
 			// return false;
 			// }
 			// } else {
-			String calculatedLocation = com.dmsl.airplace.algorithms.Algorithms.ProcessingAlgorithms(latestScanList, rm, algoChoice);
+			if (window != null)
+				window.add(latestScanList, scan.timestamp);
+
+			String calculatedLocation;
+			if (pruneCandidates()) {
+				calculatedLocation = calculateLocation(latestScanList);
+				observation.clearCandidates();
+
+				// Low confidence, the user may be outside the search area
+				final LatLng center = searchCenter;
+				if (calculatedLocation == null || center == null || isNearSearchEdge(calculatedLocation, center)) {
+					calculatedLocation = calculateLocation(latestScanList);
+				}
+			} else {
+				calculatedLocation = calculateLocation(latestScanList);
+			}
 
 			if (calculatedLocation == null) {
 				triggerErrorListeners("Can't find location. Check that radio map file refers to the same area.");
 			} else {
 				String[] temp = calculatedLocation.split(" ");
-				LatLng trackedPosition = new LatLng(Double.parseDouble(temp[0]), Double.parseDouble(temp[1]));			
-				triggerTrackedLocListeners(trackedPosition);
+				LatLng trackedPosition = new LatLng(Double.parseDouble(temp[0]), Double.parseDouble(temp[1]));
+				onNewFix(observation, trackedPosition);
 			}
 
 			// }
@@ -365,6 +605,30 @@ public class AnyplaceTracker {
 
 	}
 
+	private String calculateLocation(ArrayList<LogRecord> latestScanList) {
+		if (window != null)
+			return com.dmsl.airplace.algorithms.Algorithms.ProcessingAlgorithms(window, windowWeighted, observation, algoChoice);
+		return com.dmsl.airplace.algorithms.Algorithms.ProcessingAlgorithms(latestScanList, observation, algoChoice);
+	}
+
+	/**
+	 * Called on the tracker thread for every position calculated
+	 * 
+	 * @param observation
+	 *            still holds the scan aligned to the radio map
+	 * @param pos
+	 *            the position calculated by the algorithm
+	 * */
+	protected void onNewFix(Observation observation, LatLng pos) {
+		triggerTrackedLocListeners(pos);
+	}
+
+	private boolean isNearSearchEdge(String location, LatLng center) {
+		String[] temp = location.split(" ");
+		double distance = LocationGrid.distance(Double.parseDouble(temp[0]), Double.parseDouble(temp[1]), center.latitude, center.longitude);
+		return distance > searchRadius * SEARCH_EDGE_RATIO;
+	}
+
 	/*
 	 * private boolean calculateRBFPosition() {
 	 * 
@@ -409,16 +673,11 @@ public class AnyplaceTracker {
 
 				if (trackMe && trackResume) {
 
-					if (future != null && future.isDone() == false)
-						return;
-
 					if (AnyplaceAPI.DEBUG_WIFI) {
 						FakeResults r = AnyUserData.fakeScan();
-						latestScanList = r.records;
-						RAWheading = r.heading;
+						postScan(new Scan(r.records, r.heading));
 					} else {
-						RAWheading = positioning.getRAWHeading();
-						latestScanList.clear();
+						ArrayList<LogRecord> latestScanList = new ArrayList<LogRecord>(wifiList == null ? 0 : wifiList.size());
 
 						LogRecord lr = null;
 
@@ -429,15 +688,9 @@ public class AnyplaceTracker {
 								latestScanList.add(lr);
 							}
 						}
-					}
-
-					future = executorService.submit(new Runnable() {
 
-						@Override
-						public void run() {
-							findMe();
-						}
-					});
+						postScan(new Scan(latestScanList, positioning.getRAWHeading()));
+					}
 
 				}
 
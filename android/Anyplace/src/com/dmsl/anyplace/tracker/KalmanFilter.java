@@ -38,11 +38,17 @@ package com.dmsl.anyplace.tracker;
 
 import com.google.android.gms.maps.model.LatLng;
 
-import Jama.Matrix;
-
+/**
+ * Constant velocity Kalman filter of the tracked position.
+ * 
+ * The state is [lat, lon, v_lat, v_lon] and only the position is measured.
+ * The two axes never mix and start with the same covariance, so both share a
+ * single 2x2 position/velocity covariance and the innovation covariance is
+ * diagonal. The filter is written out in closed form on double fields and
+ * gives the same results as the 4x4 matrix form, without allocating.
+ */
 public class KalmanFilter {
 
-	// http://math.nist.gov/javanumerics/jama/doc/
 	// the variance of the positioning error
 	private static final double sigmaR = 2;
 	// wifi library update every 1 second
@@ -50,43 +56,66 @@ public class KalmanFilter {
 	// uncertainty in the systemF dynamics
 	private static final double sigmaQ = 0.1 * Math.sqrt(2 / Math.PI);
 
-	private final Matrix GQGTrans;
+	// G Q G' on the velocity and R on the position
+	private static final double GQGTrans = dt * (sigmaQ * sigmaQ) * dt;
+	private static final double R = sigmaR * sigmaR;
 
-	private final Matrix F;
-	private final Matrix M;
-	private final Matrix R;
+	// state
+	private double lat;
+	private double lot;
+	private double vlat;
+	private double vlot;
 
-	private Matrix p;
-	private Matrix x;
+	// covariance of each axis, [0] position and [2] velocity
+	private double p00 = sigmaR * sigmaR;
+	private double p02 = 0;
+	private double p20 = 0;
+	private double p22 = 15 * 15;
 
 	public KalmanFilter(double lat0, double lot0) {
-
-		Matrix Q = new Matrix(new double[][] { { sigmaQ * sigmaQ, 0 }, { 0, sigmaQ * sigmaQ } });
-		R = new Matrix(new double[][] { { sigmaR * sigmaR, 0 }, { 0, sigmaR * sigmaR } });
-		F = new Matrix(new double[][] { { 1, 0, dt, 0 }, { 0, 1, 0, dt }, { 0, 0, 1, 0 }, { 0, 0, 0, 1 } });
-		Matrix G = new Matrix(new double[][] { { 0, 0 }, { 0, 0 }, { dt, 0 }, { 0, dt } });
-		M = new Matrix(new double[][] { { 1, 0, 0, 0 }, { 0, 1, 0, 0 } });
-		p = new Matrix(new double[][] { { sigmaR * sigmaR, 0, 0, 0 }, { 0, sigmaR * sigmaR, 0, 0 }, { 0, 0, 15 * 15, 0 }, { 0, 0, 0, 15 * 15 } });
-
-		GQGTrans = G.times(Q).times(G.transpose());
 		reset(lat0, lot0);
 	}
 
+	/**
+	 * Restarts from a position at rest. The covariance is kept.
+	 */
 	public void reset(double lat0, double lot0) {
-		x = new Matrix(new double[][] { { lat0 }, { lot0 }, { 0 }, { 0 } });
+		lat = lat0;
+		lot = lot0;
+		vlat = 0;
+		vlot = 0;
 	}
 
 	public LatLng update(double lat, double lot) {
 		// predict
-		Matrix x_bar = F.times(x);
-		Matrix p_bar = (F.times(p).times(F.transpose())).plus(GQGTrans);
+		double lat_bar = this.lat + dt * vlat;
+		double lot_bar = this.lot + dt * vlot;
+
+		double fp00 = p00 + dt * p20;
+		double fp02 = p02 + dt * p22;
+		double p_bar00 = fp00 + fp02 * dt;
+		double p_bar02 = fp02;
+		double p_bar20 = p20 + p22 * dt;
+		double p_bar22 = p22 + GQGTrans;
+
 		// Update
-		Matrix mpmr = (M.times(p_bar).times(M.transpose()).plus(R)).inverse();
-		Matrix k = p_bar.times(M.transpose()).times(mpmr);
-		Matrix Y = new Matrix(new double[][] { { lat }, { lot } });
-		x = x_bar.plus(k.times(Y.minus(M.times(x_bar))));
-		p = (Matrix.identity(4, 4).minus(k.times(M))).times(p_bar);
-		return new LatLng(x.get(0, 0), x.get(1, 0));
+		double mpmr = 1 / (p_bar00 + R);
+		double k0 = p_bar00 * mpmr;
+		double k2 = p_bar20 * mpmr;
+
+		double ylat = lat - lat_bar;
+		double ylot = lot - lot_bar;
+		this.lat = lat_bar + k0 * ylat;
+		this.lot = lot_bar + k0 * ylot;
+		vlat = vlat + k2 * ylat;
+		vlot = vlot + k2 * ylot;
+
+		p00 = (1 - k0) * p_bar00;
+		p02 = (1 - k0) * p_bar02;
+		p20 = p_bar20 - k2 * p_bar00;
+		p22 = p_bar22 - k2 * p_bar02;
+
+		return new LatLng(this.lat, this.lot);
 	}
 
 	public static class Point {
@@ -133,7 +162,8 @@ class Test {
 
 		for (int i = 1; i < wifis.length; i++) {
 			double[] wifi = wifis[i];
-			KalmanFilter.Point p = new KalmanFilter.Point(0,0); //= filter.update(wifi[0], wifi[1]);
+			LatLng pos = filter.update(wifi[0], wifi[1]);
+			KalmanFilter.Point p = new KalmanFilter.Point(pos.latitude, pos.longitude);
 
 			System.out.println(String.format("V%d: %4.3f. %4.3f", i, p.x, p.y));
 			System.out.println(String.format("V%d: %4.3f. %4.3f", i, kfl[i][0], kfl[i][1]));
@@ -36,89 +36,186 @@
 
 package com.dmsl.anyplace.tracker;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import com.google.android.gms.maps.model.LatLng;
 
+/**
+ * Median of the last positions of each axis, used while standing still.
+ */
 public class RunningMedian {
 
-	private static final int LENGTH = 10;
-	private List<Double> lats;
-	private List<Double> lonts;
-	private List<Double> lats_history;
-	private List<Double> lonts_history;
+	public static final int DEFAULT_LENGTH = 10;
+
+	private final int length;
+	private final Window lats;
+	private final Window lonts;
 
 	RunningMedian(double lat0, double lot0) {
-		lats = new ArrayList<Double>(LENGTH / 2);
-		lonts = new ArrayList<Double>(LENGTH / 2);
-		lats_history = new ArrayList<Double>(LENGTH / 2);
-		lonts_history = new ArrayList<Double>(LENGTH / 2);
+		this(lat0, lot0, DEFAULT_LENGTH);
+	}
+
+	/**
+	 * @param length
+	 *            the number of last positions in the window
+	 */
+	public RunningMedian(double lat0, double lot0, int length) {
+		if (length < 1)
+			throw new IllegalArgumentException("length must be positive");
+		this.length = length;
+		lats = new Window(length);
+		lonts = new Window(length);
 		reset(lat0, lot0);
 	}
 
+	public int getLength() {
+		return length;
+	}
+
 	public void reset(double lat0, double lot0) {
 		lats.clear();
 		lonts.clear();
-		lats_history.clear();
-		lonts_history.clear();
-		Double xd = new Double(lat0);
-		Double yd = new Double(lot0);
-		lats.add(xd);
-		lonts.add(yd);
-		lats_history.add(xd);
-		lonts_history.add(yd);
+		lats.add(lat0);
+		lonts.add(lot0);
 	}
 
-	private void insertLat(double lat, int i) {
-		Double xd = new Double(lat);
-		lats.add(i, xd);
-		lats_history.add(0, xd);
+	public LatLng update(double lat, double lot) {
+		lats.add(lat);
+		lonts.add(lot);
+		return new LatLng(lats.median(), lonts.median());
+	}
 
-		if (lats.size() > LENGTH) {
-			lats.remove(lats_history.remove(lats_history.size() - 1));
+	/**
+	 * The last values of an axis in a ring buffer, split into a max-heap of
+	 * the lower half and a min-heap of the upper half. The heaps hold ring
+	 * slots and every slot knows its heap position, so the oldest value is
+	 * removed in O(log n).
+	 */
+	private static class Window {
+
+		private final double[] values;
+		// The size / 2 smallest values
+		private final int[] low;
+		// The rest, its root is the median
+		private final int[] high;
+		// Position of each slot, ~position if in low
+		private final int[] positions;
+
+		private int lowSize = 0;
+		private int highSize = 0;
+		private int oldest = 0;
+		private int size = 0;
+
+		Window(int length) {
+			values = new double[length];
+			low = new int[length];
+			high = new int[length];
+			positions = new int[length];
+		}
+
+		void clear() {
+			lowSize = 0;
+			highSize = 0;
+			oldest = 0;
+			size = 0;
 		}
-	}
 
-	private void insertLont(double lot, int i) {
-		Double yd = new Double(lot);
-		lonts.add(i, yd);
-		lonts_history.add(0, yd);
+		void add(double value) {
+			int slot;
+			if (size == values.length) {
+				slot = oldest;
+				int position = positions[slot];
+				if (position < 0)
+					removeAt(true, ~position);
+				else
+					removeAt(false, position);
+				oldest = (oldest + 1) % values.length;
+			} else {
+				slot = (oldest + size) % values.length;
+				size++;
+			}
 
-		if (lonts.size() > LENGTH) {
-			lonts.remove(lonts_history.remove(lonts_history.size() - 1));
+			values[slot] = value;
+			if (lowSize > 0 && value < values[low[0]])
+				push(true, slot);
+			else
+				push(false, slot);
+
+			// Keep the median at the root of high
+			while (lowSize > size / 2)
+				push(false, pop(true));
+			while (lowSize < size / 2)
+				push(true, pop(false));
 		}
-	}
 
-	public LatLng update(double lat, double lot) {
+		/**
+		 * @return the value at size / 2 of the sorted window
+		 */
+		double median() {
+			return values[high[0]];
+		}
+
+		// True if slot a belongs nearer the root than slot b
+		private boolean before(boolean isLow, int a, int b) {
+			return isLow ? values[a] > values[b] : values[a] < values[b];
+		}
 
-		boolean waitX = true;
-		boolean waitY = true;
-		int i;
-		final int size = lats.size();
-		
-		for (i = 0; i < size && (waitX || waitY); i++) {
-			if (waitX && lat < lats.get(i)) {
-				insertLat(lat, i);
-				waitX = false;
+		private void set(boolean isLow, int i, int slot) {
+			if (isLow) {
+				low[i] = slot;
+				positions[slot] = ~i;
+			} else {
+				high[i] = slot;
+				positions[slot] = i;
 			}
+		}
 
-			if (waitY && lot < lonts.get(i)) {
-				insertLont(lot, i);
-				waitY = false;
+		private void siftUp(boolean isLow, int i) {
+			int[] heap = isLow ? low : high;
+			int slot = heap[i];
+			while (i > 0 && before(isLow, slot, heap[(i - 1) / 2])) {
+				set(isLow, i, heap[(i - 1) / 2]);
+				i = (i - 1) / 2;
 			}
+			set(isLow, i, slot);
 		}
 
-		if (waitX) {
-			insertLat(lat, i);
-			waitX = false;
+		private void siftDown(boolean isLow, int i) {
+			int[] heap = isLow ? low : high;
+			int n = isLow ? lowSize : highSize;
+			int slot = heap[i];
+			int child;
+			while ((child = 2 * i + 1) < n) {
+				if (child + 1 < n && before(isLow, heap[child + 1], heap[child]))
+					child++;
+				if (!before(isLow, heap[child], slot))
+					break;
+				set(isLow, i, heap[child]);
+				i = child;
+			}
+			set(isLow, i, slot);
 		}
 
-		if (waitY) {
-			insertLont(lot, i);
-			waitY = false;
+		private void push(boolean isLow, int slot) {
+			int i = isLow ? lowSize++ : highSize++;
+			set(isLow, i, slot);
+			siftUp(isLow, i);
 		}
 
-		return new LatLng(lats.get(lats.size() / 2), lonts.get(lonts.size() / 2));
+		private int pop(boolean isLow) {
+			int slot = isLow ? low[0] : high[0];
+			removeAt(isLow, 0);
+			return slot;
+		}
+
+		private void removeAt(boolean isLow, int i) {
+			int[] heap = isLow ? low : high;
+			int last = isLow ? --lowSize : --highSize;
+			if (i == last)
+				return;
+			int slot = heap[last];
+			set(isLow, i, slot);
+			siftUp(isLow, i);
+			int position = positions[slot];
+			siftDown(isLow, position < 0 ? ~position : position);
+		}
 	}
 }
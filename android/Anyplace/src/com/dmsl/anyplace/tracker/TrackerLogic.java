@@ -67,6 +67,7 @@ public class TrackerLogic extends AnyplaceTracker {
 	private boolean reset = false;
 	private KalmanFilter kalmanFilter;
 	private RunningMedian runningMedian;
+	private volatile int medianLength = RunningMedian.DEFAULT_LENGTH;
 	private boolean walking_old = false;
 	private boolean walking = false;
 
@@ -101,9 +102,10 @@ public class TrackerLogic extends AnyplaceTracker {
 			TrackerLogic.super.addListener((AnyplaceTracker.TrackedLocAnyplaceTrackerListener) new TrackerListener());
 
 			kalmanFilter = new KalmanFilter(pos.latitude, pos.longitude);
-			runningMedian = new RunningMedian(pos.latitude, pos.longitude);
+			runningMedian = new RunningMedian(pos.latitude, pos.longitude, medianLength);
 
 			walking_old = walking;
+			setSearchCenter(pos);
 			triggerTrackedLocListeners(pos);
 		}
 
@@ -119,7 +121,7 @@ public class TrackerLogic extends AnyplaceTracker {
 			if (reset) {
 				reset = false;
 				kalmanFilter.reset(pos.latitude, pos.longitude);
-				runningMedian.reset(pos.latitude, pos.longitude);
+				resetMedian(pos);
 			}
 
 			if (walking) {
@@ -131,18 +133,36 @@ public class TrackerLogic extends AnyplaceTracker {
 				}
 			} else {
 				if (walking_old != false) {
-					runningMedian.reset(pos.latitude, pos.longitude);
+					resetMedian(pos);
 					walking_old = false;
 				} else {
 					result = runningMedian.update(pos.latitude, pos.longitude);
 				}
 			}
 
+			setSearchCenter(result);
 			triggerTrackedLocListeners(result);
 		}
 
 	}
 
+	/**
+	 * Sets the number of last positions whose median is tracked while
+	 * standing, from the next time the user stops
+	 */
+	public void setMedianLength(int length) {
+		if (length < 1)
+			throw new IllegalArgumentException("length must be positive");
+		medianLength = length;
+	}
+
+	private void resetMedian(LatLng pos) {
+		if (runningMedian.getLength() != medianLength)
+			runningMedian = new RunningMedian(pos.latitude, pos.longitude, medianLength);
+		else
+			runningMedian.reset(pos.latitude, pos.longitude);
+	}
+
 	@Override
 	public void trackOff() {
 		// Wait before Change listener because a separate thread may change
@@ -151,8 +171,10 @@ public class TrackerLogic extends AnyplaceTracker {
 		reset = true;
 	}
 
+	@Override
 	public void reset() {
 		reset = true;
+		clearSearchCenter();
 	}
 
 }
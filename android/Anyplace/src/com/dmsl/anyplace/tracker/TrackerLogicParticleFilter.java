@@ -0,0 +1,347 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.dmsl.airplace.algorithms.Algorithms;
+import com.dmsl.airplace.algorithms.LocationGrid;
+import com.dmsl.airplace.algorithms.Observation;
+import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.anyplace.sensors.SensorsMain;
+import com.dmsl.anyplace.sensors.SensorsStepCounter;
+import com.dmsl.anyplace.sensors.SensorsStepCounter.IStepListener;
+import com.google.android.gms.maps.model.LatLng;
+
+//On Step => Move particles by step length and heading
+//On Scan  => Weight particles by the fingerprint likelihood and resample
+public class TrackerLogicParticleFilter extends AnyplaceTracker {
+
+	public static final int DEFAULT_PARTICLES = 500;
+
+	// Measurement model, the MAP parameter of Algorithms
+	private static final float sGreek = 4;
+	// A particle takes the likelihood of the nearest location within this
+	// distance, or the lowest likelihood of the scan if there is none
+	private static final double NEAREST_RADIUS = 5;
+	// Spread of the particles around the fix they start from, meters
+	private static final double INIT_SPREAD = 3;
+	// Start again from the fix when it is this far from the estimate, meters
+	private static final double REINIT_DISTANCE = 25;
+	// Standard deviation of the step length (ratio) and heading (degrees)
+	private static final double STEP_NOISE = 0.15;
+	private static final double HEADING_NOISE = 15;
+	// Standard deviation of the jitter after resampling, meters
+	private static final double ROUGHENING = 0.3;
+
+	private static final double METERS_PER_DEGREE = Math.PI * 6378137 / 180;
+
+	private List<TrackedLocAnyplaceTrackerListener> tllisteners = new ArrayList<TrackedLocAnyplaceTrackerListener>();
+
+	public void addListener(TrackedLocAnyplaceTrackerListener list) {
+		tllisteners.add(list);
+	}
+
+	public void removeListener(TrackedLocAnyplaceTrackerListener list) {
+		tllisteners.remove(list);
+	}
+
+	private void triggerTrackedLocListeners(LatLng pos) {
+		for (TrackedLocAnyplaceTrackerListener l : tllisteners) {
+			l.onNewLocation(pos);
+		}
+	}
+
+	// Particles, the resampled set is written to the spare arrays
+	private final int N;
+	private double[] lats;
+	private double[] lons;
+	private double[] spareLats;
+	private double[] spareLons;
+	private final double[] weights;
+	private boolean initialised = false;
+	private double estimateLat;
+	private double estimateLon;
+	private final Random random = new Random();
+	private final Object lock = new Object();
+
+	// Motion model
+	private final SensorsMain sensorsMain;
+	private final double stepLength;
+	private float prevSteps;
+	private boolean stepsInit = false;
+
+	// Measurement model of the current radio map, only used by the thread of
+	// the fixes so a scan is scored without holding the lock
+	private RadioMap rm;
+	private LocationGrid grid;
+	private double[] logLikelihoods;
+
+	private volatile boolean reset = false;
+
+	public TrackerLogicParticleFilter(SensorsMain sensorsMain, SensorsStepCounter sensorsStep) {
+		this(sensorsMain, sensorsStep, DEFAULT_PARTICLES);
+	}
+
+	/**
+	 * @param particles
+	 *            the number of particles, more is more accurate and costs more
+	 *            CPU per scan and step
+	 */
+	public TrackerLogicParticleFilter(SensorsMain sensorsMain, SensorsStepCounter sensorsStep, int particles) {
+		super(sensorsMain);
+
+		if (particles < 1)
+			throw new IllegalArgumentException("particles must be positive");
+
+		N = particles;
+		lats = new double[N];
+		lons = new double[N];
+		spareLats = new double[N];
+		spareLons = new double[N];
+		weights = new double[N];
+
+		this.sensorsMain = sensorsMain;
+		this.stepLength = sensorsStep.getStepLength() * 1000;
+		sensorsStep.addListener(new StepListener());
+	}
+
+	// RUNS IN BACKGROUND THREAD
+	@Override
+	protected void onNewFix(Observation observation, LatLng pos) {
+		LatLng result;
+
+		RadioMap RM = observation.getRadioMap();
+		boolean changed = RM != rm;
+		if (changed) {
+			rm = RM;
+			grid = new LocationGrid(RM, NEAREST_RADIUS);
+			logLikelihoods = new double[RM.getLocationsCount()];
+		}
+
+		// Scored before taking the lock, steps on the UI thread do not wait
+		// for a pass over the radio map
+		double lowest = score(observation);
+
+		synchronized (lock) {
+			if (reset || changed) {
+				reset = false;
+				initialised = false;
+			}
+
+			if (!initialised || LocationGrid.distance(estimateLat, estimateLon, pos.latitude, pos.longitude) > REINIT_DISTANCE) {
+				// Lost or first fix
+				scatter(pos.latitude, pos.longitude);
+				initialised = true;
+			} else {
+				weigh(lowest);
+				estimate();
+				resample();
+			}
+
+			result = new LatLng(estimateLat, estimateLon);
+		}
+
+		setSearchCenter(result);
+		triggerTrackedLocListeners(result);
+	}
+
+	private void scatter(double lat, double lon) {
+		final double cosLatitude = Math.cos(Math.toRadians(lat));
+		for (int i = 0; i < N; i++) {
+			lats[i] = lat + random.nextGaussian() * INIT_SPREAD / METERS_PER_DEGREE;
+			lons[i] = lon + random.nextGaussian() * INIT_SPREAD / (METERS_PER_DEGREE * cosLatitude);
+		}
+		estimateLat = lat;
+		estimateLon = lon;
+	}
+
+	/**
+	 * Computes the likelihood of the scan at every location of the radio map
+	 * 
+	 * @return the lowest likelihood
+	 */
+	private double score(Observation observation) {
+		final int locations = rm.getLocationsCount();
+
+		double lowest = Double.POSITIVE_INFINITY;
+		for (int row = 0; row < locations; ++row) {
+			logLikelihoods[row] = Algorithms.calculateLogLikelihood(rm, row, observation, sGreek);
+			if (logLikelihoods[row] < lowest)
+				lowest = logLikelihoods[row];
+		}
+		return lowest;
+	}
+
+	/**
+	 * Sets the normalised weight of every particle from the likelihood of the
+	 * scan at the nearest location
+	 * 
+	 * @param lowest
+	 *            the likelihood of particles with no location near them
+	 */
+	private void weigh(double lowest) {
+		double highest = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < N; i++) {
+			int row = grid.nearest(lats[i], lons[i], NEAREST_RADIUS);
+			weights[i] = row < 0 ? lowest : logLikelihoods[row];
+			if (weights[i] > highest)
+				highest = weights[i];
+		}
+
+		// Scale by the highest likelihood so exp does not underflow
+		double sum = 0;
+		for (int i = 0; i < N; i++) {
+			weights[i] = Math.exp(weights[i] - highest);
+			sum += weights[i];
+		}
+		for (int i = 0; i < N; i++) {
+			weights[i] /= sum;
+		}
+	}
+
+	private void estimate() {
+		double lat = 0;
+		double lon = 0;
+		for (int i = 0; i < N; i++) {
+			lat += weights[i] * lats[i];
+			lon += weights[i] * lons[i];
+		}
+		estimateLat = lat;
+		estimateLon = lon;
+	}
+
+	/**
+	 * Systematic resampling into the spare arrays, with some jitter so the
+	 * copies of a particle spread again
+	 */
+	private void resample() {
+		final double cosLatitude = Math.cos(Math.toRadians(estimateLat));
+		final double step = 1.0 / N;
+		double target = random.nextDouble() * step;
+		double cumulative = weights[0];
+		int j = 0;
+
+		for (int i = 0; i < N; i++) {
+			while (target > cumulative && j < N - 1) {
+				j++;
+				cumulative += weights[j];
+			}
+			spareLats[i] = lats[j] + random.nextGaussian() * ROUGHENING / METERS_PER_DEGREE;
+			spareLons[i] = lons[j] + random.nextGaussian() * ROUGHENING / (METERS_PER_DEGREE * cosLatitude);
+			target += step;
+		}
+
+		double[] swap = lats;
+		lats = spareLats;
+		spareLats = swap;
+		swap = lons;
+		lons = spareLons;
+		spareLons = swap;
+	}
+
+	/**
+	 * Moves every particle by a noisy step length and heading
+	 */
+	private void move(double meters, double headingDegrees) {
+		final double cosLatitude = Math.cos(Math.toRadians(estimateLat));
+		double lat = 0;
+		double lon = 0;
+
+		for (int i = 0; i < N; i++) {
+			double distance = meters * (1 + random.nextGaussian() * STEP_NOISE);
+			double heading = Math.toRadians(headingDegrees + random.nextGaussian() * HEADING_NOISE);
+			lats[i] += distance * Math.cos(heading) / METERS_PER_DEGREE;
+			lons[i] += distance * Math.sin(heading) / (METERS_PER_DEGREE * cosLatitude);
+			lat += lats[i];
+			lon += lons[i];
+		}
+
+		// Particles are equally weighted after resampling
+		estimateLat = lat / N;
+		estimateLon = lon / N;
+	}
+
+	private class StepListener implements IStepListener {
+
+		// Runs on UI THREAD
+		@Override
+		public void onNewStep(float value) {
+			LatLng result;
+
+			synchronized (lock) {
+				if (!stepsInit) {
+					stepsInit = true;
+					prevSteps = value;
+					return;
+				}
+
+				float steps = value - prevSteps;
+				prevSteps = value;
+				if (!initialised || reset || steps <= 0)
+					return;
+
+				move(stepLength * steps, sensorsMain.getRAWHeading());
+				result = new LatLng(estimateLat, estimateLon);
+			}
+
+			triggerTrackedLocListeners(result);
+		}
+	}
+
+	@Override
+	public void trackOff() {
+		super.trackOff();
+		reset = true;
+	}
+
+	@Override
+	public void setAlgorithm(String name) {
+		super.setAlgorithm(name);
+		reset = true;
+		clearSearchCenter();
+	}
+
+	@Override
+	public void reset() {
+		reset = true;
+		clearSearchCenter();
+	}
+
+}
@@ -71,6 +71,7 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 	private boolean reset = false;
 	private KalmanFilter kalmanFilter;
 	private RunningMedian runningMedian;
+	private volatile int medianLength = RunningMedian.DEFAULT_LENGTH;
 	// </IMU
 	private IMU imu;
 	private Long lastIMUresetTimestamp;
@@ -120,12 +121,13 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 			TrackerLogicPlusIMU.super.addListener(new TrackerListener());
 
 			kalmanFilter = new KalmanFilter(pos.latitude, pos.longitude);
-			runningMedian = new RunningMedian(pos.latitude, pos.longitude);
+			runningMedian = new RunningMedian(pos.latitude, pos.longitude, medianLength);
 			imu = new IMU(sensorsMain, sensorsStep, pos.latitude, pos.longitude);
 			lastIMUresetTimestamp = System.currentTimeMillis();
 
 			resetIMU = walking;
 			resetIMUPoint = pos;
+			setSearchCenter(pos);
 			triggerTrackedLocListeners(pos);
 
 			imu.addListener(new IMUListener());
@@ -143,7 +145,7 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 			if (reset) {
 				reset = false;
 				kalmanFilter.reset(pos.latitude, pos.longitude);
-				runningMedian.reset(pos.latitude, pos.longitude);
+				resetMedian(pos);
 				imu.reset(pos.latitude, pos.longitude);
 			}
 
@@ -157,6 +159,8 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 					pos = kalmanFilter.update(pos.latitude, pos.longitude);
 				}
 
+				setSearchCenter(pos);
+
 				long timestamp = System.currentTimeMillis();
 				if (timestamp - lastIMUresetTimestamp > IMU_RESET_TIME) {
 					imu.reset(pos.latitude, pos.longitude);
@@ -166,12 +170,13 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 			} else {// Standing
 				if (walkingTracker_old != false) {
 					walkingTracker_old = false;
-					runningMedian.reset(pos.latitude, pos.longitude);
+					resetMedian(pos);
 					resetIMUPoint = pos;
 				} else {
 					resetIMUPoint = runningMedian.update(pos.latitude, pos.longitude);
 				}
 				resetIMU = true;
+				setSearchCenter(resetIMUPoint);
 				triggerTrackedLocListeners(resetIMUPoint);
 			}
 
@@ -200,6 +205,23 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 
 	}
 
+	/**
+	 * Sets the number of last positions whose median is tracked while
+	 * standing, from the next time the user stops
+	 */
+	public void setMedianLength(int length) {
+		if (length < 1)
+			throw new IllegalArgumentException("length must be positive");
+		medianLength = length;
+	}
+
+	private void resetMedian(LatLng pos) {
+		if (runningMedian.getLength() != medianLength)
+			runningMedian = new RunningMedian(pos.latitude, pos.longitude, medianLength);
+		else
+			runningMedian.reset(pos.latitude, pos.longitude);
+	}
+
 	@Override
 	public void trackOff() {
 		// Wait before Change listener because a separate thread may change
@@ -212,10 +234,13 @@ public class TrackerLogicPlusIMU extends AnyplaceTracker {
 	public void setAlgorithm(String name) {
 		super.setAlgorithm(name);
 		reset = true;
+		clearSearchCenter();
 	}
 
+	@Override
 	public void reset() {
 		reset = true;
+		clearSearchCenter();
 	}
 	
 }
@@ -81,6 +81,17 @@ public class AnyplaceUtils {
 		return getFolderRootFolder(ctx, "radiomaps");
 	}
 
+	/**
+	 * Returns the File to the root folder where RSS logs wait to be uploaded
+	 * on the device external memory
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public static File getRSSLogUploadsRootFolder(Context ctx) throws Exception {
+		return getFolderRootFolder(ctx, "rsslog_uploads");
+	}
+
 	/**
 	 * Returns the filename for the radiomap to be used according to the floor
 	 * selected
@@ -91,6 +102,16 @@ public class AnyplaceUtils {
 		return "fl_" + (floor == null ? "-" : floor) + "_indoor-radiomap.txt";
 	}
 
+	/**
+	 * Returns the filename for the radiomap built on the device from the RSS
+	 * logs of the floor
+	 * 
+	 * @return
+	 */
+	public static String getLocalRadioMapFileName(String floor) {
+		return "fl_" + (floor == null ? "-" : floor) + "_local-radiomap.txt";
+	}
+
 	public static File getRadioMapFoler(Context ctx, String buid, String floor) throws Exception {
 		File root = getRadioMapsRootFolder(ctx);
 		File file = new File(root, (buid == null ? "-" : buid) + "fl_" + (floor == null ? "-" : floor));
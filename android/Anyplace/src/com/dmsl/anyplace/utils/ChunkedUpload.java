@@ -0,0 +1,489 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Lambros Petrou, Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.dmsl.anyplace.cache.CacheMarker;
+import com.dmsl.anyplace.utils.ProgressHttpEntityWrapper.ProgressCallback;
+
+/**
+ * Uploads a file in fixed size chunks, a few at a time, and resumes an
+ * interrupted upload from the chunks the server acknowledged. The upload
+ * is kept in a state file next to the file, so it resumes after the app is
+ * restarted too.
+ * 
+ * <pre>
+ * POST url/begin   Json: the fields given, name, size, chunk_size, chunks,
+ *                  sha1 and the upload_id of an interrupted upload
+ *                  reply: {"status", "upload_id", "received": [chunks]}
+ * POST url/chunk   the bytes of a chunk, with the headers X-Upload-Id,
+ *                  X-Chunk-Index and X-Chunk-SHA1
+ *                  reply: {"status"}
+ * POST url/finish  Json: the fields given and upload_id
+ *                  reply: {"status", "message"}
+ * </pre>
+ * 
+ * A chunk is retried a few times before the upload fails, the chunks that
+ * were acknowledged stay acknowledged.
+ */
+public class ChunkedUpload {
+
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+	public static final int DEFAULT_PARALLELISM = 3;
+	public static final int MAX_ATTEMPTS = 3;
+
+	private static final String STATE_SUFFIX = ".state";
+	private static final int TIMEOUT = 20000;
+	private static final int RETRY_DELAY = 1000;
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final String url;
+	private final File file;
+	private final File stateFile;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	// Upload state, saved after every acknowledged chunk
+	private String uploadId;
+	private String sha1;
+	private int chunks;
+	private BitSet acked = new BitSet();
+
+	private volatile boolean cancelled = false;
+	private final Set<HttpURLConnection> connections = new HashSet<HttpURLConnection>();
+
+	/**
+	 * @param url
+	 *            the base url of the upload service
+	 * @param file
+	 *            the file to upload, which must not change until it is
+	 *            uploaded
+	 */
+	public ChunkedUpload(String url, File file) {
+		this.url = url;
+		this.file = file;
+		this.stateFile = getStateFile(file);
+	}
+
+	public static File getStateFile(File file) {
+		return new File(file.getPath() + STATE_SUFFIX);
+	}
+
+	public static boolean isStateFile(File file) {
+		return file.getName().endsWith(STATE_SUFFIX);
+	}
+
+	/**
+	 * Sets the size of a new upload's chunks, an interrupted upload keeps
+	 * the size it started with
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(chunkSize, 1);
+	}
+
+	/**
+	 * Sets how many chunks are uploaded at the same time
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(parallelism, 1);
+	}
+
+	/**
+	 * Stops the upload, which can be resumed later
+	 */
+	public void cancel() {
+		synchronized (connections) {
+			cancelled = true;
+			for (HttpURLConnection con : connections)
+				con.disconnect();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Uploads the file, resuming its interrupted upload. The state file is
+	 * deleted when the server accepts the file.
+	 * 
+	 * @param fields
+	 *            Json fields sent with begin and finish, e.g. the credentials
+	 * @param progressCallback
+	 *            gets the percentage of the file acknowledged, may be null
+	 * @return the message of the server
+	 * @throws IOException
+	 *             if the upload failed or was cancelled, it can be resumed
+	 */
+	public String upload(JSONObject fields, final ProgressCallback progressCallback) throws IOException {
+		try {
+			readState();
+			if (sha1 == null)
+				sha1 = CacheMarker.hash(file);
+			chunks = (int) ((file.length() + chunkSize - 1) / chunkSize);
+
+			JSONObject begin = copy(fields);
+			begin.put("name", file.getName());
+			begin.put("size", file.length());
+			begin.put("chunk_size", chunkSize);
+			begin.put("chunks", chunks);
+			begin.put("sha1", sha1);
+			if (uploadId != null)
+				begin.put("upload_id", uploadId);
+
+			JSONObject reply = postJson(url + "/begin", begin);
+			String id = reply.getString("upload_id");
+			if (!id.equals(uploadId)) {
+				// A new upload, the server does not know the old one
+				uploadId = id;
+				acked.clear();
+			}
+			JSONArray received = reply.optJSONArray("received");
+			if (received != null) {
+				for (int i = 0; i < received.length(); i++)
+					acked.set(received.getInt(i));
+			}
+			writeState();
+			progress(progressCallback);
+
+			uploadChunks(progressCallback);
+
+			JSONObject finish = copy(fields);
+			finish.put("upload_id", uploadId);
+			reply = postJson(url + "/finish", finish);
+
+			stateFile.delete();
+			return reply.optString("message", "Successfully uploaded");
+		} catch (JSONException e) {
+			throw new IOException("Upload service error: " + e.getMessage());
+		}
+	}
+
+	private void uploadChunks(final ProgressCallback progressCallback) throws IOException {
+		final List<Integer> pending = new ArrayList<Integer>();
+		for (int i = acked.nextClearBit(0); i < chunks; i = acked.nextClearBit(i + 1))
+			pending.add(i);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(pending.size(), 1)));
+		// Results as the chunks finish, so the first error stops the upload
+		CompletionService<Void> results = new ExecutorCompletionService<Void>(executor);
+		try {
+			for (final Integer index : pending) {
+				results.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						uploadChunk(index);
+						synchronized (ChunkedUpload.this) {
+							acked.set(index);
+							writeState();
+						}
+						progress(progressCallback);
+						return null;
+					}
+				});
+			}
+
+			for (int i = 0; i < pending.size(); i++) {
+				try {
+					results.take().get();
+				} catch (ExecutionException e) {
+					// Stop the other chunks, the acknowledged ones are kept
+					cancel();
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+					throw new IOException(String.valueOf(cause.getMessage()));
+				} catch (InterruptedException e) {
+					cancel();
+					throw new InterruptedIOException();
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			// No chunk is sent after the upload returns
+			try {
+				executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void uploadChunk(int index) throws IOException {
+		long offset = (long) index * chunkSize;
+		int length = (int) Math.min(chunkSize, file.length() - offset);
+		byte[] chunk = new byte[length];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(chunk);
+		} finally {
+			raf.close();
+		}
+		String chunkSha1 = hash(chunk);
+
+		IOException error = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			if (attempt > 0) {
+				try {
+					Thread.sleep(RETRY_DELAY << (attempt - 1));
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (cancelled)
+				throw new IOException("Upload cancelled");
+
+			HttpURLConnection con = open(url + "/chunk", "application/octet-stream", chunk.length);
+			try {
+				con.setRequestProperty("X-Upload-Id", uploadId);
+				con.setRequestProperty("X-Chunk-Index", String.valueOf(index));
+				con.setRequestProperty("X-Chunk-SHA1", chunkSha1);
+				readReply(con, chunk);
+				return;
+			} catch (IOException e) {
+				error = e;
+			} catch (JSONException e) {
+				error = new IOException("Upload service error: " + e.getMessage());
+			} finally {
+				close(con);
+			}
+		}
+		throw error;
+	}
+
+	private JSONObject postJson(String url, JSONObject json) throws IOException, JSONException {
+		byte[] body = json.toString().getBytes("UTF-8");
+		HttpURLConnection con = open(url, "application/json", body.length);
+		try {
+			return readReply(con, body);
+		} finally {
+			close(con);
+		}
+	}
+
+	private HttpURLConnection open(String url, String contentType, int length) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setConnectTimeout(TIMEOUT);
+		con.setReadTimeout(TIMEOUT);
+		con.setRequestMethod("POST");
+		con.setRequestProperty("Accept", "application/json");
+		con.setRequestProperty("Content-type", contentType);
+		con.setFixedLengthStreamingMode(length);
+		con.setDoOutput(true);
+		con.setDoInput(true);
+		synchronized (connections) {
+			// Checked with the connections locked, so cancel disconnects
+			// every connection opened before
+			if (cancelled)
+				throw new IOException("Upload cancelled");
+			connections.add(con);
+		}
+		return con;
+	}
+
+	private void close(HttpURLConnection con) {
+		synchronized (connections) {
+			connections.remove(con);
+		}
+		con.disconnect();
+	}
+
+	/**
+	 * Sends the body and reads the Json reply
+	 * 
+	 * @throws IOException
+	 *             if the request failed or the reply is an error
+	 */
+	private JSONObject readReply(HttpURLConnection con, byte[] body) throws IOException, JSONException {
+		OutputStream os = con.getOutputStream();
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+
+		if (con.getResponseCode() != HttpURLConnection.HTTP_OK)
+			throw new IOException("Service Error: " + con.getResponseMessage());
+
+		InputStream is = con.getInputStream();
+		String response;
+		try {
+			response = readString(is);
+		} finally {
+			is.close();
+		}
+
+		JSONObject reply = new JSONObject(response);
+		if (reply.optString("status").equalsIgnoreCase("error"))
+			throw new IOException("Error: " + reply.optString("message"));
+		return reply;
+	}
+
+	private void progress(ProgressCallback progressCallback) {
+		if (progressCallback == null)
+			return;
+
+		int done;
+		synchronized (this) {
+			done = acked.cardinality();
+		}
+		progressCallback.progress(chunks == 0 ? 100 : (float) done / chunks * 100);
+	}
+
+	private void readState() throws IOException {
+		uploadId = null;
+		sha1 = null;
+		acked.clear();
+
+		if (!stateFile.exists())
+			return;
+
+		Properties state = new Properties();
+		InputStream is = new FileInputStream(stateFile);
+		try {
+			state.load(is);
+		} finally {
+			is.close();
+		}
+
+		// A state of another file is dropped
+		if (!String.valueOf(file.length()).equals(state.getProperty("size")))
+			return;
+
+		try {
+			int size = Integer.parseInt(state.getProperty("chunk_size"));
+			String[] indices = state.getProperty("acked", "").split(",");
+			for (String index : indices) {
+				if (index.length() > 0)
+					acked.set(Integer.parseInt(index));
+			}
+			chunkSize = size;
+		} catch (NumberFormatException e) {
+			acked.clear();
+			return;
+		}
+		uploadId = state.getProperty("upload_id");
+		sha1 = state.getProperty("sha1");
+	}
+
+	private void writeState() throws IOException {
+		Properties state = new Properties();
+		state.setProperty("size", String.valueOf(file.length()));
+		state.setProperty("chunk_size", String.valueOf(chunkSize));
+		state.setProperty("sha1", sha1);
+		if (uploadId != null)
+			state.setProperty("upload_id", uploadId);
+		StringBuilder indices = new StringBuilder();
+		for (int i = acked.nextSetBit(0); i >= 0; i = acked.nextSetBit(i + 1)) {
+			if (indices.length() > 0)
+				indices.append(',');
+			indices.append(i);
+		}
+		state.setProperty("acked", indices.toString());
+
+		// Replaced in one rename, so a crash leaves the old or the new state
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			state.store(os, null);
+		} finally {
+			os.close();
+		}
+		NetworkUtils.moveFile(tmp, stateFile);
+	}
+
+	private static JSONObject copy(JSONObject fields) throws JSONException {
+		return fields == null ? new JSONObject() : new JSONObject(fields.toString());
+	}
+
+	private static String readString(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toString("UTF-8");
+	}
+
+	private static String hash(byte[] chunk) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+		return toHex(digest.digest(chunk));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+}
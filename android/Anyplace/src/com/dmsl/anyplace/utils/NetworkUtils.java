@@ -42,6 +42,9 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -57,6 +60,9 @@ import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * Network helpers for usual actions.
  *
@@ -64,6 +70,14 @@ import javax.net.ssl.HttpsURLConnection;
  */
 public class NetworkUtils {
 
+    // Suffix of a file being downloaded, renamed when complete
+    private static final String PARTIAL_SUFFIX = ".part";
+    // Holds the ETag or Last-Modified of the response being downloaded
+    private static final String VALIDATOR_SUFFIX = ".part.tag";
+    private static final int DOWNLOAD_BUFFER = 8 * 1024;
+    // A larger response is never an error message
+    private static final int MAX_ERROR_RESPONSE = 64 * 1024;
+
     public static String encodeURL(String urlStr) throws URISyntaxException, MalformedURLException {
         URL url = new URL(urlStr);
         URI uri = new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
@@ -171,7 +185,7 @@ public class NetworkUtils {
         InputStream is;
 
         URL obj = new URL(url);
-        HttpsURLConnection con = (HttpsURLConnection) obj.openConnection();
+        HttpURLConnection con = (HttpURLConnection) obj.openConnection();
         con.setConnectTimeout(timeout);
         con.setRequestMethod("POST");
         con.setRequestProperty("Accept", "application/json");
@@ -191,7 +205,7 @@ public class NetworkUtils {
         String encoding = con.getContentEncoding();
 
         int response = con.getResponseCode();
-        if (response == HttpsURLConnection.HTTP_OK) {
+        if (response == HttpURLConnection.HTTP_OK) {
             if (encoding != null && encoding.equals("gzip")) {
                 is = new GZIPInputStream(con.getInputStream());
             } else {
@@ -217,6 +231,199 @@ public class NetworkUtils {
     public static InputStream downloadHttpClientJsonPostStream(String url, String json) throws IllegalStateException, IOException, URISyntaxException {
         return ISdownloadHttpClientJsonPostHelp(url, json, 20000);
     }
+
+    private static HttpURLConnection openJsonPost(String url, String json, int timeout, long offset, String validator) throws IOException {
+
+        URL obj = new URL(url);
+        HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+        con.setConnectTimeout(timeout);
+        con.setReadTimeout(timeout);
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Accept", "application/json");
+        con.setRequestProperty("Content-type", "application/json");
+        if (offset > 0) {
+            // The offset counts decoded bytes, the rest must not be encoded
+            con.setRequestProperty("Accept-Encoding", "identity");
+            con.setRequestProperty("Range", "bytes=" + offset + "-");
+            con.setRequestProperty("If-Range", validator);
+        } else {
+            con.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        con.setDoOutput(true);
+        con.setDoInput(true);
+        con.connect();
+
+        OutputStream os = con.getOutputStream();
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os));
+        writer.write(json);
+        writer.flush();
+        writer.close();
+        os.close();
+
+        return con;
+    }
+
+    private static boolean isGzip(HttpURLConnection con) {
+        String encoding = con.getContentEncoding();
+        return encoding != null && encoding.equals("gzip");
+    }
+
+    /**
+     * @return true if the response is the rest of the body from offset
+     */
+    private static boolean isResumed(HttpURLConnection con, long offset) throws IOException {
+        if (con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || isGzip(con))
+            return false;
+        String range = con.getHeaderField("Content-Range");
+        return range != null && range.startsWith("bytes " + offset + "-");
+    }
+
+    private static String readValidator(File file) {
+        if (!file.exists())
+            return null;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            String validator = readInputStream(is).trim();
+            return validator.length() == 0 ? null : validator;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void writeValidator(File file, String validator) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(validator.getBytes("UTF8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Downloads the response of a Json POST to a partial file next to file,
+     * through a fixed buffer, so memory does not grow with the response. The
+     * partial file of an interrupted download is resumed with an HTTP Range
+     * request if the server identified the response with an ETag or
+     * Last-Modified, otherwise the download starts over.
+     *
+     * @return the complete partial file, to check with readErrorResponse and
+     *         move to file with moveFile
+     */
+    public static File downloadHttpClientJsonPostFile(String url, String json, File file, int timeout) throws IOException {
+
+        File part = new File(file.getPath() + PARTIAL_SUFFIX);
+        File tag = new File(file.getPath() + VALIDATOR_SUFFIX);
+
+        String validator = part.length() > 0 ? readValidator(tag) : null;
+        long offset = validator == null ? 0 : part.length();
+
+        HttpURLConnection con = openJsonPost(url, json, timeout, offset, validator);
+
+        if (offset > 0 && !isResumed(con, offset)) {
+            offset = 0;
+            if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                // The range was refused, ask for the whole response
+                con.disconnect();
+                con = openJsonPost(url, json, timeout, 0, null);
+            }
+        }
+
+        if (offset == 0) {
+            if (con.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new RuntimeException("Service Error: " + con.getResponseMessage());
+
+            tag.delete();
+            // An ETag of a gzip response names the encoded body, while the
+            // offset of a resume counts decoded bytes of the identity body
+            validator = isGzip(con) ? null : con.getHeaderField("ETag");
+            if (validator == null)
+                validator = con.getHeaderField("Last-Modified");
+            // Written before the body, so an interrupted download can resume
+            if (validator != null)
+                writeValidator(tag, validator);
+        }
+
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = isGzip(con) ? new GZIPInputStream(con.getInputStream()) : con.getInputStream();
+            os = new FileOutputStream(part, offset > 0);
+
+            int n;
+            byte[] buffer = new byte[DOWNLOAD_BUFFER];
+            while ((n = is.read(buffer)) != -1)
+                os.write(buffer, 0, n);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        tag.delete();
+        return part;
+    }
+
+    /**
+     * Checks whether a downloaded response is a Json error of the service
+     * instead of the requested file
+     *
+     * @return the error message, or null if the response is not an error
+     */
+    public static String readErrorResponse(File file) throws IOException {
+        if (file.length() > MAX_ERROR_RESPONSE)
+            return null;
+
+        InputStream is = new FileInputStream(file);
+        String content;
+        try {
+            content = readInputStream(is).trim();
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+        }
+
+        if (!content.startsWith("{") || !content.contains("error"))
+            return null;
+
+        try {
+            JSONObject json = new JSONObject(content);
+            return json.optString("message", content);
+        } catch (JSONException e) {
+            return content;
+        }
+    }
+
+    /**
+     * Replaces a file by another in one rename, so the file is never seen
+     * half written
+     */
+    public static void moveFile(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to))
+                throw new IOException("Cannot move " + from.getName() + " to " + to.getName());
+        }
+    }
     //</HTTP Post Json>
 
     public static boolean isOnline(Context context) {
@@ -0,0 +1,228 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+* 
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Converts text RSS logs, as the logger writes them, to binary RSS logs and
+ * back.
+ */
+public class RSSLogBinaryTest {
+
+	private File root;
+	private File text;
+	private File binary;
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("rsslogs", null);
+		root.delete();
+		root.mkdirs();
+		text = new File(root, "rss-log.txt");
+		binary = new File(root, "rss-log.bin");
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : root.listFiles())
+			f.delete();
+		root.delete();
+	}
+
+	@Test
+	public void convertsTextToBinaryAndBack() throws IOException {
+		String first = textLog(new Random(1), 3, 0);
+		writeText(text, first);
+		toBinary(text, binary);
+		assertTrue(RSSLogBinary.isBinary(binary));
+		assertFalse(RSSLogBinary.isBinary(text));
+		assertTrue(binary.length() < text.length());
+		assertEquals(first, toText(binary));
+
+		// Reopened, the BSSIDs of the earlier lines are reused
+		String second = textLog(new Random(4), 2, 100000);
+		writeText(text, second);
+		toBinary(text, binary);
+		assertEquals(first + second, toText(binary));
+	}
+
+	@Test
+	public void dropsInterruptedLastLine() throws IOException {
+		String complete = textLog(new Random(2), 2, 0);
+		writeText(text, complete);
+		toBinary(text, binary);
+		long length = binary.length();
+
+		// The logger stopped after the start of a line, its length is 0
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(binary, true));
+		try {
+			out.writeByte('L');
+			out.writeInt(0);
+			out.writeUTF("1");
+			out.write(new byte[] { 3, 1, 2 });
+		} finally {
+			out.close();
+		}
+		assertEquals(complete, toText(binary));
+
+		RSSLogBinary log = RSSLogBinary.open(binary);
+		assertEquals(length, binary.length());
+		assertTrue(log.isCurrent());
+
+		// Lines appended after it are read back
+		String more = textLog(new Random(3), 1, 1000);
+		writeText(text, more);
+		append(text, log);
+		assertEquals(complete + more, toText(binary));
+	}
+
+	/**
+	 * A text log of lines of a few scans, as LoggerWiFi writes it
+	 */
+	private static String textLog(Random random, int lines, long start) {
+		StringBuilder sb = new StringBuilder();
+		long timestamp = start;
+		for (int line = 0; line < lines; ++line) {
+			String suffix = " " + (line % 2) + " building\n";
+			sb.append(LoggerWiFi.HEADER);
+			int scans = 1 + random.nextInt(4);
+			for (int scan = 0; scan < scans; ++scan) {
+				timestamp += 500 + random.nextInt(1500);
+				double lat = 35.14 + random.nextInt(1000) / 100000.0;
+				double lng = 33.41 + random.nextInt(1000) / 100000.0;
+				float heading = random.nextInt(3600) / 10f;
+				String prefix = timestamp + " " + lat + " " + lng + " " + heading + " ";
+				int records = 1 + random.nextInt(4);
+				for (int record = 0; record < records; ++record) {
+					String bssid = String.format("00:11:22:33:44:%02x", random.nextInt(12));
+					sb.append(prefix + bssid + " " + (-30 - random.nextInt(70)) + suffix);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void writeText(File file, String log) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(log);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void toBinary(File text, File binary) throws IOException {
+		append(text, RSSLogBinary.open(binary));
+	}
+
+	/**
+	 * Appends the lines of a text log to a binary log, a record line at a
+	 * time, the way the logger saves a line
+	 */
+	private static void append(File text, RSSLogBinary log) throws IOException {
+		for (List<String[]> line : readLines(text)) {
+			String[] first = line.get(0);
+			List<List<String[]>> scans = new ArrayList<List<String[]>>();
+			String[] previous = null;
+			for (String[] record : line) {
+				// Records of a scan share its timestamp, position and heading
+				if (previous == null || !record[0].equals(previous[0]) || !record[1].equals(previous[1]) || !record[2].equals(previous[2]) || !record[3].equals(previous[3]))
+					scans.add(new ArrayList<String[]>());
+				scans.get(scans.size() - 1).add(record);
+				previous = record;
+			}
+
+			log.beginLine(first[6], first[7], scans.size());
+			for (List<String[]> scan : scans) {
+				String[] s = scan.get(0);
+				log.writeScan(Long.parseLong(s[0]), Double.parseDouble(s[1]), Double.parseDouble(s[2]), Float.parseFloat(s[3]), scan.size());
+				for (String[] record : scan)
+					log.writeRecord(record[4], Integer.parseInt(record[5]));
+			}
+			log.endLine();
+		}
+	}
+
+	/**
+	 * @return the records of every line of a text log
+	 */
+	private static List<List<String[]>> readLines(File text) throws IOException {
+		List<List<String[]>> lines = new ArrayList<List<String[]>>();
+		List<String[]> line = null;
+		BufferedReader reader = new BufferedReader(new FileReader(text));
+		try {
+			String s;
+			while ((s = reader.readLine()) != null) {
+				if (s.startsWith("#")) {
+					line = new ArrayList<String[]>();
+					lines.add(line);
+				} else {
+					line.add(s.split(" "));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static String toText(File binary) throws IOException {
+		StringWriter out = new StringWriter();
+		RSSLogBinary.toText(binary, out);
+		return out.toString();
+	}
+}
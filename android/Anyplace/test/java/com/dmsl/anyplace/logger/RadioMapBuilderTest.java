@@ -0,0 +1,297 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+* 
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Builds radio maps from RSS logs in one pass, in parts and from a saved
+ * builder, and compares them with the mean of the records of the floor.
+ */
+public class RadioMapBuilderTest {
+
+	private static final String BUID = "building";
+	private static final String FLOOR = "1";
+
+	private File root;
+	private File log;
+
+	private static class Record {
+		long timestamp;
+		double lat, lng;
+		float heading;
+		String bssid;
+		int rss;
+		String floor;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("radiomaps", null);
+		root.delete();
+		root.mkdirs();
+		log = new File(root, "rss-log.txt");
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : root.listFiles())
+			f.delete();
+		root.delete();
+	}
+
+	@Test
+	public void addsGrownLogInParts() throws IOException {
+		List<Record> records = records(new Random(1), 400);
+		List<Record> first = records.subList(0, 150);
+
+		writeText(log, first, false);
+		RadioMapBuilder parts = new RadioMapBuilder(BUID, FLOOR);
+		int added = parts.addLog(log);
+		assertEquals(count(first), added);
+
+		writeText(log, records, false);
+		added += parts.addLog(log);
+		assertEquals(count(records), added);
+		assertEquals(0, parts.addLog(log));
+
+		RadioMapBuilder once = new RadioMapBuilder(BUID, FLOOR);
+		assertEquals(count(records), once.addLog(log));
+
+		File expected = write(once, "once.txt");
+		assertArrayEquals(readLines(expected), readLines(write(parts, "parts.txt")));
+		assertMeans(records, expected);
+	}
+
+	@Test
+	public void resumesFromSavedState() throws IOException {
+		List<Record> records = records(new Random(2), 400);
+
+		writeText(log, records.subList(0, 250), false);
+		RadioMapBuilder saved = new RadioMapBuilder(BUID, FLOOR);
+		saved.addLog(log);
+		File state = RadioMapBuilder.getStateFile(new File(root, "radiomap.txt"));
+		saved.writeState(state);
+
+		assertNull(RadioMapBuilder.readState(state, BUID, "2"));
+		RadioMapBuilder resumed = RadioMapBuilder.readState(state, BUID, FLOOR);
+		assertEquals(saved.getLocationsCount(), resumed.getLocationsCount());
+		assertEquals(saved.getMacAdressCount(), resumed.getMacAdressCount());
+		assertArrayEquals(readLines(write(saved, "saved.txt")), readLines(write(resumed, "resumed.txt")));
+
+		writeText(log, records, false);
+		assertEquals(count(records.subList(250, records.size())), resumed.addLog(log));
+
+		RadioMapBuilder once = new RadioMapBuilder(BUID, FLOOR);
+		once.addLog(log);
+		assertArrayEquals(readLines(write(once, "once.txt")), readLines(write(resumed, "parts.txt")));
+	}
+
+	@Test
+	public void readsTextGzipAndBinaryLogs() throws IOException {
+		List<Record> records = records(new Random(3), 300);
+
+		writeText(log, records, false);
+		RadioMapBuilder text = new RadioMapBuilder(BUID, FLOOR);
+		text.addLog(log);
+
+		File gzip = new File(root, "rss-log.gz");
+		writeText(gzip, records, true);
+		RadioMapBuilder compressed = new RadioMapBuilder(BUID, FLOOR);
+		assertEquals(count(records), compressed.addLog(gzip));
+
+		File bin = new File(root, "rss-log.bin");
+		writeBinary(bin, records);
+		RadioMapBuilder binary = new RadioMapBuilder(BUID, FLOOR);
+		assertEquals(count(records), binary.addLog(bin));
+
+		String[] expected = readLines(write(text, "text.txt"));
+		assertArrayEquals(expected, readLines(write(compressed, "gzip.txt")));
+		assertArrayEquals(expected, readLines(write(binary, "binary.txt")));
+	}
+
+	/**
+	 * Records of two floors at a few locations, so most cells have several
+	 */
+	private static List<Record> records(Random random, int count) {
+		List<Record> records = new ArrayList<Record>();
+		for (int i = 0; i < count; ++i) {
+			Record r = new Record();
+			r.timestamp = 1000L * i;
+			r.lat = 35.14 + random.nextInt(8) / 10000.0;
+			r.lng = 33.41 + random.nextInt(8) / 10000.0;
+			r.heading = random.nextInt(360);
+			r.bssid = String.format("00:11:22:33:44:%02x", random.nextInt(10));
+			r.rss = -30 - random.nextInt(70);
+			r.floor = (i / 20) % 3 == 2 ? "2" : FLOOR;
+			records.add(r);
+		}
+		return records;
+	}
+
+	private static int count(List<Record> records) {
+		int count = 0;
+		for (Record r : records) {
+			if (r.floor.equals(FLOOR))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the records as LoggerWiFi writes a text log, a line per floor
+	 * change
+	 */
+	private static void writeText(File file, List<Record> records, boolean gzip) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		if (gzip)
+			os = new GZIPOutputStream(os);
+		Writer out = new OutputStreamWriter(os);
+		try {
+			String floor = null;
+			for (Record r : records) {
+				if (!r.floor.equals(floor)) {
+					floor = r.floor;
+					out.write(LoggerWiFi.HEADER);
+				}
+				out.write(r.timestamp + " " + r.lat + " " + r.lng + " " + r.heading + " " + r.bssid + " " + r.rss + " " + r.floor + " " + BUID + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the records as a binary log, a line per floor change and a scan
+	 * per record
+	 */
+	private static void writeBinary(File file, List<Record> records) throws IOException {
+		RSSLogBinary log = RSSLogBinary.open(file);
+		int start = 0;
+		while (start < records.size()) {
+			int end = start;
+			while (end < records.size() && records.get(end).floor.equals(records.get(start).floor))
+				end++;
+
+			log.beginLine(records.get(start).floor, BUID, end - start);
+			for (Record r : records.subList(start, end)) {
+				log.writeScan(r.timestamp, r.lat, r.lng, r.heading, 1);
+				log.writeRecord(r.bssid, r.rss);
+			}
+			log.endLine();
+			start = end;
+		}
+	}
+
+	private File write(RadioMapBuilder builder, String name) throws IOException {
+		File radiomap = new File(root, name);
+		builder.write(radiomap, false);
+		return radiomap;
+	}
+
+	/**
+	 * Checks every value of a radio map against the mean RSS of the records
+	 * of the floor at its location, or the NaN value if none was heard there
+	 */
+	private static void assertMeans(List<Record> records, File radiomap) throws IOException {
+		HashMap<String, double[]> sums = new HashMap<String, double[]>();
+		for (Record r : records) {
+			if (!r.floor.equals(FLOOR))
+				continue;
+			String key = r.lat + " " + r.lng + " " + r.bssid;
+			double[] sum = sums.get(key);
+			if (sum == null) {
+				sum = new double[2];
+				sums.put(key, sum);
+			}
+			sum[0] += r.rss;
+			sum[1]++;
+		}
+
+		String[] lines = readLines(radiomap);
+		assertEquals("# NaN " + RadioMapBuilder.NaN, lines[0]);
+		String[] macs = lines[1].split(", ");
+		int values = 0;
+		for (int i = 2; i < lines.length; ++i) {
+			String[] row = lines[i].split(", ");
+			assertEquals(macs.length, row.length);
+			for (int column = 3; column < row.length; ++column) {
+				double[] sum = sums.get(Double.parseDouble(row[0]) + " " + Double.parseDouble(row[1]) + " " + macs[column]);
+				if (sum == null) {
+					assertEquals(RadioMapBuilder.NaN, row[column]);
+				} else {
+					assertEquals(sum[0] / sum[1], Double.parseDouble(row[column]), 0.001);
+					values++;
+				}
+			}
+		}
+		assertEquals(sums.size(), values);
+	}
+
+	private static String[] readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+}
@@ -0,0 +1,326 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+* 
+* Author(s): Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dmsl.airplace.algorithms.RadioMap;
+import com.dmsl.anyplace.cache.CacheMarker;
+import com.dmsl.anyplace.utils.AnyplaceUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the radio map download of a floor against a local stand-in of the
+ * radio_by_building_floor service, which sends the changes from the cached
+ * version as a patch if it has them.
+ */
+public class DownloadRadioMapTaskBuidTest {
+
+	private static final String FLOOR = "1";
+	private static final String REQUEST = "{\"username\":\"username\",\"password\":\"pass\",\"buid\":\"building\",\"floor\":\"1\"}";
+
+	// Version 3, cached
+	private static final String[] OLD_MAP = {
+			"# NaN -110",
+			"# X, Y, HEADING, 00:00:00:00:00:01, 00:00:00:00:00:02",
+			"1.0, 1.0, 0, -50.0, -60.0",
+			"2.0, 2.0, 0, -55.0, -110",
+			"3.0, 3.0, 0, -70.0, -75.0" };
+
+	// Version 4: a new MAC Address, a changed, a removed and a new location
+	private static final String[] NEW_MAP = {
+			"# NaN -110",
+			"# X, Y, HEADING, 00:00:00:00:00:01, 00:00:00:00:00:02, 00:00:00:00:00:03",
+			"1.0, 1.0, 0, -50.0, -60.0, -110",
+			"2.0, 2.0, 0, -54.0, -65.0, -80.0",
+			"4.0, 4.0, 0, -110, -62.0, -48.0" };
+
+	private static final String[] PATCH = {
+			"# NaN -110",
+			"# PATCH 3 4",
+			"# X, Y, HEADING, 00:00:00:00:00:01, 00:00:00:00:00:02, 00:00:00:00:00:03",
+			"2.0, 2.0, 0, -54.0, -65.0, -80.0",
+			"- 3.0, 3.0",
+			"4.0, 4.0, 0, -110, -62.0, -48.0" };
+
+	private StandInServer server;
+	private File root;
+	private File radiomap;
+	private File okfile;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new StandInServer();
+		root = File.createTempFile("radiomaps", null);
+		root.delete();
+		root.mkdirs();
+		radiomap = new File(root, AnyplaceUtils.getRadioMapFileName(FLOOR));
+		okfile = new File(root, "ok.txt");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		for (File f : root.listFiles())
+			f.delete();
+		root.delete();
+	}
+
+	@Test
+	public void patchesCachedRadioMap() throws Exception {
+		cache(OLD_MAP, "3");
+		server.patch = PATCH;
+
+		assertTrue(DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, "3", "4"));
+
+		assertEquals("3", server.request.getString("version"));
+		assertEquals(1, server.patchRequests);
+		assertEquals(0, server.meanRequests);
+		// Old rows padded with NaN for the new MAC Address
+		assertEquals(Arrays.asList(NEW_MAP), readLines(radiomap));
+		assertEquals("4", CacheMarker.read(okfile).getVersion());
+		assertTrue(RadioMap.isBinaryCacheCurrent(radiomap));
+	}
+
+	@Test
+	public void downloadsWholeWithoutPatch() throws Exception {
+		cache(OLD_MAP, "3");
+
+		assertFalse(DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, "3", "4"));
+
+		assertEquals(0, server.patchRequests);
+		assertEquals(1, server.meanRequests);
+		assertEquals(Arrays.asList(NEW_MAP), readLines(radiomap));
+		assertEquals("4", CacheMarker.read(okfile).getVersion());
+		assertTrue(RadioMap.isBinaryCacheCurrent(radiomap));
+	}
+
+	@Test
+	public void downloadsWholeWithoutCachedVersion() throws Exception {
+		server.patch = PATCH;
+
+		assertFalse(DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, null, "4"));
+
+		assertFalse(server.request.has("version"));
+		assertEquals(0, server.patchRequests);
+		assertEquals(Arrays.asList(NEW_MAP), readLines(radiomap));
+	}
+
+	@Test
+	public void downloadsWholeIfPatchOfOtherMacs() throws Exception {
+		cache(OLD_MAP, "3");
+		String[] patch = PATCH.clone();
+		// The old MAC Addresses do not start the new ones
+		patch[2] = "# X, Y, HEADING, 00:00:00:00:00:02, 00:00:00:00:00:01, 00:00:00:00:00:03";
+		server.patch = patch;
+
+		assertFalse(DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, "3", "4"));
+
+		assertEquals(1, server.patchRequests);
+		assertEquals(1, server.meanRequests);
+		assertEquals(Arrays.asList(NEW_MAP), readLines(radiomap));
+	}
+
+	@Test
+	public void downloadsWholeIfPatchOfOtherVersion() throws Exception {
+		cache(OLD_MAP, "3");
+		String[] patch = PATCH.clone();
+		patch[1] = "# PATCH 2 4";
+		server.patch = patch;
+
+		assertFalse(DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, "3", "4"));
+
+		assertEquals(1, server.meanRequests);
+		assertEquals(Arrays.asList(NEW_MAP), readLines(radiomap));
+	}
+
+	@Test
+	public void reportsServerError() throws Exception {
+		cache(OLD_MAP, "3");
+		server.error = "Radio map not found";
+
+		try {
+			DownloadRadioMapTaskBuid.fetchRadioMap(server.url + "/radio", REQUEST, root, FLOOR, "3", "4");
+			fail("The server replied with an error");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Radio map not found"));
+		}
+		assertEquals(Arrays.asList(OLD_MAP), readLines(radiomap));
+	}
+
+	private void cache(String[] lines, String version) throws IOException {
+		write(radiomap, lines);
+		CacheMarker.write(okfile, radiomap, version);
+	}
+
+	private static void write(File file, String[] lines) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			for (String line : lines)
+				writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static String join(String[] lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines)
+			sb.append(line).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * The radio map request, and the mean radio map and patch it links to
+	 */
+	private static class StandInServer {
+
+		final HttpServer http;
+		final String url;
+
+		// The patch from the cached version, null if the server has none
+		volatile String[] patch;
+		// The error of the radio map request, null for none
+		volatile String error;
+
+		volatile JSONObject request;
+		volatile int meanRequests = 0;
+		volatile int patchRequests = 0;
+
+		StandInServer() throws IOException {
+			http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			http.createContext("/radio", new HttpHandler() {
+
+				@Override
+				public void handle(HttpExchange x) throws IOException {
+					try {
+						request = new JSONObject(new String(read(x.getRequestBody()), "UTF-8"));
+						JSONObject reply = new JSONObject();
+						if (error != null) {
+							reply.put("status", "error");
+							reply.put("message", error);
+						} else {
+							reply.put("status", "success");
+							reply.put("map_url_mean", url + "/mean");
+							if (patch != null && request.has("version"))
+								reply.put("map_url_patch", url + "/patch");
+						}
+						reply(x, reply.toString());
+					} catch (Exception e) {
+						x.sendResponseHeaders(500, -1);
+						x.close();
+					}
+				}
+			});
+			http.createContext("/mean", new HttpHandler() {
+
+				@Override
+				public void handle(HttpExchange x) throws IOException {
+					read(x.getRequestBody());
+					meanRequests++;
+					reply(x, join(NEW_MAP));
+				}
+			});
+			http.createContext("/patch", new HttpHandler() {
+
+				@Override
+				public void handle(HttpExchange x) throws IOException {
+					read(x.getRequestBody());
+					patchRequests++;
+					reply(x, join(patch));
+				}
+			});
+			http.start();
+			url = "http://127.0.0.1:" + http.getAddress().getPort();
+		}
+
+		void stop() {
+			http.stop(0);
+		}
+
+		static void reply(HttpExchange x, String body) throws IOException {
+			byte[] bytes = body.getBytes("UTF-8");
+			x.sendResponseHeaders(200, bytes.length);
+			x.getResponseBody().write(bytes);
+			x.close();
+		}
+	}
+
+	static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8 * 1024];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,360 @@
+/*
+* AnyPlace: A free and open Indoor Navigation Service with superb accuracy!
+*
+* Anyplace is a first-of-a-kind indoor information service offering GPS-less
+* localization, navigation and search inside buildings using ordinary smartphones.
+*
+* Author(s): Lambros Petrou, Timotheos Constambeys
+* 
+* Supervisor: Demetrios Zeinalipour-Yazti
+*
+* URL: http://anyplace.cs.ucy.ac.cy
+* Contact: anyplace@cs.ucy.ac.cy
+*
+* Copyright (c) 2015, Data Management Systems Lab (DMSL), University of Cyprus.
+* All rights reserved.
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy of
+* this software and associated documentation files (the "Software"), to deal in the
+* Software without restriction, including without limitation the rights to use, copy,
+* modify, merge, publish, distribute, sublicense, and/or sell copies of the Software,
+* and to permit persons to whom the Software is furnished to do so, subject to the
+* following conditions:
+*
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+* OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+* DEALINGS IN THE SOFTWARE.
+*
+*/
+
+package com.dmsl.anyplace.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs ChunkedUpload against a local stand-in of the radio_upload_chunked
+ * service, which keeps the chunks in memory and checks the SHA-1 of every
+ * chunk and of the reassembled file.
+ */
+public class ChunkedUploadTest {
+
+	private static final int CHUNK_SIZE = 50000;
+
+	private StandInServer server;
+	private File file;
+	private byte[] data;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new StandInServer();
+		file = File.createTempFile("rsslog", ".bin");
+		data = new byte[1000003];
+		new Random(1).nextBytes(data);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		ChunkedUpload.getStateFile(file).delete();
+		file.delete();
+	}
+
+	private int chunks() {
+		return (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	@Test
+	public void uploadsFileInChunks() throws Exception {
+		ChunkedUpload upload = new ChunkedUpload(server.url, file);
+		upload.setChunkSize(CHUNK_SIZE);
+
+		assertEquals("stored", upload.upload(credentials(), null));
+		assertArrayEquals(data, server.result);
+		assertEquals(chunks(), server.chunkPosts);
+		assertTrue(server.maxConcurrent <= ChunkedUpload.DEFAULT_PARALLELISM);
+		assertFalse(ChunkedUpload.getStateFile(file).exists());
+	}
+
+	@Test
+	public void resumesInterruptedUpload() throws Exception {
+		server.failFrom = 10;
+		ChunkedUpload upload = new ChunkedUpload(server.url, file);
+		upload.setChunkSize(CHUNK_SIZE);
+		try {
+			upload.upload(credentials(), null);
+			fail("The server stopped after 10 chunks");
+		} catch (IOException e) {
+		}
+		assertTrue(ChunkedUpload.getStateFile(file).exists());
+		server.awaitIdle();
+		int stored = server.storedChunks();
+		assertTrue(stored > 0 && stored <= 10);
+
+		// A new uploader, as after a restart of the app, with the size kept
+		// in the state file
+		server.failFrom = Integer.MAX_VALUE;
+		int posts = server.chunkPosts;
+		upload = new ChunkedUpload(server.url, file);
+		upload.setChunkSize(4096);
+		final float[] progress = { 0 };
+		upload.upload(credentials(), new ProgressHttpEntityWrapper.ProgressCallback() {
+
+			@Override
+			public void progress(float p) {
+				progress[0] = p;
+			}
+		});
+
+		// Only the chunks the server did not have are sent again
+		assertEquals(stored, server.received);
+		assertEquals(chunks() - stored, server.chunkPosts - posts);
+		assertEquals(1, server.uploads.size());
+		assertEquals(100, progress[0], 0.001);
+		assertArrayEquals(data, server.result);
+		assertFalse(ChunkedUpload.getStateFile(file).exists());
+	}
+
+	@Test
+	public void retriesFlakyChunks() throws Exception {
+		server.flaky = 2;
+		ChunkedUpload upload = new ChunkedUpload(server.url, file);
+		upload.setChunkSize(CHUNK_SIZE);
+
+		assertEquals("stored", upload.upload(credentials(), null));
+		assertEquals(chunks() + 2, server.chunkPosts);
+		assertArrayEquals(data, server.result);
+	}
+
+	@Test
+	public void keepsStateIfTheFileIsRejected() throws Exception {
+		server.rejectFinish = true;
+		ChunkedUpload upload = new ChunkedUpload(server.url, file);
+		upload.setChunkSize(CHUNK_SIZE);
+		try {
+			upload.upload(credentials(), null);
+			fail("The server rejected the file");
+		} catch (IOException e) {
+		}
+		assertTrue(ChunkedUpload.getStateFile(file).exists());
+	}
+
+	private static JSONObject credentials() throws Exception {
+		JSONObject j = new JSONObject();
+		j.put("username", "anonymous");
+		j.put("password", "anonymous");
+		return j;
+	}
+
+	/**
+	 * The begin, chunk and finish requests of the upload service
+	 */
+	private static class StandInServer {
+
+		final HttpServer http;
+		final String url;
+
+		final Map<String, TreeMap<Integer, byte[]>> uploads = new HashMap<String, TreeMap<Integer, byte[]>>();
+		final Map<String, JSONObject> begins = new HashMap<String, JSONObject>();
+		byte[] result;
+		// Chunks the server had at the last begin
+		int received;
+
+		// Chunks from this index fail with 503
+		volatile int failFrom = Integer.MAX_VALUE;
+		// Chunks that reply with an error once
+		volatile int flaky = 0;
+		volatile boolean rejectFinish = false;
+
+		int chunkPosts = 0;
+		int concurrent = 0;
+		int maxConcurrent = 0;
+		long lastPost = 0;
+
+		StandInServer() throws IOException {
+			http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			http.setExecutor(Executors.newCachedThreadPool());
+			http.createContext("/upload/begin", new Handler() {
+
+				@Override
+				String reply(HttpExchange x, byte[] body) throws Exception {
+					JSONObject begin = new JSONObject(new String(body, "UTF-8"));
+					synchronized (StandInServer.this) {
+						String id = begin.optString("upload_id", null);
+						if (id == null || !uploads.containsKey(id)) {
+							id = "u" + uploads.size();
+							uploads.put(id, new TreeMap<Integer, byte[]>());
+						}
+						begins.put(id, begin);
+						received = uploads.get(id).size();
+						return new JSONObject().put("status", "success").put("upload_id", id).put("received", uploads.get(id).keySet()).toString();
+					}
+				}
+			});
+			http.createContext("/upload/chunk", new Handler() {
+
+				@Override
+				String reply(HttpExchange x, byte[] body) throws Exception {
+					int index = Integer.parseInt(x.getRequestHeaders().getFirst("X-Chunk-Index"));
+					synchronized (StandInServer.this) {
+						chunkPosts++;
+						lastPost = System.currentTimeMillis();
+						maxConcurrent = Math.max(maxConcurrent, ++concurrent);
+					}
+					try {
+						// Keeps the chunks in flight together
+						Thread.sleep(20);
+					} finally {
+						synchronized (StandInServer.this) {
+							concurrent--;
+						}
+					}
+
+					if (index >= failFrom)
+						return null;
+					synchronized (StandInServer.this) {
+						if (flaky > 0 && index % 3 == 0) {
+							flaky--;
+							return "{\"status\":\"error\",\"message\":\"flaky\"}";
+						}
+					}
+					if (!sha1(body).equals(x.getRequestHeaders().getFirst("X-Chunk-SHA1")))
+						return "{\"status\":\"error\",\"message\":\"corrupt chunk\"}";
+					synchronized (StandInServer.this) {
+						uploads.get(x.getRequestHeaders().getFirst("X-Upload-Id")).put(index, body);
+					}
+					return "{\"status\":\"success\"}";
+				}
+			});
+			http.createContext("/upload/finish", new Handler() {
+
+				@Override
+				String reply(HttpExchange x, byte[] body) throws Exception {
+					String id = new JSONObject(new String(body, "UTF-8")).getString("upload_id");
+					ByteArrayOutputStream file = new ByteArrayOutputStream();
+					JSONObject begin;
+					synchronized (StandInServer.this) {
+						for (byte[] chunk : uploads.get(id).values())
+							file.write(chunk);
+						begin = begins.get(id);
+					}
+					result = file.toByteArray();
+					if (rejectFinish || !sha1(result).equals(begin.getString("sha1")))
+						return "{\"status\":\"error\",\"message\":\"corrupt file\"}";
+					return "{\"status\":\"success\",\"message\":\"stored\"}";
+				}
+			});
+			http.start();
+			url = "http://127.0.0.1:" + http.getAddress().getPort() + "/upload";
+		}
+
+		synchronized int storedChunks() {
+			int stored = 0;
+			for (TreeMap<Integer, byte[]> chunks : uploads.values())
+				stored += chunks.size();
+			return stored;
+		}
+
+		/**
+		 * Waits for the chunks of a cancelled upload that are still in
+		 * flight, until no chunk came for a while
+		 */
+		void awaitIdle() throws InterruptedException {
+			for (int i = 0; i < 100; i++) {
+				synchronized (this) {
+					if (concurrent == 0 && System.currentTimeMillis() - lastPost > 200)
+						return;
+				}
+				Thread.sleep(50);
+			}
+		}
+
+		void stop() {
+			http.stop(0);
+		}
+	}
+
+	/**
+	 * Replies with the Json returned, or 503 for null
+	 */
+	private static abstract class Handler implements HttpHandler {
+
+		abstract String reply(HttpExchange x, byte[] body) throws Exception;
+
+		@Override
+		public void handle(HttpExchange x) throws IOException {
+			String reply;
+			try {
+				reply = reply(x, read(x.getRequestBody()));
+			} catch (Exception e) {
+				reply = null;
+			}
+
+			if (reply == null) {
+				x.sendResponseHeaders(503, -1);
+			} else {
+				byte[] bytes = reply.getBytes("UTF-8");
+				x.sendResponseHeaders(200, bytes.length);
+				x.getResponseBody().write(bytes);
+			}
+			x.close();
+		}
+	}
+
+	static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8 * 1024];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	static String sha1(byte[] bytes) throws Exception {
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}